@@ -0,0 +1,472 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes a line for every request served by a {@link NanoHTTPD}, see
+ * {@link NanoHTTPD#setAccessLog(AccessLog)}.
+ * <p/>
+ * Request threads only put a record into a bounded ring buffer, without
+ * locking, formatting or I/O. A background thread takes the records out in
+ * batches, formats them and writes each batch with a single write, at least
+ * every {@link #FLUSH_INTERVAL_MILLIS} ms. When the buffer is full, because
+ * the disk can't keep up, records are dropped and counted instead of
+ * slowing down the requests.
+ * <p/>
+ * A log file is rolled over once it reaches the maximum size: access.log
+ * is renamed to access.log.1, access.log.1 to access.log.2 and so on, up to
+ * the maximum number of files kept.
+ * <p/>
+ * The byte count of a line is the number of bytes sent for the response,
+ * including the status line and headers, like the %O of Apache httpd.
+ */
+public class AccessLog implements Closeable {
+
+    public enum Format {
+        /**
+         * The Common Log Format: host ident user [time] "request" status
+         * bytes.
+         */
+        COMMON,
+        /**
+         * The Common Log Format followed by the quoted Referer and
+         * User-Agent headers.
+         */
+        COMBINED,
+        /**
+         * One JSON object per line, also holding the time taken to serve
+         * the request in microseconds.
+         */
+        JSON
+    }
+
+    private static final Logger LOG = Logger.getLogger(AccessLog.class.getName());
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    public static final long DEFAULT_MAX_FILE_SIZE = 64 * 1024 * 1024;
+
+    public static final int DEFAULT_MAX_FILES = 5;
+
+    public static final long FLUSH_INTERVAL_MILLIS = 200;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final class Record {
+
+        private final String remoteAddr;
+
+        private final String method;
+
+        private final String target;
+
+        private final String protocol;
+
+        private final int status;
+
+        private final long bytes;
+
+        private final String referer;
+
+        private final String userAgent;
+
+        private final long time;
+
+        private final long durationNanos;
+
+        private Record(String remoteAddr, String method, String target, String protocol, int status, long bytes, String referer, String userAgent, long time,
+                long durationNanos) {
+            this.remoteAddr = remoteAddr;
+            this.method = method;
+            this.target = target;
+            this.protocol = protocol;
+            this.status = status;
+            this.bytes = bytes;
+            this.referer = referer;
+            this.userAgent = userAgent;
+            this.time = time;
+            this.durationNanos = durationNanos;
+        }
+    }
+
+    private final Format format;
+
+    private final File file;
+
+    private final long maxFileSize;
+
+    private final int maxFiles;
+
+    private final boolean closeStream;
+
+    private OutputStream out;
+
+    private long fileSize;
+
+    private final AtomicReferenceArray<Record> records;
+
+    private final int mask;
+
+    /**
+     * The sequence number of the next record to be put into the buffer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The sequence number of the next record to be taken out, only changed
+     * by the writer thread.
+     */
+    private volatile long head;
+
+    private final AtomicLong logged = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final SimpleDateFormat commonDateFormat = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+
+    private final SimpleDateFormat jsonDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+
+    private final Thread writer;
+
+    private volatile boolean closed;
+
+    /**
+     * Logs to a file, appending to it if it exists, with the default buffer
+     * capacity and roll-over settings.
+     */
+    public AccessLog(File file, Format format) throws IOException {
+        this(file, format, DEFAULT_CAPACITY, DEFAULT_MAX_FILE_SIZE, DEFAULT_MAX_FILES);
+    }
+
+    /**
+     * Logs to a file, appending to it if it exists.
+     * 
+     * @param capacity
+     *            the number of records buffered before new ones are
+     *            dropped, rounded up to a power of two.
+     * @param maxFileSize
+     *            the size at which the file is rolled over.
+     * @param maxFiles
+     *            the number of rolled over files kept.
+     */
+    public AccessLog(File file, Format format, int capacity, long maxFileSize, int maxFiles) throws IOException {
+        this(file, new FileOutputStream(file, true), true, format, capacity, maxFileSize, maxFiles);
+    }
+
+    /**
+     * Logs to a stream, like System.out. The stream is flushed after every
+     * batch but not closed.
+     */
+    public AccessLog(OutputStream out, Format format) {
+        this(out, format, DEFAULT_CAPACITY);
+    }
+
+    public AccessLog(OutputStream out, Format format, int capacity) {
+        this(null, out, false, format, capacity, Long.MAX_VALUE, 0);
+    }
+
+    private AccessLog(File file, OutputStream out, boolean closeStream, Format format, int capacity, long maxFileSize, int maxFiles) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.file = file;
+        this.out = out;
+        this.closeStream = closeStream;
+        this.format = format;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        this.fileSize = file != null ? file.length() : 0;
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.records = new AtomicReferenceArray<Record>(size);
+        this.mask = size - 1;
+        this.jsonDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        this.writer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                writeRecords();
+            }
+        }, "NanoHttpd Access Log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public Format getFormat() {
+        return this.format;
+    }
+
+    /**
+     * @return the number of records put into the buffer.
+     */
+    public long getLoggedCount() {
+        return this.logged.get();
+    }
+
+    /**
+     * @return the number of records dropped because the buffer was full.
+     */
+    public long getDroppedCount() {
+        return this.dropped.get();
+    }
+
+    /**
+     * Puts a record into the buffer, called on the request thread once the
+     * response is sent.
+     * 
+     * @param target
+     *            the request target as sent by the client, path and query.
+     * @param time
+     *            the time the request was received, in milliseconds since
+     *            the epoch.
+     * @return false if the record was dropped.
+     */
+    boolean log(String remoteAddr, String method, String target, String protocol, int status, long bytes, String referer, String userAgent, long time, long durationNanos) {
+        if (this.closed) {
+            this.dropped.incrementAndGet();
+            return false;
+        }
+        int capacity = this.mask + 1;
+        long sequence;
+        do {
+            sequence = this.tail.get();
+            if (sequence - this.head >= capacity) {
+                this.dropped.incrementAndGet();
+                return false;
+            }
+        } while (!this.tail.compareAndSet(sequence, sequence + 1));
+        this.records.lazySet((int) (sequence & this.mask), new Record(remoteAddr, method, target, protocol, status, bytes, referer, userAgent, time, durationNanos));
+        this.logged.incrementAndGet();
+        // don't wait for the flush interval when the buffer fills up
+        if (sequence - this.head == capacity / 2) {
+            LockSupport.unpark(this.writer);
+        }
+        return true;
+    }
+
+    /**
+     * Writes the records still in the buffer and closes the log file. Records
+     * logged afterwards are dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        this.closed = true;
+        LockSupport.unpark(this.writer);
+        try {
+            this.writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeRecords() {
+        StringBuilder batch = new StringBuilder();
+        while (true) {
+            boolean closing = this.closed;
+            int count = takeRecords(batch);
+            if (batch.length() > 0) {
+                try {
+                    write(batch);
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Could not write access log", e);
+                }
+                batch.setLength(0);
+            }
+            if (closing && this.head == this.tail.get()) {
+                break;
+            }
+            if (count <= this.mask / 2) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MILLIS));
+            }
+        }
+        if (this.closeStream) {
+            try {
+                this.out.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Could not close access log", e);
+            }
+        }
+    }
+
+    /**
+     * Formats the records put into the buffer so far into the batch.
+     * 
+     * @return the number of records taken.
+     */
+    private int takeRecords(StringBuilder batch) {
+        long sequence = this.head;
+        long end = this.tail.get();
+        int count = 0;
+        while (sequence < end) {
+            int index = (int) (sequence & this.mask);
+            Record record = this.records.get(index);
+            if (record == null) {
+                // claimed but not yet stored, take it with the next batch
+                break;
+            }
+            this.records.lazySet(index, null);
+            sequence++;
+            this.head = sequence;
+            format(record, batch);
+            count++;
+        }
+        return count;
+    }
+
+    private void write(StringBuilder batch) throws IOException {
+        byte[] bytes = batch.toString().getBytes("UTF-8");
+        this.out.write(bytes);
+        this.out.flush();
+        this.fileSize += bytes.length;
+        if (this.file != null && this.fileSize >= this.maxFileSize) {
+            roll();
+        }
+    }
+
+    private void roll() throws IOException {
+        this.out.close();
+        String path = this.file.getPath();
+        new File(path + "." + this.maxFiles).delete();
+        for (int i = this.maxFiles - 1; i >= 1; i--) {
+            File rolled = new File(path + "." + i);
+            if (rolled.exists()) {
+                rolled.renameTo(new File(path + "." + (i + 1)));
+            }
+        }
+        if (this.maxFiles <= 0 || !this.file.renameTo(new File(path + ".1"))) {
+            this.file.delete();
+        }
+        this.out = new FileOutputStream(this.file, true);
+        this.fileSize = 0;
+    }
+
+    private void format(Record record, StringBuilder sb) {
+        if (this.format == Format.JSON) {
+            sb.append("{\"time\":\"").append(this.jsonDateFormat.format(new Date(record.time)));
+            sb.append("\",\"remote\":");
+            appendJson(sb, record.remoteAddr);
+            sb.append(",\"method\":");
+            appendJson(sb, record.method);
+            sb.append(",\"uri\":");
+            appendJson(sb, record.target);
+            sb.append(",\"protocol\":");
+            appendJson(sb, record.protocol);
+            sb.append(",\"status\":").append(record.status);
+            sb.append(",\"bytes\":").append(record.bytes);
+            sb.append(",\"duration_us\":").append(record.durationNanos / 1000);
+            sb.append(",\"referer\":");
+            appendJson(sb, record.referer);
+            sb.append(",\"user_agent\":");
+            appendJson(sb, record.userAgent);
+            sb.append("}\n");
+            return;
+        }
+        sb.append(record.remoteAddr != null ? record.remoteAddr : "-");
+        sb.append(" - - [").append(this.commonDateFormat.format(new Date(record.time))).append("] \"");
+        if (record.method != null) {
+            appendQuoted(sb, record.method);
+            sb.append(' ');
+            appendQuoted(sb, record.target != null ? record.target : "-");
+            if (record.protocol != null) {
+                sb.append(' ');
+                appendQuoted(sb, record.protocol);
+            }
+        } else {
+            sb.append('-');
+        }
+        sb.append("\" ").append(record.status).append(' ').append(record.bytes);
+        if (this.format == Format.COMBINED) {
+            sb.append(" \"");
+            appendQuoted(sb, record.referer != null ? record.referer : "-");
+            sb.append("\" \"");
+            appendQuoted(sb, record.userAgent != null ? record.userAgent : "-");
+            sb.append('"');
+        }
+        sb.append('\n');
+    }
+
+    /**
+     * Appends a value inside quotes, escaping quotes, backslashes and
+     * control characters the way Apache httpd does.
+     */
+    private static void appendQuoted(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20 || c == 0x7f) {
+                sb.append("\\x").append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xf]);
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    private static void appendJson(StringBuilder sb, String value) {
+        if (value == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20 || c == 0x7f) {
+                sb.append("\\u00").append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xf]);
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+}
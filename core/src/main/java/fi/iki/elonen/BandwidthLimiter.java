@@ -0,0 +1,168 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket limiting the rate at which response bodies are sent, see
+ * {@link NanoHTTPD#setBandwidthLimiter(BandwidthLimiter)},
+ * {@link NanoHTTPD#setConnectionBandwidthLimit(long)} and
+ * {@link NanoHTTPD.Response#setBandwidthLimiter(BandwidthLimiter)}.
+ * <p/>
+ * The bucket fills with tokens at the configured rate, up to the burst
+ * size, and every byte sent takes one token. Senders take tokens in small
+ * slices and may take more than there are; the debt makes every sender
+ * after them wait longer, so concurrent responses sharing a limiter get
+ * their turns in the order they asked and the rate is shared fairly among
+ * them. A limiter can be shared by any number of responses; the lock is only
+ * held to do the arithmetic, never while waiting.
+ */
+public class BandwidthLimiter {
+
+    /**
+     * The most bytes written at once by a throttled response.
+     */
+    public static final int SLICE_SIZE = 16 * 1024;
+
+    private long bytesPerSecond;
+
+    private long burstBytes;
+
+    private double tokens;
+
+    private long stamp = System.nanoTime();
+
+    private long bytes;
+
+    private long waitNanos;
+
+    /**
+     * Creates a limiter with a burst size of a tenth of a second, but at
+     * least one slice.
+     */
+    public BandwidthLimiter(long bytesPerSecond) {
+        this(bytesPerSecond, Math.max(SLICE_SIZE, bytesPerSecond / 10));
+    }
+
+    /**
+     * @param burstBytes
+     *            the most bytes sent at full speed after an idle period.
+     */
+    public BandwidthLimiter(long bytesPerSecond, long burstBytes) {
+        setRate(bytesPerSecond, burstBytes);
+        this.tokens = burstBytes;
+    }
+
+    public synchronized long getBytesPerSecond() {
+        return this.bytesPerSecond;
+    }
+
+    public synchronized long getBurstBytes() {
+        return this.burstBytes;
+    }
+
+    /**
+     * Changes the rate, also while responses are sent.
+     */
+    public synchronized void setRate(long bytesPerSecond, long burstBytes) {
+        if (bytesPerSecond <= 0 || burstBytes <= 0) {
+            throw new IllegalArgumentException("rate and burst size must be positive");
+        }
+        refill(System.nanoTime());
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstBytes = burstBytes;
+        this.tokens = Math.min(this.tokens, burstBytes);
+    }
+
+    /**
+     * @return the number of bytes that went through the limiter.
+     */
+    public synchronized long getByteCount() {
+        return this.bytes;
+    }
+
+    /**
+     * @return the total time senders waited for tokens, in nanoseconds.
+     */
+    public synchronized long getWaitNanos() {
+        return this.waitNanos;
+    }
+
+    /**
+     * Takes tokens for the given number of bytes and waits until they would
+     * have been available.
+     */
+    public void acquire(int count) throws InterruptedIOException {
+        sleep(reserve(count));
+    }
+
+    /**
+     * Takes tokens for the given number of bytes without waiting.
+     * 
+     * @return how long the caller has to wait before sending the bytes, in
+     *         nanoseconds.
+     */
+    synchronized long reserve(int count) {
+        refill(System.nanoTime());
+        this.tokens -= count;
+        this.bytes += count;
+        if (this.tokens >= 0) {
+            return 0;
+        }
+        long wait = (long) (-this.tokens * TimeUnit.SECONDS.toNanos(1) / this.bytesPerSecond);
+        this.waitNanos += wait;
+        return wait;
+    }
+
+    private void refill(long now) {
+        if (now > this.stamp) {
+            this.tokens = Math.min(this.burstBytes, this.tokens + (double) (now - this.stamp) * this.bytesPerSecond / TimeUnit.SECONDS.toNanos(1));
+            this.stamp = now;
+        }
+    }
+
+    static void sleep(long nanos) throws InterruptedIOException {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while throttling");
+        }
+    }
+}
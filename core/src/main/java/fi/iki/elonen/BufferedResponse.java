@@ -0,0 +1,125 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import fi.iki.elonen.NanoHTTPD.Response;
+import fi.iki.elonen.NanoHTTPD.Response.IStatus;
+import fi.iki.elonen.NanoHTTPD.ResponseTemplate;
+
+/**
+ * A response read into memory so that it can be sent any number of times.
+ * Unlike a {@link ResponseTemplate} the responses it creates are regular
+ * ones, so the server still negotiates their content-coding.
+ */
+final class BufferedResponse {
+
+    private final IStatus status;
+
+    private final String mimeType;
+
+    private final Map<String, String> headers;
+
+    private final ByteBuffer body;
+
+    /**
+     * @param body
+     *            the body, a heap buffer or a slice of a mapped file, whose
+     *            remaining bytes must not change.
+     */
+    BufferedResponse(IStatus status, String mimeType, Map<String, String> headers, ByteBuffer body) {
+        this.status = status;
+        this.mimeType = mimeType;
+        this.headers = Collections.unmodifiableMap(new LinkedHashMap<String, String>(headers));
+        this.body = body;
+    }
+
+    /**
+     * Reads the given response completely; it can't be sent afterwards.
+     */
+    static BufferedResponse of(Response response) throws IOException {
+        ResponseTemplate frozen = response.freeze();
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        for (Entry<String, String> header : frozen.getHeaders().entrySet()) {
+            if (!"content-length".equalsIgnoreCase(header.getKey())) {
+                headers.put(header.getKey(), header.getValue());
+            }
+        }
+        return new BufferedResponse(frozen.getStatus(), frozen.getMimeType(), headers, ByteBuffer.wrap(frozen.getBody()));
+    }
+
+    Response newResponse() {
+        Response response = NanoHTTPD.newFixedLengthResponse(this.status, this.mimeType, this.body);
+        for (Entry<String, String> header : this.headers.entrySet()) {
+            response.addHeader(header.getKey(), header.getValue());
+        }
+        return response;
+    }
+
+    IStatus getStatus() {
+        return this.status;
+    }
+
+    String getMimeType() {
+        return this.mimeType;
+    }
+
+    Map<String, String> getHeaders() {
+        return this.headers;
+    }
+
+    /**
+     * @return a view of the body, which must not be modified.
+     */
+    ByteBuffer getBody() {
+        return this.body.duplicate();
+    }
+
+    /**
+     * @return the rough number of bytes taken by the response.
+     */
+    int getSize() {
+        int size = this.body.remaining();
+        for (Entry<String, String> header : this.headers.entrySet()) {
+            size += header.getKey().length() + header.getValue().length();
+        }
+        return size;
+    }
+}
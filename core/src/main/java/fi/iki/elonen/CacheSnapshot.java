@@ -0,0 +1,247 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A file holding the entries of an in-memory cache, so that a restarted
+ * server can start with a warm cache.
+ * <p/>
+ * The file is memory-mapped when read and the bodies of the entries are
+ * slices of the mapping, so reading a snapshot costs little more than
+ * parsing the entry metadata; the bodies are paged in when they are first
+ * served. Each body is checked against its CRC-32 lazily, see
+ * {@link Entry#isValid()}.
+ */
+public final class CacheSnapshot {
+
+    private static final int MAGIC = 0x4E484353;
+
+    private static final int VERSION = 1;
+
+    /**
+     * A cached body with its key, metadata and expiry time.
+     */
+    public static final class Entry {
+
+        private final String key;
+
+        private final Map<String, String> metadata;
+
+        private final long expires;
+
+        private final ByteBuffer body;
+
+        private final long crc;
+
+        /**
+         * 0 if not checked yet, 1 if valid, -1 if corrupt.
+         */
+        private volatile int validity;
+
+        /**
+         * @param expires
+         *            the time (in milliseconds since the epoch) after which
+         *            the entry is stale, or Long.MAX_VALUE.
+         */
+        public Entry(String key, Map<String, String> metadata, long expires, ByteBuffer body) {
+            this(key, metadata, expires, body.duplicate(), ETagFilter.crc32(body), 1);
+        }
+
+        private Entry(String key, Map<String, String> metadata, long expires, ByteBuffer body, long crc, int validity) {
+            this.key = key;
+            this.metadata = Collections.unmodifiableMap(new LinkedHashMap<String, String>(metadata));
+            this.expires = expires;
+            this.body = body;
+            this.crc = crc;
+            this.validity = validity;
+        }
+
+        public String getKey() {
+            return this.key;
+        }
+
+        public Map<String, String> getMetadata() {
+            return this.metadata;
+        }
+
+        public long getExpires() {
+            return this.expires;
+        }
+
+        /**
+         * @return a read-only view of the body.
+         */
+        public ByteBuffer getBody() {
+            return this.body.asReadOnlyBuffer();
+        }
+
+        /**
+         * @return true if the body still matches the CRC-32 it was written
+         *         with. Checked on the first call only, as it reads the
+         *         whole body.
+         */
+        public boolean isValid() {
+            if (this.validity == 0) {
+                this.validity = ETagFilter.crc32(this.body) == this.crc ? 1 : -1;
+            }
+            return this.validity > 0;
+        }
+    }
+
+    private CacheSnapshot() {
+    }
+
+    /**
+     * Writes the entries to the file, replacing it as a whole once they
+     * have all been written.
+     */
+    public static void write(File file, List<Entry> entries) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            byte[] chunk = new byte[8 * 1024];
+            for (Entry entry : entries) {
+                writeString(out, entry.key);
+                out.writeInt(entry.metadata.size());
+                for (Map.Entry<String, String> meta : entry.metadata.entrySet()) {
+                    writeString(out, meta.getKey());
+                    writeString(out, meta.getValue());
+                }
+                out.writeLong(entry.expires);
+                out.writeLong(entry.crc);
+                ByteBuffer body = entry.body.duplicate();
+                out.writeInt(body.remaining());
+                if (body.hasArray()) {
+                    out.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+                } else {
+                    while (body.hasRemaining()) {
+                        int n = Math.min(body.remaining(), chunk.length);
+                        body.get(chunk, 0, n);
+                        out.write(chunk, 0, n);
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            // some platforms don't replace existing files on rename
+            if (!file.delete() || !temp.renameTo(file)) {
+                throw new IOException("Could not replace snapshot " + file);
+            }
+        }
+    }
+
+    /**
+     * Maps the file and returns its entries, in the order they were
+     * written. The bodies are not checked.
+     */
+    public static List<Entry> read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ByteBuffer map;
+        try {
+            map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            // the mapping stays valid after the file is closed
+            raf.close();
+        }
+        try {
+            if (map.getInt() != MAGIC || map.getInt() != VERSION) {
+                throw new IOException("Not a cache snapshot: " + file);
+            }
+            int count = map.getInt();
+            List<Entry> entries = new ArrayList<Entry>(Math.max(0, Math.min(count, 1024)));
+            for (int i = 0; i < count; i++) {
+                String key = readString(map, file);
+                int metadataCount = map.getInt();
+                Map<String, String> metadata = new LinkedHashMap<String, String>();
+                for (int j = 0; j < metadataCount; j++) {
+                    metadata.put(readString(map, file), readString(map, file));
+                }
+                long expires = map.getLong();
+                long crc = map.getLong();
+                int length = readLength(map, file);
+                ByteBuffer body = map.duplicate();
+                body.limit(map.position() + length);
+                map.position(map.position() + length);
+                entries.add(new Entry(key, metadata, expires, body.slice(), crc, 0));
+            }
+            return entries;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated cache snapshot: " + file);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in, File file) throws IOException {
+        byte[] bytes = new byte[readLength(in, file)];
+        in.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Reads the length of a string or body, which has to fit into the rest
+     * of the file; anything else is not allocated but rejected.
+     */
+    private static int readLength(ByteBuffer in, File file) throws IOException {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("Corrupt cache snapshot: " + file);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,215 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import fi.iki.elonen.NanoHTTPD.IHTTPSession;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import fi.iki.elonen.NanoHTTPD.ServeFilter;
+
+/**
+ * Adds weak ETags to dynamic responses and answers matching If-None-Match
+ * requests with 304 Not Modified, so that clients polling for unchanged
+ * content don't download it again.
+ * <p/>
+ * The ETag of a 200 response to a GET or HEAD request is derived from the
+ * length and the CRC-32 of its body, which is read into memory for that
+ * purpose (the header has to be sent before the body). It is weak because
+ * the server may still compress the body after this filter ran, and the
+ * gzip, deflate and identity bodies would otherwise share a strong tag. Responses with an
+ * unknown length or a body larger than the limit are left alone, as are
+ * responses that already carry an ETag; those are still compared against
+ * If-None-Match.
+ * <p/>
+ * When used together with a {@link ResponseCache}, add this filter first so
+ * that cached responses are validated too.
+ */
+public class ETagFilter implements ServeFilter {
+
+    private static final Logger LOG = Logger.getLogger(ETagFilter.class.getName());
+
+    public static final int DEFAULT_MAX_BODY_SIZE = 1024 * 1024;
+
+    /**
+     * Headers a 304 response has to repeat from the 200 response it stands
+     * for (RFC 7232 section 4.1).
+     */
+    private static final String[] NOT_MODIFIED_HEADERS = {
+        "Cache-Control",
+        "Content-Location",
+        "Expires",
+        "Vary"
+    };
+
+    private final int maxBodySize;
+
+    private final AtomicLong tagged = new AtomicLong();
+
+    private final AtomicLong notModified = new AtomicLong();
+
+    public ETagFilter() {
+        this(DEFAULT_MAX_BODY_SIZE);
+    }
+
+    /**
+     * @param maxBodySize
+     *            the size above which bodies are not hashed.
+     */
+    public ETagFilter(int maxBodySize) {
+        this.maxBodySize = maxBodySize;
+    }
+
+    @Override
+    public Response filter(IHTTPSession session, Chain chain) {
+        Method method = session.getMethod();
+        Response response = chain.proceed(session);
+        if (method != Method.GET && method != Method.HEAD || response == null || response.getStatus() != Response.Status.OK) {
+            return response;
+        }
+        String etag = response.getHeader("etag");
+        if (etag == null) {
+            long length = response.getContentLength();
+            if (length < 0 || length > this.maxBodySize) {
+                return response;
+            }
+            BufferedResponse buffered;
+            try {
+                buffered = BufferedResponse.of(response);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Could not read response for hashing", e);
+                return NanoHTTPD.newFixedLengthResponse(Response.Status.INTERNAL_ERROR, NanoHTTPD.MIME_PLAINTEXT, "SERVER INTERNAL ERROR: IOException: " + e.getMessage());
+            }
+            etag = etag(buffered.getBody());
+            response = buffered.newResponse();
+            response.addHeader("ETag", etag);
+            this.tagged.incrementAndGet();
+        }
+        if (!matches(session.getHeaders().get("if-none-match"), etag)) {
+            return response;
+        }
+        this.notModified.incrementAndGet();
+        Response notModifiedResponse = NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_MODIFIED, response.getMimeType(), "");
+        notModifiedResponse.addHeader("ETag", etag);
+        for (String name : NOT_MODIFIED_HEADERS) {
+            String value = response.getHeader(name);
+            if (value != null) {
+                notModifiedResponse.addHeader(name, value);
+            }
+        }
+        try {
+            response.close();
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Could not close response", e);
+        }
+        return notModifiedResponse;
+    }
+
+    /**
+     * @return the number of responses an ETag was computed for.
+     */
+    public long getTaggedCount() {
+        return this.tagged.get();
+    }
+
+    /**
+     * @return the number of requests answered with 304 Not Modified.
+     */
+    public long getNotModifiedCount() {
+        return this.notModified.get();
+    }
+
+    /**
+     * @return a weak entity tag for the given body.
+     */
+    public static String etag(byte[] body) {
+        return etag(ByteBuffer.wrap(body));
+    }
+
+    /**
+     * @return a weak entity tag for the remaining bytes of the given buffer.
+     */
+    public static String etag(ByteBuffer body) {
+        return "W/\"" + Integer.toHexString(body.remaining()) + "-" + Long.toHexString(crc32(body)) + "\"";
+    }
+
+    /**
+     * @return the CRC-32 of the remaining bytes of the buffer, leaving its
+     *         position alone.
+     */
+    static long crc32(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        if (buffer.hasArray()) {
+            crc.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            ByteBuffer view = buffer.duplicate();
+            byte[] chunk = new byte[Math.min(view.remaining(), 8 * 1024)];
+            while (view.hasRemaining()) {
+                int n = Math.min(view.remaining(), chunk.length);
+                view.get(chunk, 0, n);
+                crc.update(chunk, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * @return true if the If-None-Match header lists the given entity tag,
+     *         using the weak comparison required for this header.
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String opaque = opaqueTag(etag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            String trimmed = candidate.trim();
+            if ("*".equals(trimmed) || opaqueTag(trimmed).equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String opaqueTag(String etag) {
+        String tag = etag.trim();
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+}
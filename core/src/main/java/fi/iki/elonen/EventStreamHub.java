@@ -0,0 +1,348 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fi.iki.elonen.NanoHTTPD.IHTTPSession;
+import fi.iki.elonen.NanoHTTPD.Response;
+import fi.iki.elonen.NanoHTTPD.StreamingBody;
+import fi.iki.elonen.NanoHTTPD.StreamingOutputStream;
+
+/**
+ * Broadcasts {@link ServerSentEvent}s to any number of text/event-stream
+ * responses.
+ * <p/>
+ * Every published event is serialized once and the same bytes are queued for
+ * all subscribers. Each subscriber has a bounded queue; a subscriber that
+ * falls so far behind that its queue is full is dropped instead of blocking
+ * the publisher. Its stream ends, and the client reconnects with the
+ * Last-Event-ID header and gets the missed events from the replay buffer, as
+ * long as they are still in there.
+ * <p/>
+ * Idle streams get a heartbeat comment so that proxies and clients don't
+ * time them out.
+ * <p/>
+ * Usage:
+ * 
+ * <pre>
+ * EventStreamHub hub = new EventStreamHub();
+ * 
+ * public Response serve(IHTTPSession session) {
+ *     if (&quot;/events&quot;.equals(session.getUri())) {
+ *         return hub.newResponse(session);
+ *     }
+ *     ...
+ * }
+ * 
+ * hub.publish(new ServerSentEvent(&quot;price&quot;, &quot;42&quot;));
+ * </pre>
+ */
+public class EventStreamHub {
+
+    public static final String MIME_EVENT_STREAM = "text/event-stream";
+
+    public static final int DEFAULT_REPLAY_SIZE = 256;
+
+    public static final int DEFAULT_QUEUE_SIZE = 64;
+
+    public static final long DEFAULT_HEARTBEAT_MILLIS = 15000;
+
+    /**
+     * Queued to make a subscriber end its stream.
+     */
+    private static final byte[] END_OF_STREAM = new byte[0];
+
+    private static final byte[] HEARTBEAT = ServerSentEvent.comment("heartbeat");
+
+    private static final class Frame {
+
+        private final String id;
+
+        private final byte[] bytes;
+
+        private Frame(String id, byte[] bytes) {
+            this.id = id;
+            this.bytes = bytes;
+        }
+    }
+
+    private final class Subscriber implements StreamingBody {
+
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(EventStreamHub.this.queueSize);
+
+        private final String lastEventId;
+
+        private final boolean replayAll;
+
+        private Subscriber(String lastEventId, boolean replayAll) {
+            this.lastEventId = lastEventId;
+            this.replayAll = replayAll;
+        }
+
+        @Override
+        public void writeTo(StreamingOutputStream out) throws IOException {
+            List<byte[]> backlog = subscribe(this);
+            try {
+                long retry = EventStreamHub.this.retryMillis;
+                if (retry >= 0) {
+                    out.write(("retry: " + retry + "\n\n").getBytes());
+                }
+                for (byte[] frame : backlog) {
+                    out.write(frame);
+                }
+                out.flush();
+                while (true) {
+                    byte[] frame = this.queue.poll(EventStreamHub.this.heartbeatMillis, TimeUnit.MILLISECONDS);
+                    if (frame == null) {
+                        frame = HEARTBEAT;
+                    }
+                    // send whatever else is already queued in the same chunk
+                    while (frame != null) {
+                        if (frame == END_OF_STREAM) {
+                            out.flush();
+                            return;
+                        }
+                        out.write(frame);
+                        frame = this.queue.poll();
+                    }
+                    out.flush();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                unsubscribe(this);
+            }
+        }
+
+        private void end() {
+            this.queue.clear();
+            this.queue.offer(END_OF_STREAM);
+        }
+    }
+
+    private final int queueSize;
+
+    private final long heartbeatMillis;
+
+    private volatile long retryMillis = -1;
+
+    /**
+     * Guards the replay buffer, the id sequence and the subscribers.
+     */
+    private final Object lock = new Object();
+
+    private final Frame[] replay;
+
+    private int replayStart;
+
+    private int replayCount;
+
+    private long nextId = 1;
+
+    private final List<Subscriber> subscribers = new ArrayList<Subscriber>();
+
+    private final AtomicLong published = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    public EventStreamHub() {
+        this(DEFAULT_REPLAY_SIZE, DEFAULT_QUEUE_SIZE, DEFAULT_HEARTBEAT_MILLIS);
+    }
+
+    /**
+     * @param replaySize
+     *            the number of recent events kept for clients resuming with
+     *            Last-Event-ID, 0 to disable resuming.
+     * @param queueSize
+     *            the number of events a subscriber may fall behind before it
+     *            is dropped.
+     * @param heartbeatMillis
+     *            the idle time after which a heartbeat comment is sent.
+     */
+    public EventStreamHub(int replaySize, int queueSize, long heartbeatMillis) {
+        if (replaySize < 0 || queueSize <= 0 || heartbeatMillis <= 0) {
+            throw new IllegalArgumentException("invalid event stream hub settings");
+        }
+        this.replay = new Frame[replaySize];
+        // one extra slot so that END_OF_STREAM always fits
+        this.queueSize = queueSize + 1;
+        this.heartbeatMillis = heartbeatMillis;
+    }
+
+    /**
+     * Sets the reconnection time sent to clients when their stream starts,
+     * or -1 to leave the client default.
+     */
+    public void setRetry(long retryMillis) {
+        this.retryMillis = retryMillis;
+    }
+
+    /**
+     * Sends the event to all subscribers. Events without an id get the next
+     * number of the hub's sequence so that clients can resume after them.
+     * 
+     * @return the id of the event.
+     */
+    public String publish(ServerSentEvent event) {
+        synchronized (this.lock) {
+            if (event.getId() == null) {
+                event = event.withId(String.valueOf(this.nextId++));
+            }
+            Frame frame = new Frame(event.getId(), event.toBytes());
+            if (this.replay.length > 0) {
+                if (this.replayCount == this.replay.length) {
+                    this.replay[this.replayStart] = frame;
+                    this.replayStart = (this.replayStart + 1) % this.replay.length;
+                } else {
+                    this.replay[(this.replayStart + this.replayCount++) % this.replay.length] = frame;
+                }
+            }
+            for (int i = this.subscribers.size() - 1; i >= 0; i--) {
+                Subscriber subscriber = this.subscribers.get(i);
+                // leave room for END_OF_STREAM
+                if (subscriber.queue.remainingCapacity() <= 1 || !subscriber.queue.offer(frame.bytes)) {
+                    this.subscribers.remove(i);
+                    this.dropped.incrementAndGet();
+                    subscriber.end();
+                }
+            }
+            this.published.incrementAndGet();
+            return event.getId();
+        }
+    }
+
+    /**
+     * Creates a text/event-stream response subscribed to this hub, resuming
+     * after the event named by the Last-Event-ID header of the request if
+     * there is one.
+     */
+    public Response newResponse(IHTTPSession session) {
+        return newResponse(session.getHeaders().get("last-event-id"));
+    }
+
+    /**
+     * Creates a text/event-stream response subscribed to this hub.
+     * 
+     * @param lastEventId
+     *            the id of the last event the client has seen, or null for a
+     *            new client, which only gets events published from now on.
+     *            If the id is no longer in the replay buffer, all buffered
+     *            events are sent.
+     */
+    public Response newResponse(String lastEventId) {
+        Subscriber subscriber;
+        if (lastEventId != null) {
+            subscriber = new Subscriber(lastEventId, false);
+        } else {
+            // the stream only starts when the response is sent, so remember
+            // where it stands now to not miss anything published in between
+            synchronized (this.lock) {
+                String newest = this.replayCount == 0 ? null : this.replay[(this.replayStart + this.replayCount - 1) % this.replay.length].id;
+                subscriber = new Subscriber(newest, newest == null);
+            }
+        }
+        Response response = NanoHTTPD.newStreamingResponse(Response.Status.OK, MIME_EVENT_STREAM, subscriber);
+        response.addHeader("Cache-Control", "no-cache");
+        return response;
+    }
+
+    /**
+     * Ends all streams. Clients will reconnect unless told otherwise.
+     */
+    public void close() {
+        synchronized (this.lock) {
+            for (Subscriber subscriber : this.subscribers) {
+                subscriber.end();
+            }
+            this.subscribers.clear();
+        }
+    }
+
+    public int getSubscriberCount() {
+        synchronized (this.lock) {
+            return this.subscribers.size();
+        }
+    }
+
+    /**
+     * @return the number of events published so far.
+     */
+    public long getPublishedCount() {
+        return this.published.get();
+    }
+
+    /**
+     * @return the number of subscribers dropped for falling behind.
+     */
+    public long getDroppedCount() {
+        return this.dropped.get();
+    }
+
+    /**
+     * Registers the subscriber and returns the buffered events it has
+     * missed.
+     */
+    private List<byte[]> subscribe(Subscriber subscriber) {
+        synchronized (this.lock) {
+            int from = 0;
+            if (!subscriber.replayAll) {
+                for (int i = this.replayCount - 1; i >= 0; i--) {
+                    if (this.replay[(this.replayStart + i) % this.replay.length].id.equals(subscriber.lastEventId)) {
+                        from = i + 1;
+                        break;
+                    }
+                }
+            }
+            List<byte[]> backlog = new ArrayList<byte[]>(this.replayCount - from);
+            for (int i = from; i < this.replayCount; i++) {
+                backlog.add(this.replay[(this.replayStart + i) % this.replay.length].bytes);
+            }
+            this.subscribers.add(subscriber);
+            return backlog;
+        }
+    }
+
+    private void unsubscribe(Subscriber subscriber) {
+        synchronized (this.lock) {
+            this.subscribers.remove(subscriber);
+        }
+    }
+}
@@ -43,6 +43,7 @@ import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -52,6 +53,7 @@ import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationTargetException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
@@ -62,11 +64,13 @@ import java.net.URL;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.security.KeyStore;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
@@ -80,11 +84,18 @@ import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
@@ -609,6 +620,720 @@ public abstract class NanoHTTPD {
 
     }
 
+    /**
+     * Intercepts requests on their way to {@link NanoHTTPD#serve(IHTTPSession)}
+     * , e.g. to answer them from a cache. Filters are registered with
+     * {@link NanoHTTPD#getServeFilters()} and run in order; each one either
+     * returns a response itself or passes the request on to the rest of the
+     * chain. Implementations are shared by all sessions and must be thread
+     * safe.
+     */
+    public interface ServeFilter {
+
+        /**
+         * The rest of the filter chain, ending with the server's serve()
+         * method.
+         */
+        interface Chain {
+
+            Response proceed(IHTTPSession session);
+        }
+
+        /**
+         * Implemented by filters that want to know when the server starts
+         * and stops, e.g. to persist their state across restarts.
+         */
+        interface Lifecycle {
+
+            /**
+             * Called by start() before the server accepts connections.
+             */
+            void onStart() throws IOException;
+
+            /**
+             * Called by stop() once all connections are closed.
+             */
+            void onStop() throws IOException;
+        }
+
+        Response filter(IHTTPSession session, Chain chain);
+    }
+
+    /**
+     * Writes the body of a streaming response, see
+     * {@link NanoHTTPD#newStreamingResponse(IStatus, String, StreamingBody)}.
+     * The body is written push-style on the thread sending the response, so
+     * no extra thread or pipe is needed to produce it.
+     */
+    public interface StreamingBody {
+
+        /**
+         * Writes the body to the client. Data may be held back until the
+         * stream is flushed or enough has been written to fill a chunk, so
+         * call {@link OutputStream#flush()} whenever what was written so far
+         * should reach the client right away.
+         * <p/>
+         * An IOException thrown while writing usually means that the client
+         * went away; it should be passed on so that the server closes the
+         * connection. Closing the stream is not needed.
+         * 
+         * @param out
+         *            the stream to write the body to, also available as a
+         *            {@link WritableByteChannel}.
+         */
+        void writeTo(StreamingOutputStream out) throws IOException;
+    }
+
+    /**
+     * The stream a {@link StreamingBody} writes to. For fixed length
+     * responses it refuses to write more than the declared length.
+     */
+    public static final class StreamingOutputStream extends FilterOutputStream {
+
+        private final long length;
+
+        private long written;
+
+        private boolean closed;
+
+        private WritableByteChannel channel;
+
+        private StreamingOutputStream(OutputStream out, long length) {
+            super(out);
+            this.length = length;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureRoom(1);
+            this.out.write(b);
+            this.written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureRoom(len);
+            this.out.write(b, off, len);
+            this.written += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            ensureOpen();
+            this.out.flush();
+        }
+
+        /**
+         * Flushes the stream, the connection itself stays open.
+         */
+        @Override
+        public void close() throws IOException {
+            if (!this.closed) {
+                flush();
+                this.closed = true;
+            }
+        }
+
+        /**
+         * @return a channel writing to this stream. Heap buffers are written
+         *         without copying.
+         */
+        public WritableByteChannel getChannel() {
+            if (this.channel == null) {
+                this.channel = new WritableByteChannel() {
+
+                    private byte[] transfer;
+
+                    @Override
+                    public int write(ByteBuffer src) throws IOException {
+                        int len = src.remaining();
+                        if (src.hasArray()) {
+                            StreamingOutputStream.this.write(src.array(), src.arrayOffset() + src.position(), len);
+                            src.position(src.limit());
+                            return len;
+                        }
+                        if (this.transfer == null) {
+                            this.transfer = new byte[8 * 1024];
+                        }
+                        while (src.hasRemaining()) {
+                            int n = Math.min(src.remaining(), this.transfer.length);
+                            src.get(this.transfer, 0, n);
+                            StreamingOutputStream.this.write(this.transfer, 0, n);
+                        }
+                        return len;
+                    }
+
+                    @Override
+                    public boolean isOpen() {
+                        return !StreamingOutputStream.this.closed;
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        StreamingOutputStream.this.close();
+                    }
+                };
+            }
+            return this.channel;
+        }
+
+        /**
+         * @return the number of body bytes written so far.
+         */
+        public long getWritten() {
+            return this.written;
+        }
+
+        private void ensureOpen() throws IOException {
+            if (this.closed) {
+                throw new IOException("stream closed");
+            }
+        }
+
+        private void ensureRoom(int len) throws IOException {
+            ensureOpen();
+            if (this.length >= 0 && this.written + len > this.length) {
+                throw new IOException("body is longer than the declared length of " + this.length + " bytes");
+            }
+        }
+    }
+
+    /**
+     * A content-coding (RFC 7231 section 3.1.2.1) that can be applied to
+     * response bodies, e.g. gzip. The server negotiates the coding to use from
+     * the Accept-Encoding request header, see
+     * {@link NanoHTTPD#getContentEncoders()}. Implementations are shared by all
+     * responses and must be thread safe.
+     */
+    public interface ContentEncoder {
+
+        /**
+         * @return the coding token as used in Accept-Encoding and
+         *         Content-Encoding, e.g. "gzip" or "br".
+         */
+        String getEncoding();
+
+        /**
+         * @param length
+         *            the body length in bytes, or -1 if unknown.
+         * @return true if a body of the given length is worth encoding.
+         */
+        boolean shouldEncode(long length);
+
+        /**
+         * @param length
+         *            the body length in bytes, or -1 if unknown.
+         * @return true if a body of the given length should be encoded in
+         *         memory so that it can be sent with a Content-Length instead
+         *         of chunked transfer.
+         */
+        boolean shouldBuffer(long length);
+
+        /**
+         * Wraps the given stream so that everything written to it is encoded.
+         * Closing the returned stream must finish the encoding and release
+         * any resources held, but must not close the wrapped stream.
+         */
+        OutputStream encode(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Base class for the zlib based content-codings.
+     * <p/>
+     * <p>
+     * Deflater instances hold native memory and are expensive to create and
+     * finalize, so they are kept in a small pool and reused across responses.
+     * Bodies smaller than the minimum size are sent uncompressed, as the
+     * framing would eat the savings. Bodies of known length up to the maximum
+     * buffered size are compressed up front so that they can be sent with a
+     * Content-Length instead of chunked transfer.
+     * </p>
+     */
+    public abstract static class DeflaterEncoder implements ContentEncoder {
+
+        /**
+         * Bodies with fewer bytes than this are not worth compressing.
+         */
+        public static final int DEFAULT_MIN_SIZE = 256;
+
+        /**
+         * Bodies up to this size are compressed into memory and sent with a
+         * Content-Length.
+         */
+        public static final int DEFAULT_MAX_BUFFERED_SIZE = 128 * 1024;
+
+        protected static final int DEFAULT_POOL_SIZE = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+        protected static final int BUFFER_SIZE = 8 * 1024;
+
+        /**
+         * Deflater.deflate(byte[], int, int, int), which can sync flush the
+         * compressed data, only exists since Java 7. Null if it is missing.
+         */
+        private static final java.lang.reflect.Method DEFLATE_WITH_FLUSH = getDeflateWithFlush();
+
+        /**
+         * The value of Deflater.SYNC_FLUSH.
+         */
+        private static final int SYNC_FLUSH = 2;
+
+        private final boolean nowrap;
+
+        private final int level;
+
+        private final int minSize;
+
+        private final int maxBufferedSize;
+
+        private final BlockingQueue<Deflater> pool;
+
+        /**
+         * @param nowrap
+         *            true to produce raw deflate data without the zlib
+         *            header and checksum.
+         * @param level
+         *            compression level, 0-9 or
+         *            {@link Deflater#DEFAULT_COMPRESSION}.
+         * @param minSize
+         *            bodies of known length below this are sent uncompressed.
+         * @param maxBufferedSize
+         *            bodies of known length up to this are compressed in
+         *            memory and sent with a Content-Length.
+         * @param poolSize
+         *            maximum number of idle Deflaters kept for reuse.
+         */
+        protected DeflaterEncoder(boolean nowrap, int level, int minSize, int maxBufferedSize, int poolSize) {
+            if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+                throw new IllegalArgumentException("invalid compression level " + level);
+            }
+            this.nowrap = nowrap;
+            this.level = level;
+            this.minSize = minSize;
+            this.maxBufferedSize = maxBufferedSize;
+            this.pool = new ArrayBlockingQueue<Deflater>(Math.max(1, poolSize));
+        }
+
+        public int getLevel() {
+            return this.level;
+        }
+
+        public int getMinSize() {
+            return this.minSize;
+        }
+
+        public int getMaxBufferedSize() {
+            return this.maxBufferedSize;
+        }
+
+        /**
+         * Bodies of unknown length are only encoded if the runtime can flush
+         * the compressed data, otherwise it would be held back from the
+         * client until the body ends.
+         */
+        @Override
+        public boolean shouldEncode(long length) {
+            return length < 0 ? DEFLATE_WITH_FLUSH != null : length >= this.minSize;
+        }
+
+        @Override
+        public boolean shouldBuffer(long length) {
+            return length >= 0 && length <= this.maxBufferedSize;
+        }
+
+        @Override
+        public OutputStream encode(OutputStream out) throws IOException {
+            return new PooledDeflaterOutputStream(out, acquire());
+        }
+
+        private static java.lang.reflect.Method getDeflateWithFlush() {
+            try {
+                return Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+
+        protected Deflater acquire() {
+            Deflater deflater = this.pool.poll();
+            if (deflater == null) {
+                deflater = new Deflater(this.level, this.nowrap);
+            }
+            return deflater;
+        }
+
+        protected void release(Deflater deflater) {
+            deflater.reset();
+            if (!this.pool.offer(deflater)) {
+                deflater.end();
+            }
+        }
+
+        /**
+         * Deflater stream that hands its Deflater back to the pool when
+         * closed, leaving the wrapped stream open.
+         */
+        protected class PooledDeflaterOutputStream extends DeflaterOutputStream {
+
+            private boolean released;
+
+            /**
+             * Whether data was written since the last flush.
+             */
+            private boolean unflushed;
+
+            protected PooledDeflaterOutputStream(OutputStream out, Deflater deflater) {
+                super(out, deflater, BUFFER_SIZE);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                super.write(b, off, len);
+                this.unflushed = true;
+            }
+
+            /**
+             * Sync flushes the data written so far, so that the client can
+             * decompress all of it right away.
+             */
+            @Override
+            public void flush() throws IOException {
+                if (this.unflushed && DEFLATE_WITH_FLUSH != null && !this.def.finished()) {
+                    int len;
+                    do {
+                        len = deflate(SYNC_FLUSH);
+                        this.out.write(this.buf, 0, len);
+                    } while (len == this.buf.length);
+                    this.unflushed = false;
+                }
+                this.out.flush();
+            }
+
+            private int deflate(int flush) throws IOException {
+                try {
+                    return (Integer) DEFLATE_WITH_FLUSH.invoke(this.def, this.buf, 0, this.buf.length, flush);
+                } catch (IllegalAccessException e) {
+                    throw new IOException(e.toString());
+                } catch (InvocationTargetException e) {
+                    throw new IOException(e.getCause().toString());
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    finish();
+                    this.out.flush();
+                } finally {
+                    if (!this.released) {
+                        this.released = true;
+                        release(this.def);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The "gzip" content-coding.
+     */
+    public static class GzipEncoder extends DeflaterEncoder {
+
+        private static final byte[] GZIP_HEADER = {
+            (byte) 0x1f,
+            (byte) 0x8b,
+            Deflater.DEFLATED,
+            0,
+            0,
+            0,
+            0,
+            0,
+            0,
+            0
+        };
+
+        public GzipEncoder() {
+            this(Deflater.DEFAULT_COMPRESSION, DEFAULT_MIN_SIZE, DEFAULT_MAX_BUFFERED_SIZE);
+        }
+
+        public GzipEncoder(int level, int minSize, int maxBufferedSize) {
+            this(level, minSize, maxBufferedSize, DEFAULT_POOL_SIZE);
+        }
+
+        public GzipEncoder(int level, int minSize, int maxBufferedSize, int poolSize) {
+            super(true, level, minSize, maxBufferedSize, poolSize);
+        }
+
+        @Override
+        public String getEncoding() {
+            return "gzip";
+        }
+
+        @Override
+        public OutputStream encode(OutputStream out) throws IOException {
+            return new GzipOutputStream(out, acquire());
+        }
+
+        private class GzipOutputStream extends PooledDeflaterOutputStream {
+
+            private final CRC32 crc = new CRC32();
+
+            private boolean finished;
+
+            private GzipOutputStream(OutputStream out, Deflater deflater) throws IOException {
+                super(out, deflater);
+                out.write(GZIP_HEADER);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                super.write(b, off, len);
+                this.crc.update(b, off, len);
+            }
+
+            @Override
+            public void finish() throws IOException {
+                if (this.finished) {
+                    return;
+                }
+                super.finish();
+                writeInt((int) this.crc.getValue());
+                writeInt(this.def.getTotalIn());
+                this.finished = true;
+            }
+
+            private void writeInt(int value) throws IOException {
+                this.out.write(value & 0xff);
+                this.out.write(value >> 8 & 0xff);
+                this.out.write(value >> 16 & 0xff);
+                this.out.write(value >> 24 & 0xff);
+            }
+        }
+    }
+
+    /**
+     * The "deflate" content-coding, i.e. zlib framed deflate data.
+     */
+    public static class DeflateEncoder extends DeflaterEncoder {
+
+        public DeflateEncoder() {
+            this(Deflater.DEFAULT_COMPRESSION, DEFAULT_MIN_SIZE, DEFAULT_MAX_BUFFERED_SIZE);
+        }
+
+        public DeflateEncoder(int level, int minSize, int maxBufferedSize) {
+            this(level, minSize, maxBufferedSize, DEFAULT_POOL_SIZE);
+        }
+
+        public DeflateEncoder(int level, int minSize, int maxBufferedSize, int poolSize) {
+            super(false, level, minSize, maxBufferedSize, poolSize);
+        }
+
+        @Override
+        public String getEncoding() {
+            return "deflate";
+        }
+    }
+
+    /**
+     * Input stream reading the remaining bytes of a buffer.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return this.buffer.hasRemaining() ? this.buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!this.buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, this.buffer.remaining());
+            this.buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, this.buffer.remaining()));
+            this.buffer.position(this.buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return this.buffer.remaining();
+        }
+    }
+
+    /**
+     * Writes to a stream in slices, each one once all the bandwidth limiters
+     * have tokens for it. The waits are reported to the slow client guard,
+     * if there is one, so that they are not held against the client.
+     */
+    private static class ThrottledOutputStream extends FilterOutputStream {
+
+        private final BandwidthLimiter[] limiters;
+
+        private final SlowClientGuard.Connection connection;
+
+        ThrottledOutputStream(OutputStream out, BandwidthLimiter[] limiters, SlowClientGuard.Connection connection) {
+            super(out);
+            this.limiters = limiters;
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            throttle(1);
+            this.out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, BandwidthLimiter.SLICE_SIZE);
+                throttle(n);
+                this.out.write(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void throttle(int count) throws IOException {
+            long wait = 0;
+            for (BandwidthLimiter limiter : this.limiters) {
+                if (limiter != null) {
+                    wait = Math.max(wait, limiter.reserve(count));
+                }
+            }
+            if (wait > 0 && this.connection != null) {
+                this.connection.throttled(wait);
+            }
+            BandwidthLimiter.sleep(wait);
+        }
+    }
+
+    /**
+     * Reports the writes to the client to the slow client guard, in slices
+     * so that the guard sees the progress of large writes.
+     */
+    private static class GuardedOutputStream extends FilterOutputStream {
+
+        private static final int SLICE_SIZE = 16 * 1024;
+
+        private final SlowClientGuard.Connection connection;
+
+        GuardedOutputStream(OutputStream out, SlowClientGuard.Connection connection) {
+            super(out);
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.connection.beginIo();
+            try {
+                this.out.write(b);
+            } catch (IOException e) {
+                throw guardException(this.connection, e);
+            } finally {
+                this.connection.endIo(1);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, SLICE_SIZE);
+                this.connection.beginIo();
+                try {
+                    this.out.write(b, off, n);
+                } catch (IOException e) {
+                    throw guardException(this.connection, e);
+                } finally {
+                    this.connection.endIo(n);
+                }
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.connection.beginIo();
+            try {
+                this.out.flush();
+            } catch (IOException e) {
+                throw guardException(this.connection, e);
+            } finally {
+                this.connection.endIo(0);
+            }
+        }
+    }
+
+    /**
+     * @return a timeout in place of the error of a read or write that failed
+     *         because the slow client guard closed the connection.
+     */
+    private static IOException guardException(SlowClientGuard.Connection connection, IOException e) {
+        if (connection.isClosed() && !(e instanceof SocketTimeoutException)) {
+            return new SocketTimeoutException("Closed the connection to a slow client");
+        }
+        return e;
+    }
+
+    /**
+     * Counts the bytes written to a stream, for the access log.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            this.count += len;
+        }
+
+        long getCount() {
+            return this.count;
+        }
+    }
+
+    /**
+     * ByteArrayOutputStream that can be read back without copying its
+     * contents.
+     */
+    private static class BufferOutputStream extends ByteArrayOutputStream {
+
+        public BufferOutputStream(int size) {
+            super(size);
+        }
+
+        public ByteArrayInputStream toInputStream() {
+            return new ByteArrayInputStream(this.buf, 0, this.count);
+        }
+    }
+
     private static final String CONTENT_DISPOSITION_REGEX = "([ |\t]*Content-Disposition[ |\t]*:)(.*)";
 
     private static final Pattern CONTENT_DISPOSITION_PATTERN = Pattern.compile(CONTENT_DISPOSITION_REGEX, Pattern.CASE_INSENSITIVE);
@@ -712,6 +1437,14 @@ public abstract class NanoHTTPD {
 
         private final BufferedInputStream inputStream;
 
+        private final GuardedInputStream guardedInputStream;
+
+        /**
+         * The transfer state watched by the slow client guard, null when
+         * there is no guard.
+         */
+        private SlowClientGuard.Connection slowClient;
+
         private int splitbyte;
 
         private int rlen;
@@ -726,6 +1459,8 @@ public abstract class NanoHTTPD {
 
         private CookieHandler cookies;
 
+        private BandwidthLimiter connectionLimiter;
+
         private String queryParameterString;
 
         private String remoteIp;
@@ -736,13 +1471,15 @@ public abstract class NanoHTTPD {
 
         public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream) {
             this.tempFileManager = tempFileManager;
-            this.inputStream = new BufferedInputStream(inputStream, HTTPSession.BUFSIZE);
+            this.guardedInputStream = new GuardedInputStream(inputStream);
+            this.inputStream = new BufferedInputStream(this.guardedInputStream, HTTPSession.BUFSIZE);
             this.outputStream = outputStream;
         }
 
         public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream, InetAddress inetAddress) {
             this.tempFileManager = tempFileManager;
-            this.inputStream = new BufferedInputStream(inputStream, HTTPSession.BUFSIZE);
+            this.guardedInputStream = new GuardedInputStream(inputStream);
+            this.inputStream = new BufferedInputStream(this.guardedInputStream, HTTPSession.BUFSIZE);
             this.outputStream = outputStream;
             this.remoteIp = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1" : inetAddress.getHostAddress();
             this.remoteHostname = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "localhost" : inetAddress.getHostName();
@@ -759,8 +1496,13 @@ public abstract class NanoHTTPD {
                 if (inLine != null) {
                     parseInitialHeaderLine(pre, parms, inLine);
 
+                    int maxHeaderCount = NanoHTTPD.this.requestLimits.getMaxHeaderCount();
+                    int count = 0;
                     String line = in.readLine();
                     while (line != null && !line.trim().isEmpty()) {
+                        if (++count > maxHeaderCount) {
+                            throw new ResponseException(Response.Status.REQUEST_HEADER_FIELDS_TOO_LARGE, "Too many header fields.");
+                        }
                         int p = line.indexOf(':');
                         if (p >= 0) {
                             headers.put(line.substring(0, p).trim().toLowerCase(Locale.US), line.substring(p + 1).trim());
@@ -787,6 +1529,7 @@ public abstract class NanoHTTPD {
             }
 
             String uri = st.nextToken();
+            pre.put("target", uri);
 
             // Decode parameters from the URI
             int qmi = uri.indexOf('?');
@@ -917,6 +1660,9 @@ public abstract class NanoHTTPD {
                 throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data "
                         + "but it contains less than two boundary strings.");
             }
+            if (boundaryIdxs.length - 1 > NanoHTTPD.this.requestLimits.getMaxParameterCount()) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Too many parameters.");
+            }
 
             int pcount = 0;
             byte[] partHeaderBuff = new byte[MAX_HEADER_SIZE];
@@ -1032,7 +1778,7 @@ public abstract class NanoHTTPD {
          * Map. NOTE: this doesn't support multiple identical keys due to the
          * simplicity of Map.
          */
-        private void decodeParms(String parms, Map<String, String> p) {
+        private void decodeParms(String parms, Map<String, String> p) throws ResponseException {
             if (parms == null) {
                 this.queryParameterString = "";
                 return;
@@ -1040,6 +1786,9 @@ public abstract class NanoHTTPD {
 
             this.queryParameterString = parms;
             StringTokenizer st = new StringTokenizer(parms, "&");
+            if (st.countTokens() > NanoHTTPD.this.requestLimits.getMaxParameterCount()) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Too many parameters.");
+            }
             while (st.hasMoreTokens()) {
                 String e = st.nextToken();
                 int sep = e.indexOf('=');
@@ -1054,20 +1803,37 @@ public abstract class NanoHTTPD {
         @Override
         public void execute() throws IOException {
             Response r = null;
+            Response sent = null;
+            AccessLog accessLog = NanoHTTPD.this.accessLog;
+            OutputStream outputStream = this.outputStream;
+            CountingOutputStream counter = null;
+            long time = 0;
+            long start = 0;
+            Map<String, String> pre = new HashMap<String, String>();
+            SlowClientGuard guard = NanoHTTPD.this.slowClientGuard;
+            if (guard == null) {
+                this.slowClient = null;
+            } else {
+                if (this.slowClient == null) {
+                    this.slowClient = new SlowClientGuard.Connection(this.guardedInputStream, this.outputStream);
+                }
+                guard.register(this.slowClient);
+            }
             try {
                 // Read the first 8192 bytes.
-                // The full header should fit in here.
-                // Apache's default header limit is 8KB.
+                // The full header should fit in here, the buffer only grows
+                // up to the header limit (8KB by default, like Apache's).
                 // Do NOT assume that a single read will get the entire header
                 // at once!
-                byte[] headerBuffer = new byte[HTTPSession.BUFSIZE];
+                RequestLimits limits = NanoHTTPD.this.requestLimits;
+                byte[] headerBuffer = new byte[Math.min(HTTPSession.BUFSIZE, limits.getMaxHeaderBytes())];
                 this.splitbyte = 0;
                 this.rlen = 0;
 
                 int read = -1;
-                this.inputStream.mark(HTTPSession.BUFSIZE);
+                this.inputStream.mark(limits.getMaxHeaderBytes());
                 try {
-                    read = this.inputStream.read(headerBuffer, 0, HTTPSession.BUFSIZE);
+                    read = this.inputStream.read(headerBuffer, 0, headerBuffer.length);
                 } catch (SSLException e) {
                     throw e;
                 } catch (IOException e) {
@@ -1081,13 +1847,32 @@ public abstract class NanoHTTPD {
                     safeClose(this.outputStream);
                     throw new SocketException("NanoHttpd Shutdown");
                 }
+                if (this.slowClient != null) {
+                    this.slowClient.startHeader();
+                }
+                if (accessLog != null) {
+                    time = System.currentTimeMillis();
+                    start = System.nanoTime();
+                    counter = new CountingOutputStream(this.outputStream);
+                    outputStream = counter;
+                }
                 while (read > 0) {
                     this.rlen += read;
                     this.splitbyte = findHeaderEnd(headerBuffer, this.rlen);
+                    int lineEnd = findRequestLineEnd(headerBuffer, this.rlen);
+                    if ((lineEnd < 0 ? this.rlen : lineEnd) > limits.getMaxRequestLineLength()) {
+                        throw new ResponseException(Response.Status.URI_TOO_LONG, "Request line too long.");
+                    }
                     if (this.splitbyte > 0) {
                         break;
                     }
-                    read = this.inputStream.read(headerBuffer, this.rlen, HTTPSession.BUFSIZE - this.rlen);
+                    if (this.rlen == headerBuffer.length) {
+                        if (this.rlen >= limits.getMaxHeaderBytes()) {
+                            throw new ResponseException(Response.Status.REQUEST_HEADER_FIELDS_TOO_LARGE, "Request header too large.");
+                        }
+                        headerBuffer = Arrays.copyOf(headerBuffer, (int) Math.min(2L * headerBuffer.length, limits.getMaxHeaderBytes()));
+                    }
+                    read = this.inputStream.read(headerBuffer, this.rlen, headerBuffer.length - this.rlen);
                 }
 
                 if (this.splitbyte < this.rlen) {
@@ -1106,7 +1891,6 @@ public abstract class NanoHTTPD {
                 BufferedReader hin = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(headerBuffer, 0, this.rlen)));
 
                 // Decode the header into parms and header java properties
-                Map<String, String> pre = new HashMap<String, String>();
                 decodeHeader(hin, pre, this.parms, this.headers);
 
                 if (null != this.remoteIp) {
@@ -1123,6 +1907,26 @@ public abstract class NanoHTTPD {
 
                 this.cookies = new CookieHandler(this.headers);
 
+                String contentLength = this.headers.get("content-length");
+                if (contentLength != null) {
+                    long length;
+                    try {
+                        length = Long.parseLong(contentLength.trim());
+                    } catch (NumberFormatException e) {
+                        length = -1;
+                    }
+                    if (length < 0) {
+                        throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Invalid Content-Length.");
+                    }
+                    if (length > limits.getMaxBodySize()) {
+                        throw new ResponseException(Response.Status.PAYLOAD_TOO_LARGE, "Request body too large.");
+                    }
+                }
+
+                if (this.slowClient != null) {
+                    this.slowClient.startBody();
+                }
+
                 String connection = this.headers.get("connection");
                 boolean keepAlive = "HTTP/1.1".equals(protocolVersion) && (connection == null || !connection.matches("(?i).*close.*"));
 
@@ -1131,19 +1935,28 @@ public abstract class NanoHTTPD {
                 // TODO: long body_size = getBodySize();
                 // TODO: long pos_before_serve = this.inputStream.totalRead()
                 // (requires implementation for totalRead())
-                r = serve(this);
+                r = new FilterChain(getServeFilters().toArray(new ServeFilter[0]), 0).proceed(this);
                 // TODO: this.inputStream.skip(body_size -
                 // (this.inputStream.totalRead() - pos_before_serve))
 
                 if (r == null) {
                     throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: Serve() returned a null response.");
                 } else {
-                    String acceptEncoding = this.headers.get("accept-encoding");
                     this.cookies.unloadQueue(r);
                     r.setRequestMethod(this.method);
-                    r.setGzipEncoding(useGzipWhenAccepted(r) && acceptEncoding != null && acceptEncoding.contains("gzip"));
+                    if (useGzipWhenAccepted(r) && isContentEncodingApplicable(r)) {
+                        r.setContentEncoder(selectContentEncoder(this.headers.get("accept-encoding")));
+                        r.addVaryHeader("Accept-Encoding");
+                    } else {
+                        r.setContentEncoder(null);
+                    }
                     r.setKeepAlive(keepAlive);
-                    r.send(this.outputStream);
+                    if (this.slowClient != null) {
+                        this.slowClient.startSend();
+                        outputStream = new GuardedOutputStream(outputStream, this.slowClient);
+                    }
+                    r.send(throttle(outputStream, r));
+                    sent = r;
                 }
                 if (!keepAlive || r.isCloseConnection()) {
                     throw new SocketException("NanoHttpd Shutdown");
@@ -1158,22 +1971,119 @@ public abstract class NanoHTTPD {
                 throw ste;
             } catch (SSLException ssle) {
                 Response resp = newFixedLengthResponse(Response.Status.INTERNAL_ERROR, NanoHTTPD.MIME_PLAINTEXT, "SSL PROTOCOL FAILURE: " + ssle.getMessage());
-                resp.send(this.outputStream);
+                resp.send(outputStream);
+                sent = resp;
                 safeClose(this.outputStream);
             } catch (IOException ioe) {
                 Response resp = newFixedLengthResponse(Response.Status.INTERNAL_ERROR, NanoHTTPD.MIME_PLAINTEXT, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
-                resp.send(this.outputStream);
+                resp.send(outputStream);
+                sent = resp;
                 safeClose(this.outputStream);
             } catch (ResponseException re) {
                 Response resp = newFixedLengthResponse(re.getStatus(), NanoHTTPD.MIME_PLAINTEXT, re.getMessage());
-                resp.send(this.outputStream);
+                resp.send(outputStream);
+                sent = resp;
                 safeClose(this.outputStream);
             } finally {
+                if (guard != null) {
+                    guard.unregister(this.slowClient);
+                }
+                if (sent != null && counter != null) {
+                    IStatus status = sent.getStatus();
+                    String method = pre.get("method");
+                    Map<String, String> headers = this.headers != null ? this.headers : Collections.<String, String> emptyMap();
+                    accessLog.log(this.remoteIp, method, pre.get("target"), method != null ? this.protocolVersion : null, status != null ? status.getRequestStatus() : 0,
+                            counter.getCount(), headers.get("referer"), headers.get("user-agent"), time, System.nanoTime() - start);
+                }
                 safeClose(r);
                 this.tempFileManager.clear();
             }
         }
 
+        /**
+         * Reports the reads from the client to the slow client guard, if
+         * there is one.
+         */
+        private class GuardedInputStream extends FilterInputStream {
+
+            GuardedInputStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                SlowClientGuard.Connection connection = HTTPSession.this.slowClient;
+                if (connection == null) {
+                    return this.in.read();
+                }
+                int c = -1;
+                connection.beginIo();
+                try {
+                    c = this.in.read();
+                } catch (IOException e) {
+                    throw guardException(connection, e);
+                } finally {
+                    connection.endIo(c >= 0 ? 1 : 0);
+                }
+                return c;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                SlowClientGuard.Connection connection = HTTPSession.this.slowClient;
+                if (connection == null) {
+                    return this.in.read(b, off, len);
+                }
+                int n = -1;
+                connection.beginIo();
+                try {
+                    n = this.in.read(b, off, len);
+                } catch (IOException e) {
+                    throw guardException(connection, e);
+                } finally {
+                    connection.endIo(n);
+                }
+                return n;
+            }
+        }
+
+        /**
+         * Wraps the output stream so that it waits for the bandwidth limiters
+         * of the response, the connection and the server, if there are any.
+         */
+        private OutputStream throttle(OutputStream out, Response r) {
+            long limit = NanoHTTPD.this.connectionBandwidthLimit;
+            if (limit <= 0) {
+                this.connectionLimiter = null;
+            } else if (this.connectionLimiter == null) {
+                this.connectionLimiter = new BandwidthLimiter(limit);
+            } else if (this.connectionLimiter.getBytesPerSecond() != limit) {
+                this.connectionLimiter.setRate(limit, Math.max(BandwidthLimiter.SLICE_SIZE, limit / 10));
+            }
+            BandwidthLimiter global = NanoHTTPD.this.bandwidthLimiter;
+            if (r.getBandwidthLimiter() == null && this.connectionLimiter == null && global == null) {
+                return out;
+            }
+            return new ThrottledOutputStream(out, new BandwidthLimiter[]{
+                r.getBandwidthLimiter(),
+                this.connectionLimiter,
+                global
+            }, this.slowClient);
+        }
+
+        /**
+         * @return the length of the request line without its line break, or
+         *         -1 if it is not complete yet.
+         */
+        private int findRequestLineEnd(final byte[] buf, int rlen) {
+            for (int i = 0; i < rlen; i++) {
+                if (buf[i] == '\n') {
+                    return i > 0 && buf[i - 1] == '\r' ? i - 1 : i;
+                }
+            }
+            return -1;
+        }
+
         /**
          * Find byte index separating header from body. It must be the last byte
          * of the first two sequential new lines.
@@ -1399,6 +2309,15 @@ public abstract class NanoHTTPD {
      */
     public static class Response implements Closeable {
 
+        private static GzipEncoder defaultGzipEncoder;
+
+        private static synchronized GzipEncoder defaultGzipEncoder() {
+            if (defaultGzipEncoder == null) {
+                defaultGzipEncoder = new GzipEncoder();
+            }
+            return defaultGzipEncoder;
+        }
+
         public interface IStatus {
 
             String getDescription();
@@ -1428,7 +2347,11 @@ public abstract class NanoHTTPD {
             NOT_ACCEPTABLE(406, "Not Acceptable"),
             REQUEST_TIMEOUT(408, "Request Timeout"),
             CONFLICT(409, "Conflict"),
+            PRECONDITION_FAILED(412, "Precondition Failed"),
+            PAYLOAD_TOO_LARGE(413, "Payload Too Large"),
+            URI_TOO_LONG(414, "URI Too Long"),
             RANGE_NOT_SATISFIABLE(416, "Requested Range Not Satisfiable"),
+            REQUEST_HEADER_FIELDS_TOO_LARGE(431, "Request Header Fields Too Large"),
             INTERNAL_ERROR(500, "Internal Server Error"),
             NOT_IMPLEMENTED(501, "Not Implemented"),
             UNSUPPORTED_HTTP_VERSION(505, "HTTP Version Not Supported");
@@ -1455,22 +2378,56 @@ public abstract class NanoHTTPD {
         }
 
         /**
-         * Output stream that will automatically send every write to the wrapped
+         * Output stream that sends everything written to it to the wrapped
          * OutputStream according to chunked transfer:
          * http://www.w3.org/Protocols/rfc2616/rfc2616-sec3.html#sec3.6.1
+         * <p/>
+         * Small writes are coalesced into chunks of up to the configured chunk
+         * size, so that a producer writing a few bytes at a time does not end
+         * up sending one tiny chunk (and one TCP segment) per write. Calling
+         * {@link #flush()} sends whatever is pending as a chunk right away,
+         * which lets latency-sensitive producers push data without waiting for
+         * a full chunk.
          */
-        private static class ChunkedOutputStream extends FilterOutputStream {
+        public static class ChunkedOutputStream extends FilterOutputStream {
+
+            private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+
+            private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes();
+
+            /**
+             * Room for the hex chunk size (at most eight digits for an int)
+             * followed by CRLF.
+             */
+            private static final int HEADER_ROOM = 10;
+
+            private final byte[] buffer;
+
+            private final int chunkSize;
+
+            private int count;
 
             public ChunkedOutputStream(OutputStream out) {
+                this(out, DEFAULT_CHUNK_SIZE);
+            }
+
+            public ChunkedOutputStream(OutputStream out, int chunkSize) {
                 super(out);
+                if (chunkSize <= 0) {
+                    throw new IllegalArgumentException("chunk size must be positive: " + chunkSize);
+                }
+                this.chunkSize = chunkSize;
+                // chunk size line, chunk data and the trailing CRLF, so a
+                // coalesced chunk goes out with a single write
+                this.buffer = new byte[HEADER_ROOM + chunkSize + 2];
             }
 
             @Override
             public void write(int b) throws IOException {
-                byte[] data = {
-                    (byte) b
-                };
-                write(data, 0, 1);
+                if (this.count == this.chunkSize) {
+                    writePendingChunk();
+                }
+                this.buffer[HEADER_ROOM + this.count++] = (byte) b;
             }
 
             @Override
@@ -1480,17 +2437,177 @@ public abstract class NanoHTTPD {
 
             @Override
             public void write(byte[] b, int off, int len) throws IOException {
-                if (len == 0)
+                if (len == 0) {
                     return;
-                out.write(String.format("%x\r\n", len).getBytes());
-                out.write(b, off, len);
-                out.write("\r\n".getBytes());
+                }
+                if (this.count == 0 && len >= this.chunkSize) {
+                    // nothing to coalesce with, send it as one chunk without
+                    // copying
+                    writeChunk(b, off, len);
+                    return;
+                }
+                while (len > 0) {
+                    int n = Math.min(len, this.chunkSize - this.count);
+                    System.arraycopy(b, off, this.buffer, HEADER_ROOM + this.count, n);
+                    this.count += n;
+                    off += n;
+                    len -= n;
+                    if (this.count == this.chunkSize) {
+                        writePendingChunk();
+                    }
+                }
+            }
+
+            /**
+             * Sends the pending data as a chunk, even if it is smaller than
+             * the chunk size, and flushes the wrapped stream.
+             */
+            @Override
+            public void flush() throws IOException {
+                if (this.count > 0) {
+                    CHUNK_STATISTICS.flushes.incrementAndGet();
+                    writePendingChunk();
+                }
+                this.out.flush();
             }
 
+            /**
+             * Sends the pending data followed by the last (empty) chunk. The
+             * wrapped stream is neither flushed nor closed.
+             */
             public void finish() throws IOException {
-                out.write("0\r\n\r\n".getBytes());
+                writePendingChunk();
+                this.out.write(LAST_CHUNK);
+            }
+
+            public int getChunkSize() {
+                return this.chunkSize;
             }
 
+            private void writePendingChunk() throws IOException {
+                if (this.count == 0) {
+                    return;
+                }
+                int start = writeChunkSizeLine(this.buffer, HEADER_ROOM, this.count);
+                int end = HEADER_ROOM + this.count;
+                this.buffer[end++] = '\r';
+                this.buffer[end++] = '\n';
+                CHUNK_STATISTICS.record(this.count);
+                this.count = 0;
+                this.out.write(this.buffer, start, end - start);
+            }
+
+            private void writeChunk(byte[] b, int off, int len) throws IOException {
+                byte[] sizeLine = new byte[HEADER_ROOM];
+                int start = writeChunkSizeLine(sizeLine, HEADER_ROOM, len);
+                CHUNK_STATISTICS.record(len);
+                this.out.write(sizeLine, start, HEADER_ROOM - start);
+                this.out.write(b, off, len);
+                this.out.write(sizeLine, HEADER_ROOM - 2, 2);
+            }
+
+            /**
+             * Writes the hex size and CRLF so that they end right before
+             * <code>end</code>, returning the index of the first digit.
+             */
+            private static int writeChunkSizeLine(byte[] target, int end, int size) {
+                int pos = end;
+                target[--pos] = '\n';
+                target[--pos] = '\r';
+                do {
+                    target[--pos] = HEX_DIGITS[size & 0xf];
+                    size >>>= 4;
+                } while (size != 0);
+                return pos;
+            }
+        }
+
+        /**
+         * Counters describing the chunks sent by all
+         * {@link ChunkedOutputStream}s, useful for tuning the chunk size.
+         */
+        public static final class ChunkStatistics {
+
+            private final AtomicLong chunks = new AtomicLong();
+
+            private final AtomicLong bytes = new AtomicLong();
+
+            private final AtomicLong flushes = new AtomicLong();
+
+            /**
+             * Chunk counts by size, bucket <code>i</code> holding chunks of
+             * <code>2^(i-1)</code> up to <code>2^i - 1</code> bytes.
+             */
+            private final AtomicLongArray sizes = new AtomicLongArray(32);
+
+            private ChunkStatistics() {
+            }
+
+            private void record(int size) {
+                this.chunks.incrementAndGet();
+                this.bytes.addAndGet(size);
+                this.sizes.incrementAndGet(32 - Integer.numberOfLeadingZeros(size));
+            }
+
+            /**
+             * @return the number of chunks sent, not counting the last
+             *         (empty) chunk of each response.
+             */
+            public long getChunkCount() {
+                return this.chunks.get();
+            }
+
+            /**
+             * @return the number of body bytes sent in chunks.
+             */
+            public long getChunkedBytes() {
+                return this.bytes.get();
+            }
+
+            public long getAverageChunkSize() {
+                long count = this.chunks.get();
+                return count == 0 ? 0 : this.bytes.get() / count;
+            }
+
+            /**
+             * @return the number of chunks that were sent early because of a
+             *         flush.
+             */
+            public long getFlushCount() {
+                return this.flushes.get();
+            }
+
+            /**
+             * @return the number of chunks of at least <code>2^(bucket-1)</code>
+             *         and less than <code>2^bucket</code> bytes.
+             */
+            public long getChunkCountBySize(int bucket) {
+                return this.sizes.get(bucket);
+            }
+
+            public void reset() {
+                this.chunks.set(0);
+                this.bytes.set(0);
+                this.flushes.set(0);
+                for (int i = 0; i < this.sizes.length(); i++) {
+                    this.sizes.set(i, 0);
+                }
+            }
+        }
+
+        /**
+         * Default upper bound for the size of a chunk sent by a chunked
+         * response.
+         */
+        public static final int DEFAULT_CHUNK_SIZE = 8 * 1024;
+
+        private static final ChunkStatistics CHUNK_STATISTICS = new ChunkStatistics();
+
+        /**
+         * @return the statistics of the chunks sent by chunked responses.
+         */
+        public static ChunkStatistics getChunkStatistics() {
+            return CHUNK_STATISTICS;
         }
 
         /**
@@ -1540,9 +2657,39 @@ public abstract class NanoHTTPD {
         private boolean chunkedTransfer;
 
         /**
-         * Whether to encode the response as GZip or not.
+         * The content-coding to apply to the body, or null to send it as is.
+         */
+        private ContentEncoder contentEncoder;
+
+        /**
+         * Limits the rate at which this response is sent, on top of the
+         * limits of the server and the connection. May be null.
+         */
+        private BandwidthLimiter bandwidthLimiter;
+
+        /**
+         * Writes the body of streaming responses instead of reading it from
+         * the data stream. Cleared once the body has been written.
          */
-        private boolean encodeAsGzip;
+        private StreamingBody streamingBody;
+
+        /**
+         * Body of responses created from bytes, written as is instead of
+         * being read from the data stream. Cleared once the body has been
+         * written.
+         */
+        private ByteBuffer bodyBuffer;
+
+        /**
+         * The pre-serialized form of this response while it is unchanged,
+         * see {@link #freeze()}.
+         */
+        private ResponseTemplate template;
+
+        /**
+         * Maximum size of a chunk when using chunked transfer.
+         */
+        private int chunkSize = DEFAULT_CHUNK_SIZE;
 
         /**
          * Whether to use the HTTP/1.1 connection keep-alive feature or not.
@@ -1578,6 +2725,7 @@ public abstract class NanoHTTPD {
          * Adds given line to the header.
          */
         public void addHeader(String name, String value) {
+            detachTemplate();
             this.header.put(name, value);
         }
 
@@ -1589,6 +2737,7 @@ public abstract class NanoHTTPD {
          *            let connection be closed by client.
          */
         public void closeConnection(boolean close) {
+            detachTemplate();
             if (close)
                 this.header.put("connection", "close");
             else
@@ -1607,8 +2756,20 @@ public abstract class NanoHTTPD {
             return this.data;
         }
 
+        /**
+         * @return the length of the body, or -1 if it is sent with chunked
+         *         transfer.
+         */
+        public long getContentLength() {
+            return this.chunkedTransfer ? -1 : this.contentLength;
+        }
+
         public String getHeader(String name) {
-            return this.lowerCaseHeader.get(name.toLowerCase());
+            String lowerCaseName = name.toLowerCase();
+            if (this.template != null) {
+                return this.template.lowerCaseHeaders.get(lowerCaseName);
+            }
+            return this.lowerCaseHeader.get(lowerCaseName);
         }
 
         public String getMimeType() {
@@ -1619,12 +2780,68 @@ public abstract class NanoHTTPD {
             return this.requestMethod;
         }
 
+        public BandwidthLimiter getBandwidthLimiter() {
+            return this.bandwidthLimiter;
+        }
+
+        /**
+         * Limits the rate at which the response is sent, e.g. with a limiter
+         * shared by all responses of a route or media type. The limits of
+         * the server and the connection apply as well.
+         */
+        public void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+            this.bandwidthLimiter = bandwidthLimiter;
+        }
+
         public IStatus getStatus() {
             return this.status;
         }
 
+        /**
+         * Shortcut for {@link #setContentEncoder(ContentEncoder)} with a
+         * default gzip encoder.
+         */
         public void setGzipEncoding(boolean encodeAsGzip) {
-            this.encodeAsGzip = encodeAsGzip;
+            this.contentEncoder = encodeAsGzip ? defaultGzipEncoder() : null;
+        }
+
+        public ContentEncoder getContentEncoder() {
+            return this.contentEncoder;
+        }
+
+        /**
+         * Sets the content-coding applied to the body when it is sent. The
+         * encoder is skipped if the response already carries a
+         * Content-Length or Content-Encoding header, or if it rejects the
+         * body length.
+         */
+        public void setContentEncoder(ContentEncoder contentEncoder) {
+            this.contentEncoder = contentEncoder;
+        }
+
+        /**
+         * Adds the given request header name to the Vary header, keeping the
+         * names already listed there.
+         */
+        public void addVaryHeader(String requestHeader) {
+            detachTemplate();
+            String vary = getHeader("vary");
+            if (vary == null) {
+                addHeader("Vary", requestHeader);
+                return;
+            }
+            for (String name : vary.split(",")) {
+                String trimmed = name.trim();
+                if ("*".equals(trimmed) || trimmed.equalsIgnoreCase(requestHeader)) {
+                    return;
+                }
+            }
+            for (String key : this.header.keySet()) {
+                if ("vary".equalsIgnoreCase(key)) {
+                    this.header.put(key, vary + ", " + requestHeader);
+                    return;
+                }
+            }
         }
 
         public void setKeepAlive(boolean useKeepAlive) {
@@ -1635,6 +2852,16 @@ public abstract class NanoHTTPD {
          * Sends given response to the socket.
          */
         protected void send(OutputStream outputStream) {
+            if (this.template != null && this.requestMethod != Method.HEAD) {
+                try {
+                    this.template.send(outputStream, this.keepAlive);
+                } catch (IOException ioe) {
+                    NanoHTTPD.LOG.log(Level.SEVERE, "Could not send response to the client", ioe);
+                    closeConnection(true);
+                }
+                return;
+            }
+            detachTemplate();
             SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
             gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
 
@@ -1656,26 +2883,47 @@ public abstract class NanoHTTPD {
                 if (getHeader("connection") == null) {
                     printHeader(pw, "Connection", (this.keepAlive ? "keep-alive" : "close"));
                 }
-                if (getHeader("content-length") != null) {
-                    encodeAsGzip = false;
-                }
-                if (encodeAsGzip) {
-                    printHeader(pw, "Content-Encoding", "gzip");
-                    setChunkedTransfer(true);
+                ContentEncoder encoder = this.contentEncoder;
+                if (getHeader("content-length") != null || getHeader("content-encoding") != null) {
+                    encoder = null;
                 }
                 long pending = this.data != null ? this.contentLength : 0;
+                if (encoder != null && !this.chunkedTransfer && !encoder.shouldEncode(pending)) {
+                    encoder = null;
+                }
+                boolean encodedUpFront = false;
+                if (encoder != null) {
+                    printHeader(pw, "Content-Encoding", encoder.getEncoding());
+                    if (this.requestMethod != Method.HEAD && !this.chunkedTransfer && encoder.shouldBuffer(pending)) {
+                        // small enough to encode up front and send with a
+                        // Content-Length
+                        InputStream plain = this.data;
+                        this.data = encodeToBuffer(encoder, pending);
+                        safeClose(plain);
+                        pending = this.data.available();
+                        encodedUpFront = true;
+                    } else {
+                        setChunkedTransfer(true);
+                    }
+                }
                 if (this.requestMethod != Method.HEAD && this.chunkedTransfer) {
                     printHeader(pw, "Transfer-Encoding", "chunked");
-                } else if (!encodeAsGzip) {
+                } else if (encodedUpFront) {
+                    printHeader(pw, "Content-Length", String.valueOf(pending));
+                    encoder = null;
+                } else if (encoder == null) {
                     pending = sendContentLengthHeaderIfNotAlreadyPresent(pw, pending);
                 }
                 pw.append("\r\n");
                 pw.flush();
-                sendBodyWithCorrectTransferAndEncoding(outputStream, pending);
+                sendBodyWithCorrectTransferAndEncoding(outputStream, pending, encoder);
                 outputStream.flush();
                 safeClose(this.data);
             } catch (IOException ioe) {
                 NanoHTTPD.LOG.log(Level.SEVERE, "Could not send response to the client", ioe);
+                // the body may have been cut short, the connection can't be
+                // reused
+                closeConnection(true);
             }
         }
 
@@ -1698,26 +2946,40 @@ public abstract class NanoHTTPD {
             return size;
         }
 
-        private void sendBodyWithCorrectTransferAndEncoding(OutputStream outputStream, long pending) throws IOException {
+        private void sendBodyWithCorrectTransferAndEncoding(OutputStream outputStream, long pending, ContentEncoder encoder) throws IOException {
             if (this.requestMethod != Method.HEAD && this.chunkedTransfer) {
-                ChunkedOutputStream chunkedOutputStream = new ChunkedOutputStream(outputStream);
-                sendBodyWithCorrectEncoding(chunkedOutputStream, -1);
+                ChunkedOutputStream chunkedOutputStream = new ChunkedOutputStream(outputStream, this.chunkSize);
+                sendBodyWithCorrectEncoding(chunkedOutputStream, -1, encoder);
                 chunkedOutputStream.finish();
             } else {
-                sendBodyWithCorrectEncoding(outputStream, pending);
+                sendBodyWithCorrectEncoding(outputStream, pending, encoder);
             }
         }
 
-        private void sendBodyWithCorrectEncoding(OutputStream outputStream, long pending) throws IOException {
-            if (encodeAsGzip) {
-                GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream);
-                sendBody(gzipOutputStream, -1);
-                gzipOutputStream.finish();
+        private void sendBodyWithCorrectEncoding(OutputStream outputStream, long pending, ContentEncoder encoder) throws IOException {
+            if (encoder != null) {
+                OutputStream encodedOutputStream = encoder.encode(outputStream);
+                try {
+                    sendBody(encodedOutputStream, -1);
+                } finally {
+                    encodedOutputStream.close();
+                }
             } else {
                 sendBody(outputStream, pending);
             }
         }
 
+        private ByteArrayInputStream encodeToBuffer(ContentEncoder encoder, long length) throws IOException {
+            BufferOutputStream buffer = new BufferOutputStream((int) Math.min(length / 2 + 64, 16 * 1024));
+            OutputStream encodedOutputStream = encoder.encode(buffer);
+            try {
+                sendBody(encodedOutputStream, length);
+            } finally {
+                encodedOutputStream.close();
+            }
+            return buffer.toInputStream();
+        }
+
         /**
          * Sends the body to the specified OutputStream. The pending parameter
          * limits the maximum amounts of bytes sent unless it is -1, in which
@@ -1732,6 +2994,23 @@ public abstract class NanoHTTPD {
          *             if something goes wrong while sending the data.
          */
         private void sendBody(OutputStream outputStream, long pending) throws IOException {
+            if (this.streamingBody != null) {
+                StreamingBody body = this.streamingBody;
+                this.streamingBody = null;
+                if (this.requestMethod != Method.HEAD) {
+                    writeStreamingBody(body, outputStream, pending);
+                }
+                return;
+            }
+            if (this.bodyBuffer != null) {
+                ByteBuffer body = this.bodyBuffer;
+                this.bodyBuffer = null;
+                if (pending >= 0 && pending < body.remaining()) {
+                    body.limit(body.position() + (int) pending);
+                }
+                writeBuffer(body, outputStream);
+                return;
+            }
             long BUFFER_SIZE = 16 * 1024;
             byte[] buff = new byte[(int) BUFFER_SIZE];
             boolean sendEverything = pending == -1;
@@ -1748,15 +3027,63 @@ public abstract class NanoHTTPD {
             }
         }
 
+        private void writeStreamingBody(StreamingBody body, OutputStream outputStream, long pending) throws IOException {
+            StreamingOutputStream out = new StreamingOutputStream(outputStream, pending);
+            body.writeTo(out);
+            if (pending >= 0 && out.getWritten() != pending) {
+                throw new IOException("body is shorter than the declared length of " + pending + " bytes");
+            }
+        }
+
+        /**
+         * Writes the remaining bytes of the buffer. Heap buffers are written
+         * straight from their backing array; direct and read-only buffers
+         * have to be copied in pieces since the stream only takes arrays.
+         */
+        private static void writeBuffer(ByteBuffer body, OutputStream outputStream) throws IOException {
+            if (body.hasArray()) {
+                outputStream.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+                body.position(body.limit());
+                return;
+            }
+            byte[] buff = new byte[Math.min(body.remaining(), 16 * 1024)];
+            while (body.hasRemaining()) {
+                int n = Math.min(body.remaining(), buff.length);
+                body.get(buff, 0, n);
+                outputStream.write(buff, 0, n);
+            }
+        }
+
+        public int getChunkSize() {
+            return this.chunkSize;
+        }
+
+        /**
+         * Sets the maximum size of the chunks sent when using chunked
+         * transfer. Data read from the body is coalesced up to this size.
+         * Producers whose data must reach the client right away should use
+         * a {@link StreamingBody} and flush the stream it writes to.
+         */
+        public void setChunkSize(int chunkSize) {
+            if (chunkSize <= 0) {
+                throw new IllegalArgumentException("chunk size must be positive: " + chunkSize);
+            }
+            this.chunkSize = chunkSize;
+        }
+
         public void setChunkedTransfer(boolean chunkedTransfer) {
+            detachTemplate();
             this.chunkedTransfer = chunkedTransfer;
         }
 
         public void setData(InputStream data) {
+            detachTemplate();
             this.data = data;
+            this.bodyBuffer = null;
         }
 
         public void setMimeType(String mimeType) {
+            detachTemplate();
             this.mimeType = mimeType;
         }
 
@@ -1765,7 +3092,187 @@ public abstract class NanoHTTPD {
         }
 
         public void setStatus(IStatus status) {
+            detachTemplate();
+            this.status = status;
+        }
+
+        /**
+         * Serializes this response, headers and body, into a template that
+         * creates any number of identical responses. The responses send the
+         * pre-serialized bytes with only the Date and Connection headers
+         * filled in, as long as they are left unchanged (e.g. no cookies are
+         * set on them). Useful for constant responses like health checks or
+         * error pages.
+         * <p/>
+         * The body is read completely, so this response can't be sent
+         * afterwards.
+         */
+        public ResponseTemplate freeze() throws IOException {
+            if (this.streamingBody != null) {
+                throw new IllegalStateException("streaming responses can't be frozen");
+            }
+            detachTemplate();
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(this.contentLength > 0 ? (int) this.contentLength : 256);
+            sendBody(buffer, this.chunkedTransfer ? -1 : this.contentLength);
+            safeClose(this.data);
+            return new ResponseTemplate(this.status, this.mimeType, this.header, buffer.toByteArray());
+        }
+
+        /**
+         * Turns a response created from a template into a regular one that
+         * can be changed.
+         */
+        private void detachTemplate() {
+            ResponseTemplate frozen = this.template;
+            if (frozen == null) {
+                return;
+            }
+            this.template = null;
+            for (Entry<String, String> entry : frozen.headers.entrySet()) {
+                if (!this.lowerCaseHeader.containsKey(entry.getKey().toLowerCase())) {
+                    this.header.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * An immutable, pre-serialized response, see {@link Response#freeze()}.
+     */
+    public static final class ResponseTemplate {
+
+        private static final byte[] CRLF = "\r\n".getBytes();
+
+        private static final byte[] KEEP_ALIVE = "Connection: keep-alive\r\n".getBytes();
+
+        private static final byte[] CLOSE = "Connection: close\r\n".getBytes();
+
+        private static final class DateLine {
+
+            private final long second;
+
+            private final byte[] bytes;
+
+            private DateLine(long second, byte[] bytes) {
+                this.second = second;
+                this.bytes = bytes;
+            }
+        }
+
+        /**
+         * The Date header line of the current second, shared by all
+         * templates.
+         */
+        private static volatile DateLine currentDate = new DateLine(-1, null);
+
+        private final IStatus status;
+
+        private final String mimeType;
+
+        private final Map<String, String> headers;
+
+        private final Map<String, String> lowerCaseHeaders;
+
+        /**
+         * Status line and headers, without Date and Connection.
+         */
+        private final byte[] head;
+
+        private final byte[] body;
+
+        /**
+         * Whether the Connection header is part of the template instead of
+         * following the keep-alive setting of each response.
+         */
+        private final boolean fixedConnection;
+
+        private ResponseTemplate(IStatus status, String mimeType, Map<String, String> responseHeaders, byte[] body) throws UnsupportedEncodingException {
+            if (status == null) {
+                throw new IllegalArgumentException("status can't be null");
+            }
             this.status = status;
+            this.mimeType = mimeType;
+            this.body = body;
+            Map<String, String> copy = new HashMap<String, String>();
+            Map<String, String> lowerCaseCopy = new HashMap<String, String>();
+            StringBuilder sb = new StringBuilder();
+            sb.append("HTTP/1.1 ").append(status.getDescription()).append(" \r\n");
+            if (mimeType != null) {
+                sb.append("Content-Type: ").append(mimeType).append("\r\n");
+            }
+            for (Entry<String, String> entry : responseHeaders.entrySet()) {
+                String lowerCaseName = entry.getKey().toLowerCase();
+                if ("date".equals(lowerCaseName) || "content-length".equals(lowerCaseName)) {
+                    continue;
+                }
+                copy.put(entry.getKey(), entry.getValue());
+                lowerCaseCopy.put(lowerCaseName, entry.getValue());
+                sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+            }
+            String length = String.valueOf(body.length);
+            copy.put("Content-Length", length);
+            lowerCaseCopy.put("content-length", length);
+            sb.append("Content-Length: ").append(length).append("\r\n");
+            this.headers = Collections.unmodifiableMap(copy);
+            this.lowerCaseHeaders = Collections.unmodifiableMap(lowerCaseCopy);
+            this.fixedConnection = lowerCaseCopy.containsKey("connection");
+            this.head = sb.toString().getBytes(new ContentType(mimeType).getEncoding());
+        }
+
+        /**
+         * @return a new response sending this template.
+         */
+        public Response newResponse() {
+            Response response = new Response(this.status, this.mimeType, new ByteArrayInputStream(this.body), this.body.length);
+            response.bodyBuffer = ByteBuffer.wrap(this.body);
+            response.template = this;
+            return response;
+        }
+
+        public byte[] getBody() {
+            return this.body.clone();
+        }
+
+        public Map<String, String> getHeaders() {
+            return this.headers;
+        }
+
+        public String getMimeType() {
+            return this.mimeType;
+        }
+
+        public IStatus getStatus() {
+            return this.status;
+        }
+
+        private void send(OutputStream outputStream, boolean keepAlive) throws IOException {
+            byte[] date = dateHeader();
+            byte[] connection = this.fixedConnection ? new byte[0] : keepAlive ? KEEP_ALIVE : CLOSE;
+            byte[] message = new byte[this.head.length + date.length + connection.length + CRLF.length + this.body.length];
+            int pos = 0;
+            System.arraycopy(this.head, 0, message, pos, this.head.length);
+            pos += this.head.length;
+            System.arraycopy(date, 0, message, pos, date.length);
+            pos += date.length;
+            System.arraycopy(connection, 0, message, pos, connection.length);
+            pos += connection.length;
+            System.arraycopy(CRLF, 0, message, pos, CRLF.length);
+            pos += CRLF.length;
+            System.arraycopy(this.body, 0, message, pos, this.body.length);
+            outputStream.write(message);
+            outputStream.flush();
+        }
+
+        private static byte[] dateHeader() {
+            long second = System.currentTimeMillis() / 1000;
+            DateLine cached = currentDate;
+            if (cached.second != second) {
+                SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+                gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+                cached = new DateLine(second, ("Date: " + gmtFrmt.format(new Date(second * 1000)) + "\r\n").getBytes());
+                currentDate = cached;
+            }
+            return cached.bytes;
         }
     }
 
@@ -2020,6 +3527,43 @@ public abstract class NanoHTTPD {
      */
     private TempFileManagerFactory tempFileManagerFactory;
 
+    /**
+     * Filters run before serve(), in order.
+     */
+    private final List<ServeFilter> serveFilters = new CopyOnWriteArrayList<ServeFilter>();
+
+    /**
+     * Where a line is written for every request, null for none.
+     */
+    private volatile AccessLog accessLog;
+
+    /**
+     * Limits on the size of requests, checked while parsing them.
+     */
+    private volatile RequestLimits requestLimits = new RequestLimits();
+
+    /**
+     * Closes the connections of slow clients, null to let them be.
+     */
+    private volatile SlowClientGuard slowClientGuard;
+
+    /**
+     * Limits the rate at which all responses together are sent, null for no
+     * limit.
+     */
+    private volatile BandwidthLimiter bandwidthLimiter;
+
+    /**
+     * The rate each connection may send responses at in bytes per second,
+     * 0 for no limit.
+     */
+    private volatile long connectionBandwidthLimit;
+
+    /**
+     * Content-codings offered to clients, in order of preference.
+     */
+    private final List<ContentEncoder> contentEncoders = new CopyOnWriteArrayList<ContentEncoder>(Arrays.<ContentEncoder> asList(new GzipEncoder(), new DeflateEncoder()));
+
     /**
      * Constructs an HTTP server on given port.
      */
@@ -2134,13 +3678,98 @@ public abstract class NanoHTTPD {
     }
 
     /**
-     * @return true if the gzip compression should be used if the client accepts
-     *         it. Default this option is on for text content and off for
-     *         everything. Override this for custom semantics.
+     * @return true if a content-coding (gzip or any other of
+     *         {@link #getContentEncoders()}) should be used if the client
+     *         accepts it. Default this option is on for text content and off
+     *         for everything. Override this for custom semantics.
      */
     @SuppressWarnings("static-method")
     protected boolean useGzipWhenAccepted(Response r) {
-        return r.getMimeType() != null && r.getMimeType().toLowerCase().contains("text/");
+        // event streams are flushed event by event, which compression would
+        // hold back
+        return r.getMimeType() != null && r.getMimeType().toLowerCase().contains("text/") && !r.getMimeType().toLowerCase().contains("text/event-stream");
+    }
+
+    /**
+     * @return true if at least one of the content-codings would encode the
+     *         body of the given response, i.e. if its representation depends
+     *         on the Accept-Encoding request header.
+     */
+    private boolean isContentEncodingApplicable(Response r) {
+        if (r.getHeader("content-length") != null || r.getHeader("content-encoding") != null) {
+            return false;
+        }
+        long length = r.chunkedTransfer ? -1 : r.contentLength;
+        for (ContentEncoder encoder : this.contentEncoders) {
+            if (encoder.shouldEncode(length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Picks the content-coding for a response from the Accept-Encoding
+     * request header: the encoder with the highest quality value wins, ties
+     * go to the encoder listed first in {@link #getContentEncoders()}. Codings
+     * with q=0 are never chosen, "*" stands for all codings not listed
+     * explicitly.
+     * 
+     * @param acceptEncoding
+     *            the Accept-Encoding header, may be null.
+     * @return the encoder to use, or null to send the body as is.
+     */
+    protected ContentEncoder selectContentEncoder(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        Map<String, Float> qualities = new HashMap<String, Float>();
+        StringTokenizer st = new StringTokenizer(acceptEncoding, ",");
+        while (st.hasMoreTokens()) {
+            String element = st.nextToken();
+            int semicolon = element.indexOf(';');
+            String coding = (semicolon >= 0 ? element.substring(0, semicolon) : element).trim().toLowerCase(Locale.US);
+            if ("x-gzip".equals(coding)) {
+                coding = "gzip";
+            }
+            float q = 1f;
+            if (semicolon >= 0) {
+                q = parseQuality(element.substring(semicolon + 1));
+            }
+            if (!coding.isEmpty()) {
+                qualities.put(coding, q);
+            }
+        }
+        Float wildcard = qualities.get("*");
+        ContentEncoder best = null;
+        float bestQuality = 0f;
+        for (ContentEncoder encoder : this.contentEncoders) {
+            Float q = qualities.get(encoder.getEncoding().toLowerCase(Locale.US));
+            if (q == null) {
+                q = wildcard;
+            }
+            if (q != null && q > bestQuality) {
+                best = encoder;
+                bestQuality = q;
+            }
+        }
+        return best;
+    }
+
+    private static float parseQuality(String parameters) {
+        StringTokenizer st = new StringTokenizer(parameters, ";");
+        while (st.hasMoreTokens()) {
+            String parameter = st.nextToken();
+            int eq = parameter.indexOf('=');
+            if (eq > 0 && "q".equalsIgnoreCase(parameter.substring(0, eq).trim())) {
+                try {
+                    return Float.parseFloat(parameter.substring(eq + 1).trim());
+                } catch (NumberFormatException e) {
+                    return 0f;
+                }
+            }
+        }
+        return 1f;
     }
 
     public final int getListeningPort() {
@@ -2167,6 +3796,131 @@ public abstract class NanoHTTPD {
         return tempFileManagerFactory;
     }
 
+    /**
+     * The content-codings offered to clients, gzip and deflate by default.
+     * The list is live: add an encoder (e.g. Brotli) to offer it, put it
+     * first to prefer it when the client accepts several codings with the
+     * same quality, or replace an entry to change its compression settings.
+     * 
+     * @return the modifiable list of encoders, in order of preference.
+     */
+    public List<ContentEncoder> getContentEncoders() {
+        return contentEncoders;
+    }
+
+    /**
+     * @return the access log, or null if requests are not logged.
+     */
+    public AccessLog getAccessLog() {
+        return this.accessLog;
+    }
+
+    /**
+     * Logs every request to the given access log, once its response is
+     * sent. The log is not closed when the server stops.
+     * 
+     * @param accessLog
+     *            the log, or null to stop logging.
+     */
+    public void setAccessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    public BandwidthLimiter getBandwidthLimiter() {
+        return this.bandwidthLimiter;
+    }
+
+    public RequestLimits getRequestLimits() {
+        return this.requestLimits;
+    }
+
+    /**
+     * Changes the limits on the size of requests, see {@link RequestLimits}.
+     */
+    public void setRequestLimits(RequestLimits requestLimits) {
+        if (requestLimits == null) {
+            throw new NullPointerException("requestLimits");
+        }
+        this.requestLimits = requestLimits;
+    }
+
+    public SlowClientGuard getSlowClientGuard() {
+        return this.slowClientGuard;
+    }
+
+    /**
+     * Closes the connections of clients that send requests or read
+     * responses too slowly, see {@link SlowClientGuard}. {@link #stop()}
+     * closes the guard.
+     * 
+     * @param slowClientGuard
+     *            the guard, or null to wait for slow clients as long as the
+     *            socket read timeout allows.
+     */
+    public void setSlowClientGuard(SlowClientGuard slowClientGuard) {
+        this.slowClientGuard = slowClientGuard;
+    }
+
+    /**
+     * Limits the rate at which the responses of all connections together
+     * are sent, shared fairly among them.
+     * 
+     * @param bandwidthLimiter
+     *            the limiter, or null for no limit.
+     */
+    public void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        this.bandwidthLimiter = bandwidthLimiter;
+    }
+
+    public long getConnectionBandwidthLimit() {
+        return this.connectionBandwidthLimit;
+    }
+
+    /**
+     * Limits the rate at which every single connection sends responses.
+     * 
+     * @param bytesPerSecond
+     *            the rate, or 0 for no limit.
+     */
+    public void setConnectionBandwidthLimit(long bytesPerSecond) {
+        this.connectionBandwidthLimit = bytesPerSecond;
+    }
+
+    /**
+     * The filters requests go through before reaching
+     * {@link #serve(IHTTPSession)}, empty by default. The list is live and
+     * may be changed while the server is running.
+     * 
+     * @return the modifiable list of filters, in the order they run.
+     */
+    public List<ServeFilter> getServeFilters() {
+        return serveFilters;
+    }
+
+    /**
+     * Runs a request through the filters, from the given one on, and finally
+     * through serve().
+     */
+    private final class FilterChain implements ServeFilter.Chain {
+
+        private final ServeFilter[] filters;
+
+        private final int next;
+
+        private FilterChain(ServeFilter[] filters, int next) {
+            this.filters = filters;
+            this.next = next;
+        }
+
+        @Override
+        public Response proceed(IHTTPSession session) {
+            if (this.next < this.filters.length) {
+                return this.filters[this.next].filter(session, new FilterChain(this.filters, this.next + 1));
+            }
+            return serve(session);
+        }
+    }
+
     /**
      * Call before start() to serve over HTTPS instead of HTTP.
      */
@@ -2181,6 +3935,24 @@ public abstract class NanoHTTPD {
         return new Response(status, mimeType, data, -1);
     }
 
+    /**
+     * Create a response with unknown length (using HTTP 1.1 chunking) whose
+     * body is written by the given callback.
+     */
+    public static Response newStreamingResponse(IStatus status, String mimeType, StreamingBody body) {
+        return newStreamingResponse(status, mimeType, body, -1);
+    }
+
+    /**
+     * Create a response with known length whose body is written by the given
+     * callback, which must write exactly totalBytes bytes.
+     */
+    public static Response newStreamingResponse(IStatus status, String mimeType, StreamingBody body, long totalBytes) {
+        Response response = new Response(status, mimeType, new ByteArrayInputStream(new byte[0]), totalBytes);
+        response.streamingBody = body;
+        return response;
+    }
+
     /**
      * Create a response with known length.
      */
@@ -2188,6 +3960,33 @@ public abstract class NanoHTTPD {
         return new Response(status, mimeType, data, totalBytes);
     }
 
+    /**
+     * Create a response with the given bytes as body. The array is sent as
+     * is, without being copied, so it must not be modified afterwards.
+     */
+    public static Response newFixedLengthResponse(IStatus status, String mimeType, byte[] data) {
+        return newFixedLengthResponse(status, mimeType, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a response with the remaining bytes of the given buffer as body.
+     * The content is not copied and the position of the buffer is left
+     * alone, so the same (read-only) buffer can be shared by any number of
+     * responses as long as its content doesn't change.
+     */
+    public static Response newFixedLengthResponse(IStatus status, String mimeType, ByteBuffer data) {
+        ByteBuffer body = data.duplicate();
+        InputStream stream;
+        if (body.hasArray()) {
+            stream = new ByteArrayInputStream(body.array(), body.arrayOffset() + body.position(), body.remaining());
+        } else {
+            stream = new ByteBufferInputStream(data.duplicate());
+        }
+        Response response = new Response(status, mimeType, stream, body.remaining());
+        response.bodyBuffer = body;
+        return response;
+    }
+
     /**
      * Create a text response with known length.
      */
@@ -2207,7 +4006,7 @@ public abstract class NanoHTTPD {
                 NanoHTTPD.LOG.log(Level.SEVERE, "encoding problem, responding nothing", e);
                 bytes = new byte[0];
             }
-            return newFixedLengthResponse(status, contentType.getContentTypeHeader(), new ByteArrayInputStream(bytes), bytes.length);
+            return newFixedLengthResponse(status, contentType.getContentTypeHeader(), bytes);
         }
     }
 
@@ -2317,6 +4116,15 @@ public abstract class NanoHTTPD {
      *             if the socket is in use.
      */
     public void start(final int timeout, boolean daemon) throws IOException {
+        for (ServeFilter filter : this.serveFilters) {
+            if (filter instanceof ServeFilter.Lifecycle) {
+                try {
+                    ((ServeFilter.Lifecycle) filter).onStart();
+                } catch (IOException e) {
+                    NanoHTTPD.LOG.log(Level.WARNING, "Could not start serve filter " + filter, e);
+                }
+            }
+        }
         this.myServerSocket = this.getServerSocketFactory().create();
         this.myServerSocket.setReuseAddress(true);
 
@@ -2352,6 +4160,19 @@ public abstract class NanoHTTPD {
         } catch (Exception e) {
             NanoHTTPD.LOG.log(Level.SEVERE, "Could not stop all connections", e);
         }
+        SlowClientGuard guard = this.slowClientGuard;
+        if (guard != null) {
+            guard.close();
+        }
+        for (ServeFilter filter : this.serveFilters) {
+            if (filter instanceof ServeFilter.Lifecycle) {
+                try {
+                    ((ServeFilter.Lifecycle) filter).onStop();
+                } catch (IOException e) {
+                    NanoHTTPD.LOG.log(Level.WARNING, "Could not stop serve filter " + filter, e);
+                }
+            }
+        }
     }
 
     public final boolean wasStarted() {
@@ -0,0 +1,250 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import fi.iki.elonen.NanoHTTPD.IHTTPSession;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import fi.iki.elonen.NanoHTTPD.ServeFilter;
+
+/**
+ * Lets identical concurrent GET requests share a single call to serve().
+ * <p/>
+ * The first request for a key is passed on; requests with the same key that
+ * arrive while it is being served wait for it and get a copy of its response,
+ * which is read into memory for that purpose. A waiter that times out, or
+ * whose leader produced a response that can't be shared (a status that is
+ * not cacheable by default, unknown or too large length, cookies being set,
+ * Cache-Control private or no-store, or a Vary on headers that are not part
+ * of the key), is served on its own.
+ * <p/>
+ * Requests are identified by URI, query string and the values of the
+ * request headers given to the constructor. Requests with an Authorization
+ * or Cookie header are never coalesced, their responses may be personal, and
+ * neither are those with a Range or conditional header, which may be
+ * answered with a partial response or none at all.
+ * <p/>
+ * Put it after a {@link ResponseCache} in the filter list so that only cache
+ * misses are coalesced.
+ */
+public class RequestCoalescer implements ServeFilter {
+
+    private static final Logger LOG = Logger.getLogger(RequestCoalescer.class.getName());
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+    public static final int DEFAULT_MAX_BODY_SIZE = 1024 * 1024;
+
+    private static final class Flight {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        /**
+         * The shared response, or null if there is none to share. Written
+         * before the latch is released.
+         */
+        private volatile BufferedResponse response;
+    }
+
+    private final ConcurrentHashMap<String, Flight> inFlight = new ConcurrentHashMap<String, Flight>();
+
+    private final long timeoutMillis;
+
+    private final int maxBodySize;
+
+    private final String[] keyHeaders;
+
+    private final AtomicLong leaders = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    public RequestCoalescer() {
+        this(DEFAULT_TIMEOUT_MILLIS, DEFAULT_MAX_BODY_SIZE);
+    }
+
+    /**
+     * @param timeoutMillis
+     *            how long a request waits for the response of an identical
+     *            one before it is served on its own.
+     * @param maxBodySize
+     *            the size above which responses are not shared.
+     * @param keyHeaders
+     *            the request headers whose values must be the same for
+     *            requests to be coalesced, e.g. those the responses vary by.
+     */
+    public RequestCoalescer(long timeoutMillis, int maxBodySize, String... keyHeaders) {
+        if (timeoutMillis <= 0 || maxBodySize < 0) {
+            throw new IllegalArgumentException("invalid coalescer settings");
+        }
+        this.timeoutMillis = timeoutMillis;
+        this.maxBodySize = maxBodySize;
+        this.keyHeaders = new String[keyHeaders.length];
+        for (int i = 0; i < keyHeaders.length; i++) {
+            this.keyHeaders[i] = keyHeaders[i].toLowerCase();
+        }
+    }
+
+    @Override
+    public Response filter(IHTTPSession session, Chain chain) {
+        Map<String, String> headers = session.getHeaders();
+        if (session.getMethod() != Method.GET || headers.containsKey("authorization") || headers.containsKey("cookie") || ResponseCache.isConditional(headers)) {
+            return chain.proceed(session);
+        }
+        String key = key(session);
+        Flight flight = new Flight();
+        Flight leader = this.inFlight.putIfAbsent(key, flight);
+        if (leader != null) {
+            return await(leader, session, chain);
+        }
+        this.leaders.incrementAndGet();
+        Response response = null;
+        try {
+            response = chain.proceed(session);
+            if (isShareable(response)) {
+                try {
+                    flight.response = BufferedResponse.of(response);
+                    response = flight.response.newResponse();
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Could not read response for sharing", e);
+                    response = NanoHTTPD.newFixedLengthResponse(Response.Status.INTERNAL_ERROR, NanoHTTPD.MIME_PLAINTEXT, "SERVER INTERNAL ERROR: IOException: " + e.getMessage());
+                }
+            }
+            return response;
+        } finally {
+            this.inFlight.remove(key, flight);
+            flight.done.countDown();
+        }
+    }
+
+    /**
+     * @return the number of coalescable requests that were passed on because
+     *         no identical one was being served, whether or not others waited
+     *         for them.
+     */
+    public long getLeaderCount() {
+        return this.leaders.get();
+    }
+
+    /**
+     * @return the number of requests answered with the response of an
+     *         identical one.
+     */
+    public long getCoalescedCount() {
+        return this.coalesced.get();
+    }
+
+    /**
+     * @return the number of requests that waited for an identical one but
+     *         had to be served on their own after all.
+     */
+    public long getFallbackCount() {
+        return this.fallbacks.get();
+    }
+
+    private Response await(Flight leader, IHTTPSession session, Chain chain) {
+        try {
+            if (leader.done.await(this.timeoutMillis, TimeUnit.MILLISECONDS)) {
+                BufferedResponse shared = leader.response;
+                if (shared != null) {
+                    this.coalesced.incrementAndGet();
+                    return shared.newResponse();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.fallbacks.incrementAndGet();
+        return chain.proceed(session);
+    }
+
+    private boolean isShareable(Response response) {
+        if (response == null || !ResponseCache.isCacheableStatus(response.getStatus())) {
+            return false;
+        }
+        long length = response.getContentLength();
+        if (length < 0 || length > this.maxBodySize || response.getHeader("set-cookie") != null) {
+            return false;
+        }
+        String cacheControl = response.getHeader("cache-control");
+        if (ResponseCache.hasDirective(cacheControl, "private") || ResponseCache.hasDirective(cacheControl, "no-store")) {
+            return false;
+        }
+        String vary = response.getHeader("vary");
+        if (vary != null) {
+            for (String name : vary.split(",")) {
+                if (!isKeyHeader(name.trim().toLowerCase())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean isKeyHeader(String name) {
+        if (name.length() == 0) {
+            return true;
+        }
+        for (String keyHeader : this.keyHeaders) {
+            if (keyHeader.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String key(IHTTPSession session) {
+        String query = session.getQueryParameterString();
+        StringBuilder sb = new StringBuilder(session.getUri());
+        if (query != null) {
+            sb.append('?').append(query);
+        }
+        Map<String, String> headers = session.getHeaders();
+        for (String name : this.keyHeaders) {
+            String value = headers.get(name);
+            sb.append('\n').append(name).append('=').append(value == null ? "" : value);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,125 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+/**
+ * Limits on the size of the requests a {@link NanoHTTPD} accepts, see
+ * {@link NanoHTTPD#setRequestLimits(RequestLimits)}. They are checked while
+ * the request is parsed, before the buffers holding it grow, and requests
+ * over a limit are answered right away and the connection closed:
+ * <ul>
+ * <li>414 URI Too Long for a longer request line;</li>
+ * <li>431 Request Header Fields Too Large for more header bytes or header
+ * fields;</li>
+ * <li>400 Bad Request for more query, form or multipart parameters, which
+ * would otherwise all go into one hash map;</li>
+ * <li>413 Payload Too Large for a larger Content-Length, before serve() is
+ * called.</li>
+ * </ul>
+ * The header bytes include the request line and the blank line ending the
+ * headers.
+ */
+public class RequestLimits {
+
+    public static final int DEFAULT_MAX_REQUEST_LINE_LENGTH = 8192;
+
+    public static final int DEFAULT_MAX_HEADER_BYTES = 8192;
+
+    public static final int DEFAULT_MAX_HEADER_COUNT = 100;
+
+    public static final int DEFAULT_MAX_PARAMETER_COUNT = 1000;
+
+    /**
+     * Request bodies are not limited by default.
+     */
+    public static final long DEFAULT_MAX_BODY_SIZE = Long.MAX_VALUE;
+
+    private final int maxRequestLineLength;
+
+    private final int maxHeaderBytes;
+
+    private final int maxHeaderCount;
+
+    private final int maxParameterCount;
+
+    private final long maxBodySize;
+
+    public RequestLimits() {
+        this(DEFAULT_MAX_REQUEST_LINE_LENGTH, DEFAULT_MAX_HEADER_BYTES, DEFAULT_MAX_HEADER_COUNT, DEFAULT_MAX_PARAMETER_COUNT, DEFAULT_MAX_BODY_SIZE);
+    }
+
+    /**
+     * @param maxRequestLineLength
+     *            the longest request line, without the line break.
+     * @param maxHeaderBytes
+     *            the most bytes of request line and headers together.
+     * @param maxHeaderCount
+     *            the most header fields.
+     * @param maxParameterCount
+     *            the most parameters in the query string, and in a form or
+     *            multipart body.
+     * @param maxBodySize
+     *            the largest Content-Length.
+     */
+    public RequestLimits(int maxRequestLineLength, int maxHeaderBytes, int maxHeaderCount, int maxParameterCount, long maxBodySize) {
+        if (maxRequestLineLength <= 0 || maxHeaderBytes <= 0 || maxHeaderCount < 0 || maxParameterCount < 0 || maxBodySize < 0) {
+            throw new IllegalArgumentException("limits must not be negative");
+        }
+        this.maxRequestLineLength = maxRequestLineLength;
+        this.maxHeaderBytes = maxHeaderBytes;
+        this.maxHeaderCount = maxHeaderCount;
+        this.maxParameterCount = maxParameterCount;
+        this.maxBodySize = maxBodySize;
+    }
+
+    public int getMaxRequestLineLength() {
+        return this.maxRequestLineLength;
+    }
+
+    public int getMaxHeaderBytes() {
+        return this.maxHeaderBytes;
+    }
+
+    public int getMaxHeaderCount() {
+        return this.maxHeaderCount;
+    }
+
+    public int getMaxParameterCount() {
+        return this.maxParameterCount;
+    }
+
+    public long getMaxBodySize() {
+        return this.maxBodySize;
+    }
+}
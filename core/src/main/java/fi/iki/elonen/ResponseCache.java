@@ -0,0 +1,613 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import fi.iki.elonen.NanoHTTPD.IHTTPSession;
+import fi.iki.elonen.NanoHTTPD.Method;
+import fi.iki.elonen.NanoHTTPD.Response;
+import fi.iki.elonen.NanoHTTPD.Response.IStatus;
+import fi.iki.elonen.NanoHTTPD.ServeFilter;
+
+/**
+ * In-memory cache of GET responses, answering repeated requests without
+ * calling serve().
+ * <p/>
+ * A response is stored if its Cache-Control header allows it to be kept by a
+ * shared cache for some time (s-maxage or max-age) and it has a known length
+ * that is not too large. It is then served for that time to requests with
+ * the same URI and query string and the same values of the request headers
+ * named by its Vary header. Only responses with a status that is cacheable
+ * by default (200, 203, 204, 300, 301, 404 and 410) are stored. Requests with
+ * an Authorization header, with Cache-Control: no-store or with a Range or
+ * conditional header bypass the cache; Cache-Control: no-cache fetches a
+ * fresh response.
+ * <p/>
+ * Entries are kept in least recently used order and the oldest ones are
+ * evicted once the total size exceeds the limit.
+ * <p/>
+ * With a snapshot file set, the entries are saved when the server stops and
+ * loaded back when it starts, see {@link CacheSnapshot}. Loaded entries are
+ * served straight from the mapped file and checked on their first hit.
+ * <p/>
+ * Usage:
+ * 
+ * <pre>
+ * server.getServeFilters().add(new ResponseCache(32 * 1024 * 1024));
+ * </pre>
+ */
+public class ResponseCache implements ServeFilter, ServeFilter.Lifecycle {
+
+    private static final Logger LOG = Logger.getLogger(ResponseCache.class.getName());
+
+    public static final long DEFAULT_MAX_SIZE = 16 * 1024 * 1024;
+
+    public static final int DEFAULT_MAX_ENTRY_SIZE = 1024 * 1024;
+
+    /**
+     * Rough size of the bookkeeping of an entry, counted on top of its
+     * headers and body.
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    /**
+     * Request headers asking for part of the response or for a response
+     * depending on the representation the client has, which a cached full
+     * response cannot answer.
+     */
+    private static final String[] CONDITIONAL_HEADERS = {
+        "range",
+        "if-range",
+        "if-match",
+        "if-none-match",
+        "if-modified-since",
+        "if-unmodified-since"
+    };
+
+    private static final class CachedResponse {
+
+        private final BufferedResponse response;
+
+        private final long stored;
+
+        private final long expires;
+
+        private final int size;
+
+        /**
+         * The snapshot entry this response was loaded from, until its body
+         * has been checked.
+         */
+        private volatile CacheSnapshot.Entry unchecked;
+
+        private CachedResponse(BufferedResponse response, long stored, long expires) {
+            this.response = response;
+            this.stored = stored;
+            this.expires = expires;
+            this.size = ENTRY_OVERHEAD + response.getSize();
+        }
+
+        private boolean isValid() {
+            CacheSnapshot.Entry entry = this.unchecked;
+            if (entry == null) {
+                return true;
+            }
+            if (!entry.isValid()) {
+                return false;
+            }
+            this.unchecked = null;
+            return true;
+        }
+
+        private Response newResponse(long now) {
+            Response r = this.response.newResponse();
+            r.addHeader("Age", String.valueOf((now - this.stored) / 1000));
+            return r;
+        }
+    }
+
+    private final long maxSize;
+
+    private final int maxEntrySize;
+
+    /**
+     * Cached responses by request key, least recently used first.
+     */
+    private final LinkedHashMap<String, CachedResponse> entries = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+
+    /**
+     * The request headers named by the Vary header of the last response
+     * stored for a URI, needed to build the keys of its entries.
+     */
+    private final LinkedHashMap<String, String[]> varies = new LinkedHashMap<String, String[]>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+            return size() > ResponseCache.this.entries.size() + 64;
+        }
+    };
+
+    private long size;
+
+    private volatile File snapshotFile;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong malformedSnapshotEntries = new AtomicLong();
+
+    public ResponseCache() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_MAX_ENTRY_SIZE);
+    }
+
+    public ResponseCache(long maxSize) {
+        this(maxSize, (int) Math.min(DEFAULT_MAX_ENTRY_SIZE, maxSize));
+    }
+
+    /**
+     * @param maxSize
+     *            the approximate number of bytes all entries may take.
+     * @param maxEntrySize
+     *            the size above which responses are not cached.
+     */
+    public ResponseCache(long maxSize, int maxEntrySize) {
+        if (maxSize <= 0 || maxEntrySize <= 0 || maxEntrySize > maxSize) {
+            throw new IllegalArgumentException("invalid cache size");
+        }
+        this.maxSize = maxSize;
+        this.maxEntrySize = maxEntrySize;
+    }
+
+    @Override
+    public Response filter(IHTTPSession session, Chain chain) {
+        Map<String, String> requestHeaders = session.getHeaders();
+        String requestCacheControl = requestHeaders.get("cache-control");
+        if (session.getMethod() != Method.GET || requestHeaders.containsKey("authorization") || hasDirective(requestCacheControl, "no-store") || isConditional(requestHeaders)) {
+            return chain.proceed(session);
+        }
+        String uriKey = uriKey(session);
+        long now = System.currentTimeMillis();
+        if (!hasDirective(requestCacheControl, "no-cache") && !"no-cache".equalsIgnoreCase(requestHeaders.get("pragma"))) {
+            CachedResponse cached = lookup(uriKey, requestHeaders, now);
+            if (cached != null) {
+                this.hits.incrementAndGet();
+                return cached.newResponse(now);
+            }
+        }
+        this.misses.incrementAndGet();
+        Response response = chain.proceed(session);
+        return store(uriKey, requestHeaders, response, now);
+    }
+
+    /**
+     * Sets the file the entries are saved to when the server stops and
+     * loaded from when it starts, or null to not keep them.
+     */
+    public void setSnapshotFile(File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    public File getSnapshotFile() {
+        return this.snapshotFile;
+    }
+
+    @Override
+    public void onStart() throws IOException {
+        File file = this.snapshotFile;
+        if (file != null && file.isFile()) {
+            loadSnapshot(file);
+        }
+    }
+
+    @Override
+    public void onStop() throws IOException {
+        File file = this.snapshotFile;
+        if (file != null) {
+            saveSnapshot(file);
+        }
+    }
+
+    /**
+     * Writes the fresh entries to the given file.
+     */
+    public void saveSnapshot(File file) throws IOException {
+        long now = System.currentTimeMillis();
+        List<CacheSnapshot.Entry> snapshot = new ArrayList<CacheSnapshot.Entry>();
+        synchronized (this.entries) {
+            for (Map.Entry<String, CachedResponse> entry : this.entries.entrySet()) {
+                CachedResponse cached = entry.getValue();
+                String uriKey = entry.getKey().substring(0, entry.getKey().indexOf('\n'));
+                String[] vary = this.varies.get(uriKey);
+                if (cached.expires <= now || vary == null || !cached.isValid()) {
+                    continue;
+                }
+                BufferedResponse response = cached.response;
+                Map<String, String> metadata = new LinkedHashMap<String, String>();
+                metadata.put(":uri", uriKey);
+                metadata.put(":vary", join(vary));
+                metadata.put(":stored", String.valueOf(cached.stored));
+                metadata.put(":status", String.valueOf(response.getStatus().getRequestStatus()));
+                metadata.put(":description", response.getStatus().getDescription());
+                if (response.getMimeType() != null) {
+                    metadata.put(":mime", response.getMimeType());
+                }
+                for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+                    metadata.put(header.getKey(), header.getValue());
+                }
+                snapshot.add(new CacheSnapshot.Entry(entry.getKey(), metadata, cached.expires, response.getBody()));
+            }
+        }
+        CacheSnapshot.write(file, snapshot);
+    }
+
+    /**
+     * Adds the fresh entries of the given snapshot file to the cache. Entries
+     * with malformed metadata are skipped and counted.
+     * 
+     * @return the number of entries loaded.
+     */
+    public int loadSnapshot(File file) throws IOException {
+        long now = System.currentTimeMillis();
+        int loaded = 0;
+        for (CacheSnapshot.Entry entry : CacheSnapshot.read(file)) {
+            if (entry.getExpires() <= now) {
+                continue;
+            }
+            Map<String, String> metadata = entry.getMetadata();
+            Map<String, String> headers = new LinkedHashMap<String, String>();
+            for (Map.Entry<String, String> meta : metadata.entrySet()) {
+                if (!meta.getKey().startsWith(":")) {
+                    headers.put(meta.getKey(), meta.getValue());
+                }
+            }
+            String uriKey = metadata.get(":uri");
+            String varyNames = metadata.get(":vary");
+            int code;
+            long stored;
+            try {
+                code = Integer.parseInt(metadata.get(":status"));
+                stored = Long.parseLong(metadata.get(":stored"));
+            } catch (NumberFormatException e) {
+                this.malformedSnapshotEntries.incrementAndGet();
+                continue;
+            }
+            if (uriKey == null || varyNames == null || !entry.getKey().startsWith(uriKey + '\n')) {
+                this.malformedSnapshotEntries.incrementAndGet();
+                continue;
+            }
+            IStatus status = status(code, metadata.get(":description"));
+            BufferedResponse response = new BufferedResponse(status, metadata.get(":mime"), headers, entry.getBody());
+            CachedResponse cached = new CachedResponse(response, stored, entry.getExpires());
+            cached.unchecked = entry;
+            String[] vary = varyNames.length() == 0 ? new String[0] : varyNames.split(",");
+            synchronized (this.entries) {
+                put(uriKey, vary, entry.getKey(), cached);
+            }
+            loaded++;
+        }
+        return loaded;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        synchronized (this.entries) {
+            this.entries.clear();
+            this.varies.clear();
+            this.size = 0;
+        }
+    }
+
+    public int getEntryCount() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    /**
+     * @return the approximate number of bytes taken by the entries.
+     */
+    public long getSize() {
+        synchronized (this.entries) {
+            return this.size;
+        }
+    }
+
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+    /**
+     * @return the share of cacheable requests answered from the cache,
+     *         between 0 and 1.
+     */
+    public double getHitRate() {
+        long hitCount = this.hits.get();
+        long total = hitCount + this.misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * @return the number of entries removed to make room for others.
+     */
+    public long getEvictionCount() {
+        return this.evictions.get();
+    }
+
+    /**
+     * @return the number of snapshot entries that were not loaded because
+     *         their metadata is malformed.
+     */
+    public long getMalformedSnapshotEntryCount() {
+        return this.malformedSnapshotEntries.get();
+    }
+
+    private CachedResponse lookup(String uriKey, Map<String, String> requestHeaders, long now) {
+        synchronized (this.entries) {
+            String[] vary = this.varies.get(uriKey);
+            if (vary == null) {
+                return null;
+            }
+            String key = key(uriKey, vary, requestHeaders);
+            CachedResponse cached = this.entries.get(key);
+            if (cached != null && (cached.expires <= now || !cached.isValid())) {
+                remove(key);
+                return null;
+            }
+            return cached;
+        }
+    }
+
+    private Response store(String uriKey, Map<String, String> requestHeaders, Response response, long now) {
+        if (response == null) {
+            return null;
+        }
+        long maxAge = freshnessLifetime(response.getHeader("cache-control"));
+        long length = response.getContentLength();
+        String varyHeader = response.getHeader("vary");
+        if (maxAge <= 0 || !isCacheableStatus(response.getStatus()) || length < 0 || length > this.maxEntrySize || response.getHeader("set-cookie") != null || response.getHeader("content-encoding") != null
+                || varyHeader != null && varyHeader.trim().equals("*")) {
+            return response;
+        }
+        BufferedResponse buffered;
+        try {
+            buffered = BufferedResponse.of(response);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Could not read response for caching", e);
+            return NanoHTTPD.newFixedLengthResponse(Response.Status.INTERNAL_ERROR, NanoHTTPD.MIME_PLAINTEXT, "SERVER INTERNAL ERROR: IOException: " + e.getMessage());
+        }
+        CachedResponse cached = new CachedResponse(buffered, now, now + maxAge * 1000);
+        String[] vary = varyHeader == null ? new String[0] : varyHeader.split(",");
+        for (int i = 0; i < vary.length; i++) {
+            vary[i] = vary[i].trim().toLowerCase();
+        }
+        synchronized (this.entries) {
+            put(uriKey, vary, key(uriKey, vary, requestHeaders), cached);
+        }
+        return cached.newResponse(now);
+    }
+
+    private void put(String uriKey, String[] vary, String key, CachedResponse cached) {
+        String[] previous = this.varies.put(uriKey, vary);
+        if (previous != null && !Arrays.equals(previous, vary)) {
+            removeVariants(uriKey);
+        }
+        remove(key);
+        this.entries.put(key, cached);
+        this.size += cached.size;
+        Iterator<CachedResponse> eldest = this.entries.values().iterator();
+        while (this.size > this.maxSize && eldest.hasNext()) {
+            this.size -= eldest.next().size;
+            eldest.remove();
+            this.evictions.incrementAndGet();
+        }
+    }
+
+    private void remove(String key) {
+        CachedResponse removed = this.entries.remove(key);
+        if (removed != null) {
+            this.size -= removed.size;
+        }
+    }
+
+    /**
+     * Removes the entries stored for the URI under a different Vary header.
+     */
+    private void removeVariants(String uriKey) {
+        Iterator<Map.Entry<String, CachedResponse>> it = this.entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, CachedResponse> entry = it.next();
+            if (entry.getKey().startsWith(uriKey + '\n')) {
+                this.size -= entry.getValue().size;
+                it.remove();
+            }
+        }
+    }
+
+    private static String join(String[] names) {
+        StringBuilder sb = new StringBuilder();
+        for (String name : names) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(name);
+        }
+        return sb.toString();
+    }
+
+    private static IStatus status(final int code, final String description) {
+        for (Response.Status status : Response.Status.values()) {
+            if (status.getRequestStatus() == code) {
+                return status;
+            }
+        }
+        return new IStatus() {
+
+            @Override
+            public String getDescription() {
+                return description;
+            }
+
+            @Override
+            public int getRequestStatus() {
+                return code;
+            }
+        };
+    }
+
+    private static String uriKey(IHTTPSession session) {
+        String query = session.getQueryParameterString();
+        return session.getMethod() + " " + session.getUri() + (query == null ? "" : "?" + query);
+    }
+
+    private static String key(String uriKey, String[] vary, Map<String, String> requestHeaders) {
+        StringBuilder sb = new StringBuilder(uriKey).append('\n');
+        for (String name : vary) {
+            String value = requestHeaders.get(name);
+            sb.append(name).append('=').append(value == null ? "" : value).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return true for the statuses a cache may store without being told so
+     *         explicitly, see RFC 7231 section 6.1, that a cache serving only
+     *         GET requests can use.
+     */
+    static boolean isCacheableStatus(IStatus status) {
+        if (status == null) {
+            return false;
+        }
+        switch (status.getRequestStatus()) {
+            case 200:
+            case 203:
+            case 204:
+            case 300:
+            case 301:
+            case 404:
+            case 410:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true if the request has a Range or conditional header.
+     */
+    static boolean isConditional(Map<String, String> requestHeaders) {
+        for (String name : CONDITIONAL_HEADERS) {
+            if (requestHeaders.containsKey(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean hasDirective(String cacheControl, String directive) {
+        if (cacheControl == null) {
+            return false;
+        }
+        for (String part : cacheControl.split(",")) {
+            String name = part.trim();
+            int eq = name.indexOf('=');
+            if (eq >= 0) {
+                name = name.substring(0, eq).trim();
+            }
+            if (name.equalsIgnoreCase(directive)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of seconds a shared cache may keep the response,
+     *         or 0 if it must not be stored.
+     */
+    private static long freshnessLifetime(String cacheControl) {
+        if (cacheControl == null) {
+            return 0;
+        }
+        long maxAge = 0;
+        long sharedMaxAge = -1;
+        for (String part : cacheControl.split(",")) {
+            String directive = part.trim().toLowerCase();
+            if (directive.equals("no-store") || directive.equals("no-cache") || directive.startsWith("no-cache=") || directive.equals("private")
+                    || directive.startsWith("private=")) {
+                return 0;
+            }
+            int eq = directive.indexOf('=');
+            if (eq < 0) {
+                continue;
+            }
+            String name = directive.substring(0, eq).trim();
+            String value = directive.substring(eq + 1).trim();
+            if (value.startsWith("\"") && value.endsWith("\"") && value.length() > 1) {
+                value = value.substring(1, value.length() - 1);
+            }
+            try {
+                if (name.equals("max-age")) {
+                    maxAge = Long.parseLong(value);
+                } else if (name.equals("s-maxage")) {
+                    sharedMaxAge = Long.parseLong(value);
+                }
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return sharedMaxAge >= 0 ? sharedMaxAge : maxAge;
+    }
+}
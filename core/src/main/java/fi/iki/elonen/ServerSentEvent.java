@@ -0,0 +1,168 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A single event of a text/event-stream
+ * (http://www.w3.org/TR/eventsource/). Events are immutable and are
+ * serialized once, no matter how many clients they are sent to.
+ */
+public class ServerSentEvent {
+
+    private final String id;
+
+    private final String event;
+
+    private final String data;
+
+    private final long retry;
+
+    /**
+     * Creates an unnamed event ("message") carrying the given data.
+     */
+    public ServerSentEvent(String data) {
+        this(null, null, data, -1);
+    }
+
+    /**
+     * Creates an event of the given type carrying the given data.
+     */
+    public ServerSentEvent(String event, String data) {
+        this(null, event, data, -1);
+    }
+
+    /**
+     * @param id
+     *            the event id clients send back in the Last-Event-ID header
+     *            when reconnecting, or null.
+     * @param event
+     *            the event type, or null for "message".
+     * @param data
+     *            the event data, may span several lines.
+     * @param retry
+     *            the reconnection time in milliseconds the client should use
+     *            from now on, or -1 to leave it alone.
+     */
+    public ServerSentEvent(String id, String event, String data, long retry) {
+        if (data == null) {
+            throw new IllegalArgumentException("event data can't be null");
+        }
+        this.id = checkField("id", id);
+        this.event = checkField("event", event);
+        this.data = data;
+        this.retry = retry;
+    }
+
+    public String getId() {
+        return this.id;
+    }
+
+    public String getEvent() {
+        return this.event;
+    }
+
+    public String getData() {
+        return this.data;
+    }
+
+    public long getRetry() {
+        return this.retry;
+    }
+
+    /**
+     * @return a copy of this event with the given id.
+     */
+    public ServerSentEvent withId(String newId) {
+        return new ServerSentEvent(newId, this.event, this.data, this.retry);
+    }
+
+    /**
+     * @return the event framed as it is sent on the wire, in UTF-8.
+     */
+    public byte[] toBytes() {
+        StringBuilder sb = new StringBuilder(this.data.length() + 32);
+        if (this.id != null) {
+            sb.append("id: ").append(this.id).append('\n');
+        }
+        if (this.event != null) {
+            sb.append("event: ").append(this.event).append('\n');
+        }
+        if (this.retry >= 0) {
+            sb.append("retry: ").append(this.retry).append('\n');
+        }
+        int start = 0;
+        int length = this.data.length();
+        while (true) {
+            int end = start;
+            while (end < length && this.data.charAt(end) != '\n' && this.data.charAt(end) != '\r') {
+                end++;
+            }
+            sb.append("data: ").append(this.data, start, end).append('\n');
+            if (end == length) {
+                break;
+            }
+            if (this.data.charAt(end) == '\r' && end + 1 < length && this.data.charAt(end + 1) == '\n') {
+                end++;
+            }
+            start = end + 1;
+        }
+        sb.append('\n');
+        return utf8(sb.toString());
+    }
+
+    /**
+     * @return a comment line, which clients ignore. Useful to keep idle
+     *         connections alive.
+     */
+    public static byte[] comment(String text) {
+        return utf8(": " + checkField("comment", text) + "\n\n");
+    }
+
+    private static String checkField(String name, String value) {
+        if (value != null && (value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0)) {
+            throw new IllegalArgumentException("event " + name + " can't contain line breaks: " + value);
+        }
+        return value;
+    }
+
+    private static byte[] utf8(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
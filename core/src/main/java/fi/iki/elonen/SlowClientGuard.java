@@ -0,0 +1,360 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Closes connections of clients that send their requests or read the
+ * responses too slowly, see {@link NanoHTTPD#setSlowClientGuard(SlowClientGuard)}.
+ * <p/>
+ * The socket read timeout alone starts over with every byte, so a client
+ * sending a header byte every few seconds keeps a thread busy forever, and
+ * a client that stops reading blocks the thread writing the response for
+ * as long as its receive window stays closed. Instead:
+ * <ul>
+ * <li>the request line and headers must be complete within the header
+ * timeout, counted from their first byte;</li>
+ * <li>reading the body and writing the response may block for the body or
+ * send timeout, plus one second for every minimum rate of bytes
+ * transferred, like the MinRate of Apache httpd's mod_reqtimeout. Only the
+ * time spent waiting for the client counts, not the time the server takes
+ * to process the request or to produce the response. The time a response
+ * waits for a {@link BandwidthLimiter} is added to the time allowed, so
+ * that responses throttled below the minimum rate are not taken for slow
+ * clients.</li>
+ * </ul>
+ * A background thread checks the connections a few times a second and
+ * closes the sockets of those that are too slow, which ends any read or
+ * write blocked on them. The closed connections are counted. The thread is
+ * started with the first connection and ended by {@link #close()}, which
+ * {@link NanoHTTPD#stop()} calls.
+ */
+public class SlowClientGuard implements Closeable {
+
+    public static final long DEFAULT_HEADER_TIMEOUT_MILLIS = 10000;
+
+    public static final long DEFAULT_BODY_TIMEOUT_MILLIS = 20000;
+
+    public static final long DEFAULT_MIN_BODY_RATE = 500;
+
+    public static final long DEFAULT_SEND_TIMEOUT_MILLIS = 20000;
+
+    public static final long DEFAULT_MIN_SEND_RATE = 500;
+
+    private static final int IDLE = 0;
+
+    private static final int HEADER = 1;
+
+    private static final int BODY = 2;
+
+    private static final int SEND = 3;
+
+    /**
+     * The transfer state of a connection, updated by the thread serving it
+     * and checked by the guard.
+     */
+    static final class Connection {
+
+        private final Closeable[] streams;
+
+        private volatile int phase = IDLE;
+
+        private volatile long phaseStart;
+
+        private volatile long bytes;
+
+        private volatile long blockedNanos;
+
+        private volatile long throttledNanos;
+
+        private volatile long ioStart;
+
+        private volatile boolean closed;
+
+        Connection(Closeable... streams) {
+            this.streams = streams;
+        }
+
+        void startHeader() {
+            start(HEADER);
+        }
+
+        void startBody() {
+            start(BODY);
+        }
+
+        void startSend() {
+            start(SEND);
+        }
+
+        private void start(int phase) {
+            this.phaseStart = System.nanoTime();
+            this.bytes = 0;
+            this.blockedNanos = 0;
+            this.throttledNanos = 0;
+            this.phase = phase;
+        }
+
+        /**
+         * Called before a read from or a write to the client.
+         */
+        void beginIo() {
+            this.ioStart = System.nanoTime();
+        }
+
+        /**
+         * Called after a read or write transferred the given number of bytes.
+         */
+        void endIo(long count) {
+            long start = this.ioStart;
+            this.ioStart = 0;
+            if (start != 0) {
+                this.blockedNanos += System.nanoTime() - start;
+            }
+            if (count > 0) {
+                this.bytes += count;
+            }
+        }
+
+        /**
+         * Called after the response waited for a bandwidth limiter.
+         */
+        void throttled(long nanos) {
+            this.throttledNanos += nanos;
+        }
+
+        /**
+         * @return true if the guard closed the connection.
+         */
+        boolean isClosed() {
+            return this.closed;
+        }
+
+        private void close() {
+            this.closed = true;
+            for (Closeable stream : this.streams) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    // the client is gone anyway
+                }
+            }
+        }
+    }
+
+    private final long headerTimeoutNanos;
+
+    private final long bodyTimeoutNanos;
+
+    private final long minBodyRate;
+
+    private final long sendTimeoutNanos;
+
+    private final long minSendRate;
+
+    private final long checkIntervalMillis;
+
+    private final Set<Connection> connections = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+
+    private final AtomicLong headerTimeouts = new AtomicLong();
+
+    private final AtomicLong bodyTimeouts = new AtomicLong();
+
+    private final AtomicLong sendTimeouts = new AtomicLong();
+
+    private Thread checker;
+
+    public SlowClientGuard() {
+        this(DEFAULT_HEADER_TIMEOUT_MILLIS, DEFAULT_BODY_TIMEOUT_MILLIS, DEFAULT_MIN_BODY_RATE, DEFAULT_SEND_TIMEOUT_MILLIS, DEFAULT_MIN_SEND_RATE);
+    }
+
+    /**
+     * @param headerTimeoutMillis
+     *            the time allowed for the request line and headers.
+     * @param bodyTimeoutMillis
+     *            the time reading the request body may block, before the
+     *            time earned by the bytes received.
+     * @param minBodyRate
+     *            the bytes per second that earn one more second for reading
+     *            the body, or 0 for a fixed timeout.
+     * @param sendTimeoutMillis
+     *            the time writing the response may block, before the time
+     *            earned by the bytes sent.
+     * @param minSendRate
+     *            the bytes per second that earn one more second for writing
+     *            the response, or 0 for a fixed timeout.
+     */
+    public SlowClientGuard(long headerTimeoutMillis, long bodyTimeoutMillis, long minBodyRate, long sendTimeoutMillis, long minSendRate) {
+        if (headerTimeoutMillis <= 0 || bodyTimeoutMillis <= 0 || sendTimeoutMillis <= 0 || minBodyRate < 0 || minSendRate < 0) {
+            throw new IllegalArgumentException("timeouts must be positive");
+        }
+        this.headerTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(headerTimeoutMillis);
+        this.bodyTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(bodyTimeoutMillis);
+        this.minBodyRate = minBodyRate;
+        this.sendTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(sendTimeoutMillis);
+        this.minSendRate = minSendRate;
+        long shortest = Math.min(headerTimeoutMillis, Math.min(bodyTimeoutMillis, sendTimeoutMillis));
+        this.checkIntervalMillis = Math.max(10, Math.min(1000, shortest / 10));
+    }
+
+    /**
+     * @return the number of connections closed because the request line
+     *         and headers took too long.
+     */
+    public long getHeaderTimeoutCount() {
+        return this.headerTimeouts.get();
+    }
+
+    /**
+     * @return the number of connections closed because the request body
+     *         came in too slowly.
+     */
+    public long getBodyTimeoutCount() {
+        return this.bodyTimeouts.get();
+    }
+
+    /**
+     * @return the number of connections closed because the client read the
+     *         response too slowly.
+     */
+    public long getSendTimeoutCount() {
+        return this.sendTimeouts.get();
+    }
+
+    /**
+     * @return the number of connections currently watched.
+     */
+    public int getConnectionCount() {
+        return this.connections.size();
+    }
+
+    void register(Connection connection) {
+        this.connections.add(connection);
+        startChecker();
+    }
+
+    void unregister(Connection connection) {
+        connection.phase = IDLE;
+        this.connections.remove(connection);
+    }
+
+    /**
+     * Stops the thread checking the connections. It is started again if
+     * connections are watched afterwards, e.g. when the server is restarted.
+     */
+    @Override
+    public void close() {
+        Thread checker;
+        synchronized (this) {
+            checker = this.checker;
+            this.checker = null;
+        }
+        if (checker != null) {
+            checker.interrupt();
+            try {
+                checker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private synchronized void startChecker() {
+        if (this.checker != null) {
+            return;
+        }
+        this.checker = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(SlowClientGuard.this.checkIntervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    check(System.nanoTime());
+                }
+            }
+        }, "NanoHttpd Slow Client Guard");
+        this.checker.setDaemon(true);
+        this.checker.start();
+    }
+
+    /**
+     * Closes the connections that are too slow at the given time.
+     */
+    void check(long now) {
+        for (Connection connection : this.connections) {
+            int phase = connection.phase;
+            if (phase == HEADER) {
+                if (now - connection.phaseStart > this.headerTimeoutNanos) {
+                    close(connection, this.headerTimeouts);
+                }
+            } else if (phase == BODY) {
+                if (isTooSlow(connection, now, this.bodyTimeoutNanos, this.minBodyRate)) {
+                    close(connection, this.bodyTimeouts);
+                }
+            } else if (phase == SEND) {
+                if (isTooSlow(connection, now, this.sendTimeoutNanos, this.minSendRate)) {
+                    close(connection, this.sendTimeouts);
+                }
+            }
+        }
+    }
+
+    private static boolean isTooSlow(Connection connection, long now, long timeoutNanos, long minRate) {
+        long ioStart = connection.ioStart;
+        long blocked = connection.blockedNanos + (ioStart != 0 ? now - ioStart : 0);
+        long allowed = timeoutNanos + connection.throttledNanos;
+        if (minRate > 0) {
+            allowed += (long) ((double) connection.bytes / minRate * TimeUnit.SECONDS.toNanos(1));
+        }
+        return blocked > allowed;
+    }
+
+    private void close(Connection connection, AtomicLong counter) {
+        if (this.connections.remove(connection)) {
+            counter.incrementAndGet();
+            connection.close();
+        }
+    }
+}
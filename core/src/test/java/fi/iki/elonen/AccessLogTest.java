@@ -0,0 +1,184 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class AccessLogTest extends HttpServerTest {
+
+    @Test
+    public void testCombinedFormat() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        AccessLog accessLog = new AccessLog(log, AccessLog.Format.COMBINED);
+        this.testServer.setAccessLog(accessLog);
+        ByteArrayOutputStream response = invokeServer("GET /a%20b?x=1 HTTP/1.1\r\nReferer: http://example.com/\r\nUser-Agent: \"quoted\"\r\n\r\n");
+        accessLog.close();
+
+        String line = log.toString("UTF-8");
+        assertTrue(line, line.matches("- - - \\[\\d\\d/\\w{3}/\\d{4}:\\d\\d:\\d\\d:\\d\\d [-+]\\d{4}\\] \"GET /a%20b\\?x=1 HTTP/1.1\" 200 \\d+ \"http://example.com/\" \"\\\\\"quoted\\\\\"\"\n"));
+        assertTrue(line.contains(" 200 " + response.size() + " "));
+        assertEquals(1, accessLog.getLoggedCount());
+        assertEquals(0, accessLog.getDroppedCount());
+    }
+
+    @Test
+    public void testCommonFormat() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        AccessLog accessLog = new AccessLog(log, AccessLog.Format.COMMON);
+        this.testServer.setAccessLog(accessLog);
+        invokeServer("FOO / HTTP/1.1\r\n\r\n");
+        accessLog.close();
+
+        String line = log.toString("UTF-8");
+        assertTrue(line, line.matches("- - - \\[.*\\] \"FOO / HTTP/1.1\" 400 \\d+\n"));
+    }
+
+    @Test
+    public void testJsonFormat() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        AccessLog accessLog = new AccessLog(log, AccessLog.Format.JSON);
+        this.testServer.setAccessLog(accessLog);
+        ByteArrayOutputStream response = invokeServer("GET /json HTTP/1.1\r\nUser-Agent: a\\b\r\n\r\n");
+        accessLog.close();
+
+        String line = log.toString("UTF-8");
+        assertTrue(line, line.matches("\\{\"time\":\"\\d{4}-\\d\\d-\\d\\dT\\d\\d:\\d\\d:\\d\\d\\.\\d{3}Z\",\"remote\":null,\"method\":\"GET\",\"uri\":\"/json\",\"protocol\":\"HTTP/1.1\","
+                + "\"status\":200,\"bytes\":" + response.size() + ",\"duration_us\":\\d+,\"referer\":null,\"user_agent\":\"a\\\\\\\\b\"\\}\n"));
+    }
+
+    @Test
+    public void testNoLogByDefault() throws Exception {
+        assertEquals(null, this.testServer.getAccessLog());
+        invokeServer("GET / HTTP/1.1\r\n\r\n");
+    }
+
+    @Test
+    public void testDropsRecordsWhenFull() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        OutputStream blocking = new OutputStream() {
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{
+                    (byte) b
+                }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e.getMessage());
+                }
+                written.write(b, off, len);
+            }
+        };
+        AccessLog accessLog = new AccessLog(blocking, AccessLog.Format.COMMON, 4);
+        int accepted = 0;
+        for (int i = 0; i < 100; i++) {
+            if (log(accessLog, "/" + i)) {
+                accepted++;
+            }
+        }
+        assertTrue(accessLog.getDroppedCount() > 0);
+        assertEquals(accepted, accessLog.getLoggedCount());
+        assertEquals(100, accessLog.getLoggedCount() + accessLog.getDroppedCount());
+        release.countDown();
+        accessLog.close();
+        assertEquals(accepted, written.toString("UTF-8").split("\n").length);
+        assertFalse(log(accessLog, "/closed"));
+    }
+
+    @Test
+    public void testRollOver() throws Exception {
+        File file = File.createTempFile("access", ".log");
+        File first = new File(file.getPath() + ".1");
+        File second = new File(file.getPath() + ".2");
+        try {
+            AccessLog accessLog = new AccessLog(file, AccessLog.Format.COMMON, 16, 1, 2);
+            log(accessLog, "/one");
+            waitFor(first);
+            log(accessLog, "/two");
+            waitFor(second);
+            log(accessLog, "/three");
+            accessLog.close();
+
+            assertEquals(0, file.length());
+            assertTrue(read(first).contains("/three"));
+            assertTrue(read(second).contains("/two"));
+        } finally {
+            file.delete();
+            first.delete();
+            second.delete();
+        }
+    }
+
+    private static boolean log(AccessLog accessLog, String uri) {
+        return accessLog.log("127.0.0.1", "GET", uri, "HTTP/1.1", 200, 100, null, null, System.currentTimeMillis(), 1000);
+    }
+
+    private static void waitFor(File file) throws InterruptedException {
+        for (int i = 0; i < 100 && !file.exists(); i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(file.exists());
+    }
+
+    private static String read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int n = 0;
+            while (n < bytes.length) {
+                n += in.read(bytes, n, bytes.length - n);
+            }
+            return new String(bytes, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class BandwidthLimiterTest extends HttpServerTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testReserve() {
+        BandwidthLimiter limiter = new BandwidthLimiter(1000, 1000);
+        assertEquals(0, limiter.reserve(1000));
+        long wait = limiter.reserve(500);
+        assertTrue("" + wait, wait > SECOND * 4 / 10 && wait <= SECOND / 2);
+        wait = limiter.reserve(500);
+        assertTrue("" + wait, wait > SECOND * 9 / 10 && wait <= SECOND);
+        assertEquals(2000, limiter.getByteCount());
+    }
+
+    @Test
+    public void testRefill() throws Exception {
+        BandwidthLimiter limiter = new BandwidthLimiter(100000, 1000);
+        assertEquals(0, limiter.reserve(1000));
+        Thread.sleep(50);
+        assertEquals(0, limiter.reserve(1000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRate() {
+        new BandwidthLimiter(0);
+    }
+
+    @Test
+    public void testConnectionLimit() throws Exception {
+        this.testServer.response = NanoHTTPD.newFixedLengthResponse(new String(new char[64 * 1024]).replace('\0', 'x'));
+        this.testServer.setConnectionBandwidthLimit(128 * 1024);
+        long start = System.nanoTime();
+        ByteArrayOutputStream output = invokeServer("GET / HTTP/1.1\r\n\r\n");
+        long elapsed = System.nanoTime() - start;
+        assertTrue(output.size() > 64 * 1024);
+        // 64 KB at 128 KB/s, less the initial burst of 16 KB
+        assertTrue("" + elapsed, elapsed >= TimeUnit.MILLISECONDS.toNanos(300));
+    }
+
+    @Test
+    public void testResponseAndServerLimiters() throws Exception {
+        BandwidthLimiter responseLimiter = new BandwidthLimiter(1024 * 1024);
+        BandwidthLimiter serverLimiter = new BandwidthLimiter(64 * 1024, 16 * 1024);
+        this.testServer.response = NanoHTTPD.newFixedLengthResponse(new String(new char[32 * 1024]).replace('\0', 'x'));
+        this.testServer.response.setBandwidthLimiter(responseLimiter);
+        this.testServer.setBandwidthLimiter(serverLimiter);
+        long start = System.nanoTime();
+        ByteArrayOutputStream output = invokeServer("GET / HTTP/1.1\r\n\r\n");
+        long elapsed = System.nanoTime() - start;
+        assertEquals(output.size(), responseLimiter.getByteCount());
+        assertEquals(output.size(), serverLimiter.getByteCount());
+        // the slower limiter wins: 32 KB at 64 KB/s, less 16 KB burst
+        assertTrue("" + elapsed, elapsed >= TimeUnit.MILLISECONDS.toNanos(200));
+        assertTrue(serverLimiter.getWaitNanos() > 0);
+    }
+
+    @Test
+    public void testNoLimitByDefault() throws Exception {
+        assertEquals(null, this.testServer.getBandwidthLimiter());
+        assertEquals(0, this.testServer.getConnectionBandwidthLimit());
+        assertEquals(null, this.testServer.response.getBandwidthLimiter());
+    }
+}
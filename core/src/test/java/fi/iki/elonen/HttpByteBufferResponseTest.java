@@ -0,0 +1,100 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static fi.iki.elonen.NanoHTTPD.Response.Status.OK;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class HttpByteBufferResponseTest extends HttpServerTest {
+
+    private static final String[] EXPECTED = {
+        "HTTP/1.1 200 OK",
+        "Content-Type: what/ever",
+        "Date: .*",
+        "Connection: keep-alive",
+        "Content-Length: 5",
+        "",
+        "bytes"
+    };
+
+    @Test
+    public void thatByteArrayIsSent() throws Exception {
+        this.testServer.response = NanoHTTPD.newFixedLengthResponse(OK, "what/ever", "bytes".getBytes());
+
+        assertResponse(invokeServer("GET / HTTP/1.1"), EXPECTED);
+    }
+
+    @Test
+    public void thatDirectBufferIsSent() throws Exception {
+        ByteBuffer direct = ByteBuffer.allocateDirect(16);
+        direct.put("some bytes".getBytes()).flip();
+        direct.position(5);
+        this.testServer.response = NanoHTTPD.newFixedLengthResponse(OK, "what/ever", direct);
+
+        assertResponse(invokeServer("GET / HTTP/1.1"), EXPECTED);
+        assertEquals(5, direct.position());
+    }
+
+    @Test
+    public void thatSharedReadOnlyBufferCanBeSentRepeatedly() throws Exception {
+        ByteBuffer shared = ByteBuffer.wrap("bytes".getBytes()).asReadOnlyBuffer();
+        for (int i = 0; i < 3; i++) {
+            this.testServer.response = NanoHTTPD.newFixedLengthResponse(OK, "what/ever", shared);
+
+            assertResponse(invokeServer("GET / HTTP/1.1"), EXPECTED);
+            assertEquals(5, shared.remaining());
+        }
+    }
+
+    @Test
+    public void thatBufferBodyIsAvailableAsData() throws Exception {
+        ByteBuffer direct = ByteBuffer.allocateDirect(5);
+        direct.put("bytes".getBytes()).flip();
+        NanoHTTPD.Response response = NanoHTTPD.newFixedLengthResponse(OK, "what/ever", direct);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buff = new byte[2];
+        int read;
+        while ((read = response.getData().read(buff)) > 0) {
+            out.write(buff, 0, read);
+        }
+
+        assertEquals("bytes", out.toString());
+        assertEquals(0, direct.position());
+    }
+}
@@ -35,10 +35,16 @@ package fi.iki.elonen;
 
 import static fi.iki.elonen.NanoHTTPD.Response.Status.OK;
 
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PipedInputStream;
 
+import fi.iki.elonen.NanoHTTPD.Response.ChunkedOutputStream;
+
 public class HttpChunkedResponseTest extends HttpServerTest {
 
     private static class ChunkedInputStream extends PipedInputStream {
@@ -76,12 +82,9 @@ public class HttpChunkedResponseTest extends HttpServerTest {
             "Connection: keep-alive",
             "Transfer-Encoding: chunked",
             "",
-            "4",
-            "some",
-            "2d",
-            "thing which is longer than sixteen characters",
-            "5",
-            "whee!",
+            // the reads are coalesced into one chunk
+            "36",
+            "something which is longer than sixteen characterswhee!",
             "0",
             ""
         };
@@ -93,4 +96,111 @@ public class HttpChunkedResponseTest extends HttpServerTest {
 
         assertResponse(byteArrayOutputStream, expected);
     }
+
+    @org.junit.Test
+    public void thatSmallReadsAreCoalescedIntoOneChunk() throws Exception {
+        // hands out one byte per read while reporting more to come
+        InputStream trickle = new ByteArrayInputStream("coalesce me".getBytes()) {
+
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+        String[] expected = {
+            "HTTP/1.1 200 OK",
+            "Content-Type: what/ever",
+            "Date: .*",
+            "Connection: keep-alive",
+            "Transfer-Encoding: chunked",
+            "",
+            "b",
+            "coalesce me",
+            "0",
+            ""
+        };
+        this.testServer.response = new NanoHTTPD(0) {
+        }.newChunkedResponse(OK, "what/ever", trickle);
+
+        ByteArrayOutputStream byteArrayOutputStream = invokeServer("GET / HTTP/1.1");
+
+        assertResponse(byteArrayOutputStream, expected);
+    }
+
+    @org.junit.Test
+    public void thatStreamsWithoutAvailableAreNotFlushedPerRead() throws Exception {
+        // one byte per read and the default available() of 0, like most
+        // wrapped and piped producers
+        final InputStream source = new ByteArrayInputStream("coalesce me".getBytes());
+        InputStream trickle = new InputStream() {
+
+            @Override
+            public int read() throws IOException {
+                return source.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return source.read(b, off, Math.min(len, 1));
+            }
+        };
+        long flushes = NanoHTTPD.Response.getChunkStatistics().getFlushCount();
+        String[] expected = {
+            "HTTP/1.1 200 OK",
+            "Content-Type: what/ever",
+            "Date: .*",
+            "Connection: keep-alive",
+            "Transfer-Encoding: chunked",
+            "",
+            "b",
+            "coalesce me",
+            "0",
+            ""
+        };
+        this.testServer.response = new NanoHTTPD(0) {
+        }.newChunkedResponse(OK, "what/ever", trickle);
+
+        ByteArrayOutputStream byteArrayOutputStream = invokeServer("GET / HTTP/1.1");
+
+        assertResponse(byteArrayOutputStream, expected);
+        assertEquals(flushes, NanoHTTPD.Response.getChunkStatistics().getFlushCount());
+    }
+
+    @org.junit.Test
+    public void thatChunksAreLimitedToTheChunkSize() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedOutputStream chunked = new ChunkedOutputStream(out, 4);
+        chunked.write("abc".getBytes());
+        chunked.write("defgh".getBytes());
+        chunked.write('i');
+        chunked.finish();
+
+        assertEquals("4\r\nabcd\r\n4\r\nefgh\r\n1\r\ni\r\n0\r\n\r\n", out.toString());
+    }
+
+    @org.junit.Test
+    public void thatLargeWritesAreSentAsOneChunk() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedOutputStream chunked = new ChunkedOutputStream(out, 4);
+        chunked.write("0123456789abcdefghij".getBytes());
+        chunked.finish();
+
+        assertEquals("14\r\n0123456789abcdefghij\r\n0\r\n\r\n", out.toString());
+    }
+
+    @org.junit.Test
+    public void thatFlushSendsPendingDataImmediately() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedOutputStream chunked = new ChunkedOutputStream(out, 1024);
+        long flushes = NanoHTTPD.Response.getChunkStatistics().getFlushCount();
+        chunked.write("tick".getBytes());
+        assertEquals("", out.toString());
+        chunked.flush();
+        assertEquals("4\r\ntick\r\n", out.toString());
+        chunked.flush();
+        chunked.finish();
+
+        assertEquals("4\r\ntick\r\n0\r\n\r\n", out.toString());
+        assertEquals(flushes + 1, NanoHTTPD.Response.getChunkStatistics().getFlushCount());
+    }
 }
@@ -0,0 +1,103 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static fi.iki.elonen.NanoHTTPD.Response.Status.NOT_FOUND;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+import fi.iki.elonen.NanoHTTPD.Response;
+import fi.iki.elonen.NanoHTTPD.ResponseTemplate;
+
+public class HttpResponseTemplateTest extends HttpServerTest {
+
+    private ResponseTemplate template() throws Exception {
+        Response response = NanoHTTPD.newFixedLengthResponse(NOT_FOUND, NanoHTTPD.MIME_PLAINTEXT, "Not Found");
+        response.addHeader("Cache-Control", "no-cache");
+        return response.freeze();
+    }
+
+    @Test
+    public void thatTemplateIsSentRepeatedly() throws Exception {
+        ResponseTemplate template = template();
+        String[] expected = {
+            "HTTP/1.1 404 Not Found",
+            "Content-Type: text/plain",
+            "Cache-Control: no-cache",
+            "Content-Length: 9",
+            "Date: .*",
+            "Connection: keep-alive",
+            "",
+            "Not Found"
+        };
+        for (int i = 0; i < 3; i++) {
+            this.testServer.response = template.newResponse();
+
+            assertResponse(invokeServer("GET / HTTP/1.1"), expected);
+        }
+    }
+
+    @Test
+    public void thatTemplateResponseCanStillBeChanged() throws Exception {
+        this.testServer.response = template().newResponse();
+        this.testServer.response.addHeader("X-Extra", "yes");
+        String[] expected = {
+            "HTTP/1.1 404 Not Found",
+            "Content-Type: text/plain",
+            "Date: .*",
+        };
+
+        ByteArrayOutputStream outputStream = invokeServer("GET / HTTP/1.1");
+
+        assertResponse(outputStream, expected);
+        String response = outputStream.toString();
+        assertTrue(response.contains("X-Extra: yes\r\n"));
+        assertTrue(response.contains("Cache-Control: no-cache\r\n"));
+        assertTrue(response.contains("Content-Length: 9\r\n"));
+        assertTrue(response.endsWith("\r\n\r\nNot Found"));
+    }
+
+    @Test
+    public void thatTemplateHeadersAreVisible() throws Exception {
+        Response response = template().newResponse();
+
+        assertEquals("no-cache", response.getHeader("cache-control"));
+        assertEquals("9", response.getHeader("Content-Length"));
+        assertEquals(NOT_FOUND, response.getStatus());
+    }
+}
@@ -0,0 +1,247 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static fi.iki.elonen.NanoHTTPD.Response.Status.OK;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+import fi.iki.elonen.NanoHTTPD.StreamingBody;
+import fi.iki.elonen.NanoHTTPD.StreamingOutputStream;
+
+public class HttpStreamingResponseTest extends HttpServerTest {
+
+    @Test
+    public void thatStreamingBodyIsChunked() throws Exception {
+        this.testServer.response = NanoHTTPD.newStreamingResponse(OK, "what/ever", new StreamingBody() {
+
+            @Override
+            public void writeTo(StreamingOutputStream out) throws IOException {
+                out.write("first".getBytes());
+                out.flush();
+                out.write("sec".getBytes());
+                out.write("ond".getBytes());
+            }
+        });
+        String[] expected = {
+            "HTTP/1.1 200 OK",
+            "Content-Type: what/ever",
+            "Date: .*",
+            "Connection: keep-alive",
+            "Transfer-Encoding: chunked",
+            "",
+            "5",
+            "first",
+            "6",
+            "second",
+            "0",
+            ""
+        };
+
+        ByteArrayOutputStream byteArrayOutputStream = invokeServer("GET / HTTP/1.1");
+
+        assertResponse(byteArrayOutputStream, expected);
+    }
+
+    @Test
+    public void thatFlushReachesGzipClients() throws Exception {
+        final ByteArrayOutputStream client = new ByteArrayOutputStream();
+        final String[] flushed = new String[1];
+        this.testServer.response = NanoHTTPD.newStreamingResponse(OK, "text/plain", new StreamingBody() {
+
+            @Override
+            public void writeTo(StreamingOutputStream out) throws IOException {
+                out.write("first".getBytes());
+                out.flush();
+                flushed[0] = inflateChunks(client.toString("ISO-8859-1"));
+                out.write("second".getBytes());
+            }
+        });
+        ByteArrayInputStream inputStream = new ByteArrayInputStream("GET / HTTP/1.1\r\nAccept-Encoding: gzip\r\n\r\n".getBytes());
+        this.testServer.createSession(this.tempFileManager, inputStream, client).execute();
+
+        assertTrue(client.toString().contains("Content-Encoding: gzip"));
+        assertEquals("first", flushed[0]);
+        assertEquals("firstsecond", inflateChunks(client.toString("ISO-8859-1")));
+    }
+
+    @Test
+    public void thatStreamingBodyCanHaveFixedLength() throws Exception {
+        this.testServer.response = NanoHTTPD.newStreamingResponse(OK, "what/ever", new StreamingBody() {
+
+            @Override
+            public void writeTo(StreamingOutputStream out) throws IOException {
+                out.getChannel().write(ByteBuffer.wrap("heap ".getBytes()));
+                ByteBuffer direct = ByteBuffer.allocateDirect(6);
+                direct.put("direct".getBytes()).flip();
+                out.getChannel().write(direct);
+            }
+        }, 11);
+        String[] expected = {
+            "HTTP/1.1 200 OK",
+            "Content-Type: what/ever",
+            "Date: .*",
+            "Connection: keep-alive",
+            "Content-Length: 11",
+            "",
+            "heap direct"
+        };
+
+        ByteArrayOutputStream byteArrayOutputStream = invokeServer("GET / HTTP/1.1");
+
+        assertResponse(byteArrayOutputStream, expected);
+    }
+
+    @Test
+    public void thatStreamingBodyIsNotWrittenForHead() throws Exception {
+        final boolean[] written = new boolean[1];
+        this.testServer.response = NanoHTTPD.newStreamingResponse(OK, "what/ever", new StreamingBody() {
+
+            @Override
+            public void writeTo(StreamingOutputStream out) throws IOException {
+                written[0] = true;
+            }
+        }, 10);
+
+        ByteArrayOutputStream byteArrayOutputStream = invokeServer("HEAD / HTTP/1.1");
+
+        assertFalse(written[0]);
+        assertTrue(byteArrayOutputStream.toString().endsWith("Content-Length: 10\r\n\r\n"));
+    }
+
+    @Test
+    public void thatWritingMoreThanTheDeclaredLengthFails() throws Exception {
+        final IOException[] failure = new IOException[1];
+        this.testServer.response = NanoHTTPD.newStreamingResponse(OK, "what/ever", new StreamingBody() {
+
+            @Override
+            public void writeTo(StreamingOutputStream out) throws IOException {
+                try {
+                    out.write("too long".getBytes());
+                } catch (IOException e) {
+                    failure[0] = e;
+                    throw e;
+                }
+            }
+        }, 4);
+
+        assertConnectionClosed(new ByteArrayOutputStream());
+        assertTrue(failure[0] != null);
+    }
+
+    @Test
+    public void thatClientDisconnectReachesTheProducer() throws Exception {
+        final IOException[] failure = new IOException[1];
+        this.testServer.response = NanoHTTPD.newStreamingResponse(OK, "what/ever", new StreamingBody() {
+
+            @Override
+            public void writeTo(StreamingOutputStream out) throws IOException {
+                try {
+                    for (int i = 0; i < 100; i++) {
+                        out.write("data".getBytes());
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    failure[0] = e;
+                    throw e;
+                }
+            }
+        });
+        // accepts the response header, then fails like a reset connection
+        OutputStream client = new OutputStream() {
+
+            private int bytes;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (++this.bytes > 200) {
+                    throw new SocketException("Connection reset");
+                }
+            }
+        };
+
+        assertConnectionClosed(client);
+        assertEquals("Connection reset", failure[0].getMessage());
+    }
+
+    /**
+     * Decompresses the gzip data in the chunks of the response received so
+     * far, as far as it can be decompressed.
+     */
+    private static String inflateChunks(String response) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int pos = response.indexOf("\r\n\r\n") + 4;
+        while (pos < response.length()) {
+            int eol = response.indexOf("\r\n", pos);
+            int size = Integer.parseInt(response.substring(pos, eol), 16);
+            body.write(response.substring(eol + 2, eol + 2 + size).getBytes("ISO-8859-1"));
+            pos = eol + 2 + size + 2;
+        }
+        byte[] gzip = body.toByteArray();
+        // skip the 10 byte gzip header, the trailer is ignored
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(gzip, 10, gzip.length - 10);
+        byte[] out = new byte[1024];
+        try {
+            return new String(out, 0, inflater.inflate(out), "ISO-8859-1");
+        } catch (Exception e) {
+            throw new IOException(e.toString());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void assertConnectionClosed(OutputStream outputStream) throws IOException {
+        ByteArrayInputStream inputStream = new ByteArrayInputStream("GET / HTTP/1.1\r\n\r\n".getBytes());
+        NanoHTTPD.HTTPSession session = this.testServer.createSession(this.tempFileManager, inputStream, outputStream);
+        try {
+            session.execute();
+            fail("connection should have been closed");
+        } catch (SocketException e) {
+            // expected
+        }
+    }
+}
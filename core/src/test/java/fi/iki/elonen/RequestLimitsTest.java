@@ -0,0 +1,129 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+public class RequestLimitsTest extends HttpServerTest {
+
+    @Test
+    public void testDefaults() {
+        RequestLimits limits = this.testServer.getRequestLimits();
+        assertEquals(RequestLimits.DEFAULT_MAX_REQUEST_LINE_LENGTH, limits.getMaxRequestLineLength());
+        assertEquals(RequestLimits.DEFAULT_MAX_HEADER_BYTES, limits.getMaxHeaderBytes());
+        assertEquals(RequestLimits.DEFAULT_MAX_HEADER_COUNT, limits.getMaxHeaderCount());
+        assertEquals(RequestLimits.DEFAULT_MAX_PARAMETER_COUNT, limits.getMaxParameterCount());
+        assertEquals(RequestLimits.DEFAULT_MAX_BODY_SIZE, limits.getMaxBodySize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLimit() {
+        new RequestLimits(0, 8192, 100, 1000, 1000);
+    }
+
+    @Test
+    public void testRequestLineTooLong() throws Exception {
+        this.testServer.setRequestLimits(new RequestLimits(64, 8192, 100, 1000, Long.MAX_VALUE));
+        assertStatus("HTTP/1.1 414 URI Too Long", invokeServer("GET /" + repeat('a', 64) + " HTTP/1.1\r\n\r\n"));
+        assertStatus("HTTP/1.1 414 URI Too Long", invokeServer("GET /" + repeat('a', 10000)));
+        assertStatus("HTTP/1.1 200 OK", invokeServer("GET /" + repeat('a', 49) + " HTTP/1.1\r\n\r\n"));
+    }
+
+    @Test
+    public void testHeaderTooLarge() throws Exception {
+        this.testServer.setRequestLimits(new RequestLimits(8192, 256, 100, 1000, Long.MAX_VALUE));
+        assertStatus("HTTP/1.1 431 Request Header Fields Too Large", invokeServer("GET / HTTP/1.1\r\nX-Big: " + repeat('a', 256) + "\r\n\r\n"));
+        assertStatus("HTTP/1.1 200 OK", invokeServer("GET / HTTP/1.1\r\nX-Small: " + repeat('a', 128) + "\r\n\r\n"));
+    }
+
+    @Test
+    public void testDefaultHeaderLimit() throws Exception {
+        assertStatus("HTTP/1.1 431 Request Header Fields Too Large", invokeServer("GET / HTTP/1.1\r\nX-Big: " + repeat('a', 10000) + "\r\n\r\n"));
+    }
+
+    @Test
+    public void testHeaderBufferGrows() throws Exception {
+        this.testServer.setRequestLimits(new RequestLimits(8192, 65536, 100, 1000, Long.MAX_VALUE));
+        String value = repeat('a', 30000);
+        assertStatus("HTTP/1.1 200 OK", invokeServer("GET / HTTP/1.1\r\nX-Big: " + value + "\r\nX-After: b\r\n\r\n"));
+        assertEquals(value, this.testServer.header.get("x-big"));
+        assertEquals("b", this.testServer.header.get("x-after"));
+    }
+
+    @Test
+    public void testTooManyHeaders() throws Exception {
+        this.testServer.setRequestLimits(new RequestLimits(8192, 8192, 3, 1000, Long.MAX_VALUE));
+        assertStatus("HTTP/1.1 431 Request Header Fields Too Large", invokeServer("GET / HTTP/1.1\r\nA: 1\r\nB: 2\r\nC: 3\r\nD: 4\r\n\r\n"));
+        assertStatus("HTTP/1.1 200 OK", invokeServer("GET / HTTP/1.1\r\nA: 1\r\nB: 2\r\nC: 3\r\n\r\n"));
+    }
+
+    @Test
+    public void testTooManyParameters() throws Exception {
+        this.testServer.setRequestLimits(new RequestLimits(8192, 8192, 100, 2, Long.MAX_VALUE));
+        assertStatus("HTTP/1.1 400 Bad Request", invokeServer("GET /?a=1&b=2&c=3 HTTP/1.1\r\n\r\n"));
+        assertStatus("HTTP/1.1 200 OK", invokeServer("GET /?a=1&b=2 HTTP/1.1\r\n\r\n"));
+        assertEquals("2", this.testServer.parms.get("b"));
+    }
+
+    @Test
+    public void testBodyTooLarge() throws Exception {
+        this.testServer.setRequestLimits(new RequestLimits(8192, 8192, 100, 1000, 10));
+        assertStatus("HTTP/1.1 413 Payload Too Large", invokeServer("POST / HTTP/1.1\r\nContent-Length: 1000000000000\r\n\r\n"));
+        assertStatus("HTTP/1.1 200 OK", invokeServer("POST / HTTP/1.1\r\nContent-Length: 3\r\n\r\na=1"));
+    }
+
+    @Test
+    public void testInvalidContentLength() throws Exception {
+        assertStatus("HTTP/1.1 400 Bad Request", invokeServer("POST / HTTP/1.1\r\nContent-Length: -5\r\n\r\n"));
+        assertStatus("HTTP/1.1 400 Bad Request", invokeServer("POST / HTTP/1.1\r\nContent-Length: lots\r\n\r\n"));
+    }
+
+    private void assertStatus(String expected, ByteArrayOutputStream response) throws Exception {
+        String status = getOutputLines(response).get(0);
+        assertTrue(status, status.startsWith(expected));
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
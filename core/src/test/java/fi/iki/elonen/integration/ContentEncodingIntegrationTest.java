@@ -0,0 +1,205 @@
+package fi.iki.elonen.integration;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import fi.iki.elonen.NanoHTTPD;
+
+public class ContentEncodingIntegrationTest extends IntegrationTestBase<ContentEncodingIntegrationTest.TestServer> {
+
+    private static final String BODY = "This is a test. This is a test. This is a test.";
+
+    public static class TestServer extends NanoHTTPD {
+
+        public Response response;
+
+        public TestServer() {
+            super(8192);
+            getContentEncoders().clear();
+            getContentEncoders().add(new GzipEncoder(Deflater.DEFAULT_COMPRESSION, 0, DeflaterEncoder.DEFAULT_MAX_BUFFERED_SIZE));
+            getContentEncoders().add(new DeflateEncoder(Deflater.DEFAULT_COMPRESSION, 0, DeflaterEncoder.DEFAULT_MAX_BUFFERED_SIZE));
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            return response;
+        }
+    }
+
+    /**
+     * Stand-in for a third party coding such as Brotli: passes the body
+     * through unchanged.
+     */
+    private static class PassThroughEncoder implements NanoHTTPD.ContentEncoder {
+
+        @Override
+        public String getEncoding() {
+            return "br";
+        }
+
+        @Override
+        public boolean shouldEncode(long length) {
+            return true;
+        }
+
+        @Override
+        public boolean shouldBuffer(long length) {
+            return false;
+        }
+
+        @Override
+        public OutputStream encode(OutputStream out) {
+            return new FilterOutputStream(out) {
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            };
+        }
+    }
+
+    @Override
+    public TestServer createTestServer() {
+        return new TestServer();
+    }
+
+    private HttpResponse get(String acceptEncoding) throws IOException {
+        testServer.response = NanoHTTPD.newFixedLengthResponse(BODY);
+        HttpGet request = new HttpGet("http://localhost:8192/");
+        if (acceptEncoding != null) {
+            request.addHeader("Accept-Encoding", acceptEncoding);
+        }
+        return httpclient.execute(request);
+    }
+
+    private static String contentEncoding(HttpResponse response) {
+        return response.getFirstHeader("Content-Encoding") == null ? null : response.getFirstHeader("Content-Encoding").getValue();
+    }
+
+    @Test
+    public void codingWithZeroQualityIsNeverUsed() throws IOException {
+        HttpResponse response = get("gzip;q=0, deflate");
+        assertEquals("deflate", contentEncoding(response));
+        assertArrayEquals(BODY.getBytes("UTF-8"), readAll(new InflaterInputStream(response.getEntity().getContent())));
+    }
+
+    @Test
+    public void highestQualityWins() throws IOException {
+        HttpResponse response = get("gzip;q=0.5, deflate;q=0.9");
+        assertEquals("deflate", contentEncoding(response));
+        EntityUtils.consume(response.getEntity());
+    }
+
+    @Test
+    public void serverPreferenceBreaksTies() throws IOException {
+        HttpResponse response = get("deflate, gzip");
+        assertEquals("gzip", contentEncoding(response));
+        assertArrayEquals(BODY.getBytes("UTF-8"), readAll(new GZIPInputStream(response.getEntity().getContent())));
+    }
+
+    @Test
+    public void wildcardMatchesCodingsNotListed() throws IOException {
+        HttpResponse response = get("*");
+        assertEquals("gzip", contentEncoding(response));
+        EntityUtils.consume(response.getEntity());
+
+        response = get("gzip;q=0, *;q=0.5");
+        assertEquals("deflate", contentEncoding(response));
+        EntityUtils.consume(response.getEntity());
+    }
+
+    @Test
+    public void unknownCodingsAreNotUsed() throws IOException {
+        HttpResponse response = get("identity, compress");
+        assertNull(contentEncoding(response));
+        assertEquals(BODY, EntityUtils.toString(response.getEntity()));
+    }
+
+    @Test
+    public void varyHeaderIsAddedEvenWithoutAcceptEncoding() throws IOException {
+        HttpResponse response = get(null);
+        assertNull(contentEncoding(response));
+        assertEquals("Accept-Encoding", response.getFirstHeader("Vary").getValue());
+        EntityUtils.consume(response.getEntity());
+    }
+
+    @Test
+    public void varyHeaderKeepsExistingValues() throws IOException {
+        testServer.response = NanoHTTPD.newFixedLengthResponse(BODY);
+        testServer.response.addHeader("vary", "Origin");
+        HttpGet request = new HttpGet("http://localhost:8192/");
+        request.addHeader("Accept-Encoding", "gzip");
+        HttpResponse response = httpclient.execute(request);
+        assertEquals(1, response.getHeaders("Vary").length);
+        assertEquals("Origin, Accept-Encoding", response.getFirstHeader("Vary").getValue());
+        EntityUtils.consume(response.getEntity());
+    }
+
+    @Test
+    public void pluggedInCodingIsNegotiated() throws IOException {
+        testServer.getContentEncoders().add(0, new PassThroughEncoder());
+        HttpResponse response = get("gzip;q=0.8, br");
+        assertEquals("br", contentEncoding(response));
+        assertNull(response.getFirstHeader("Content-Length"));
+        assertEquals(BODY, EntityUtils.toString(response.getEntity()));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,159 @@
+package fi.iki.elonen.integration;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import fi.iki.elonen.ETagFilter;
+import fi.iki.elonen.NanoHTTPD;
+
+public class ETagFilterIntegrationTest extends IntegrationTestBase<ETagFilterIntegrationTest.TestServer> {
+
+    public static class TestServer extends NanoHTTPD {
+
+        private final ETagFilter filter = new ETagFilter(1024);
+
+        private String body = "dashboard v1";
+
+        public TestServer() {
+            super(8192);
+            getServeFilters().add(this.filter);
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            Response response = newFixedLengthResponse(Response.Status.OK, NanoHTTPD.MIME_PLAINTEXT, this.body);
+            response.addHeader("Cache-Control", "no-cache");
+            if (session.getUri().equals("/tagged")) {
+                response.addHeader("ETag", "\"mine\"");
+            } else if (session.getUri().equals("/large")) {
+                StringBuilder large = new StringBuilder();
+                for (int i = 0; i < 50; i++) {
+                    large.append(this.body).append('\n');
+                }
+                response = newFixedLengthResponse(Response.Status.OK, NanoHTTPD.MIME_PLAINTEXT, large.toString());
+            } else if (session.getUri().equals("/chunked")) {
+                response = newChunkedResponse(Response.Status.OK, NanoHTTPD.MIME_PLAINTEXT, response.getData());
+            }
+            return response;
+        }
+    }
+
+    @Override
+    public TestServer createTestServer() {
+        return new TestServer();
+    }
+
+    @Test
+    public void unchangedContentIsNotSentAgain() throws Exception {
+        HttpResponse first = get("/", null);
+        String etag = first.getFirstHeader("ETag").getValue();
+        assertEquals("dashboard v1", EntityUtils.toString(first.getEntity()));
+        assertEquals(ETagFilter.etag("dashboard v1".getBytes()), etag);
+        assertTrue(etag.startsWith("W/\""));
+
+        HttpResponse second = get("/", etag);
+        assertEquals(304, second.getStatusLine().getStatusCode());
+        assertEquals(etag, second.getFirstHeader("ETag").getValue());
+        assertEquals("no-cache", second.getFirstHeader("Cache-Control").getValue());
+        assertNull(second.getEntity());
+        assertEquals(1, this.testServer.filter.getNotModifiedCount());
+    }
+
+    @Test
+    public void changedContentIsSent() throws Exception {
+        HttpResponse first = get("/", null);
+        EntityUtils.consume(first.getEntity());
+        String etag = first.getFirstHeader("ETag").getValue();
+        this.testServer.body = "dashboard v2";
+
+        HttpResponse response = get("/", "W/" + etag + ", \"other\"");
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals("dashboard v2", EntityUtils.toString(response.getEntity()));
+    }
+
+    @Test
+    public void compressedResponsesGetAWeakTag() throws Exception {
+        HttpResponse gzip = get("/large", null, "gzip");
+        EntityUtils.consume(gzip.getEntity());
+        HttpResponse identity = get("/large", null, null);
+        EntityUtils.consume(identity.getEntity());
+        assertEquals("gzip", gzip.getFirstHeader("Content-Encoding").getValue());
+        assertNull(identity.getFirstHeader("Content-Encoding"));
+
+        String etag = gzip.getFirstHeader("ETag").getValue();
+        assertTrue(etag, etag.startsWith("W/\""));
+        assertEquals(etag, identity.getFirstHeader("ETag").getValue());
+
+        assertEquals(304, get("/large", etag, "gzip").getStatusLine().getStatusCode());
+    }
+
+    @Test
+    public void existingETagsAreValidated() throws Exception {
+        assertEquals(304, get("/tagged", "\"mine\"").getStatusLine().getStatusCode());
+        assertEquals(0, this.testServer.filter.getTaggedCount());
+    }
+
+    @Test
+    public void chunkedResponsesAreNotTagged() throws Exception {
+        HttpResponse response = get("/chunked", null);
+        EntityUtils.consume(response.getEntity());
+        assertNull(response.getFirstHeader("ETag"));
+    }
+
+    private HttpResponse get(String uri, String ifNoneMatch) throws Exception {
+        return get(uri, ifNoneMatch, null);
+    }
+
+    private HttpResponse get(String uri, String ifNoneMatch, String acceptEncoding) throws Exception {
+        HttpGet request = new HttpGet("http://localhost:8192" + uri);
+        if (ifNoneMatch != null) {
+            request.addHeader("If-None-Match", ifNoneMatch);
+        }
+        if (acceptEncoding != null) {
+            request.addHeader("Accept-Encoding", acceptEncoding);
+        }
+        HttpResponse response = this.httpclient.execute(request);
+        assertNotNull(response);
+        return response;
+    }
+}
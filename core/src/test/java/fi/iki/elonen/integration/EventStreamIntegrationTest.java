@@ -0,0 +1,205 @@
+package fi.iki.elonen.integration;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import fi.iki.elonen.EventStreamHub;
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.ServerSentEvent;
+
+public class EventStreamIntegrationTest extends IntegrationTestBase<EventStreamIntegrationTest.TestServer> {
+
+    public static class TestServer extends NanoHTTPD {
+
+        private final EventStreamHub hub = new EventStreamHub(4, 2, 200);
+
+        public TestServer() {
+            super(8192);
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            return this.hub.newResponse(session);
+        }
+    }
+
+    @Override
+    public TestServer createTestServer() {
+        return new TestServer();
+    }
+
+    @Test
+    public void eventsAreFramed() {
+        assertEquals("id: 7\nevent: tick\nretry: 500\ndata: one\ndata: two\ndata: three\n\n", new String(new ServerSentEvent("7", "tick", "one\ntwo\r\nthree", 500).toBytes()));
+        assertEquals("data: \n\n", new String(new ServerSentEvent("").toBytes()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void idsCantContainLineBreaks() {
+        new ServerSentEvent("1\n", null, "data", -1);
+    }
+
+    @Test
+    public void publishedEventsReachSubscribers() throws Exception {
+        Socket socket = subscribe(null);
+        try {
+            BufferedReader in = reader(socket);
+            assertHeader(in);
+            awaitSubscribers(1);
+            this.testServer.hub.publish(new ServerSentEvent("tick", "hello"));
+            assertEquals(Arrays.asList("id: 1", "event: tick", "data: hello"), readEvent(in));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void idleStreamsGetHeartbeats() throws Exception {
+        Socket socket = subscribe(null);
+        try {
+            BufferedReader in = reader(socket);
+            assertHeader(in);
+            assertEquals(Arrays.asList(": heartbeat"), readEvent(in));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void clientsResumeAfterLastEventId() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            this.testServer.hub.publish(new ServerSentEvent("event " + i));
+        }
+        Socket socket = subscribe("4");
+        try {
+            BufferedReader in = reader(socket);
+            assertHeader(in);
+            assertEquals(Arrays.asList("id: 5", "data: event 4"), readEvent(in));
+            assertEquals(Arrays.asList("id: 6", "data: event 5"), readEvent(in));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void slowSubscribersAreDropped() throws Exception {
+        // never read from, so the server blocks once the socket buffers are
+        // full
+        Socket socket = subscribe(null);
+        try {
+            awaitSubscribers(1);
+            char[] large = new char[1024 * 1024];
+            Arrays.fill(large, 'x');
+            String data = new String(large);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (this.testServer.hub.getDroppedCount() == 0 && System.currentTimeMillis() < deadline) {
+                this.testServer.hub.publish(new ServerSentEvent(data));
+            }
+            assertEquals(1, this.testServer.hub.getDroppedCount());
+            assertEquals(0, this.testServer.hub.getSubscriberCount());
+        } finally {
+            socket.close();
+        }
+    }
+
+    private Socket subscribe(String lastEventId) throws IOException {
+        Socket socket = new Socket("localhost", 8192);
+        socket.setSoTimeout(5000);
+        OutputStream out = socket.getOutputStream();
+        String request = "GET /events HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip\r\n";
+        if (lastEventId != null) {
+            request += "Last-Event-ID: " + lastEventId + "\r\n";
+        }
+        out.write((request + "\r\n").getBytes());
+        out.flush();
+        return socket;
+    }
+
+    private void awaitSubscribers(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (this.testServer.hub.getSubscriberCount() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, this.testServer.hub.getSubscriberCount());
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+    }
+
+    private static void assertHeader(BufferedReader in) throws IOException {
+        boolean eventStream = false;
+        boolean chunked = false;
+        String line;
+        while ((line = in.readLine()).length() > 0) {
+            eventStream |= line.equals("Content-Type: text/event-stream");
+            chunked |= line.equals("Transfer-Encoding: chunked");
+            assertTrue(line, !line.startsWith("Content-Encoding"));
+        }
+        assertTrue(eventStream && chunked);
+    }
+
+    /**
+     * Reads the lines of the next event, skipping the chunk size lines.
+     */
+    private static List<String> readEvent(BufferedReader in) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        while (true) {
+            String line = in.readLine();
+            if (line.matches("[0-9a-f]+")) {
+                continue;
+            }
+            if (line.length() == 0) {
+                if (lines.isEmpty()) {
+                    continue;
+                }
+                return lines;
+            }
+            lines.add(line);
+        }
+    }
+}
@@ -35,14 +35,19 @@ package fi.iki.elonen.integration;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
@@ -61,6 +66,11 @@ public class GZipIntegrationTest extends IntegrationTestBase<GZipIntegrationTest
 
         public TestServer() {
             super(8192);
+            useGzipEncoder(new GzipEncoder(Deflater.DEFAULT_COMPRESSION, 0, GzipEncoder.DEFAULT_MAX_BUFFERED_SIZE));
+        }
+
+        public void useGzipEncoder(GzipEncoder encoder) {
+            getContentEncoders().set(0, encoder);
         }
 
         @Override
@@ -114,13 +124,64 @@ public class GZipIntegrationTest extends IntegrationTestBase<GZipIntegrationTest
     }
 
     @Test
-    public void contentLengthShouldBeRemovedFromZippedResponses() throws IOException {
+    public void contentLengthShouldBeCompressedLengthForSmallZippedResponses() throws IOException {
         testServer.response = NanoHTTPD.newFixedLengthResponse("This is a test");
         HttpGet request = new HttpGet("http://localhost:8192/");
         request.addHeader("Accept-encoding", "gzip");
         HttpResponse response = httpclient.execute(request);
         Header contentLength = response.getFirstHeader("content-length");
-        assertNull("Content-Length should not be set when gzipping response", contentLength);
+        assertNotNull("Content-Length should be set when the response was compressed in memory", contentLength);
+        assertNull(response.getFirstHeader("transfer-encoding"));
+        byte[] body = EntityUtils.toByteArray(response.getEntity());
+        assertEquals(body.length, Integer.parseInt(contentLength.getValue()));
+        assertEquals("This is a test", new String(gunzip(new ByteArrayInputStream(body)), "UTF-8"));
+    }
+
+    @Test
+    public void contentLengthShouldBeRemovedFromLargeZippedResponses() throws IOException {
+        testServer.useGzipEncoder(new NanoHTTPD.GzipEncoder(Deflater.BEST_SPEED, 0, 4));
+        testServer.response = NanoHTTPD.newFixedLengthResponse("This is a test");
+        HttpGet request = new HttpGet("http://localhost:8192/");
+        request.addHeader("Accept-encoding", "gzip");
+        HttpResponse response = new DecompressingHttpClient(httpclient).execute(request);
+        assertNull("Content-Length should not be set when streaming a gzipped response", response.getFirstHeader("content-length"));
+        assertEquals("This is a test", EntityUtils.toString(response.getEntity()));
+    }
+
+    @Test
+    public void responsesBelowMinimumSizeShouldNotBeZipped() throws IOException {
+        testServer.useGzipEncoder(new NanoHTTPD.GzipEncoder());
+        testServer.response = NanoHTTPD.newFixedLengthResponse("This is a test");
+        HttpGet request = new HttpGet("http://localhost:8192/");
+        request.addHeader("Accept-encoding", "gzip");
+        HttpResponse response = httpclient.execute(request);
+        assertNull("Content-Encoding should not be set for tiny responses", response.getFirstHeader("content-encoding"));
+        assertEquals("14", response.getFirstHeader("content-length").getValue());
+        assertEquals("This is a test", EntityUtils.toString(response.getEntity()));
+    }
+
+    @Test
+    public void pooledDeflatersShouldProduceValidStreams() throws IOException {
+        NanoHTTPD.GzipEncoder encoder = new NanoHTTPD.GzipEncoder(Deflater.BEST_COMPRESSION, 0, 1024, 1);
+        for (int i = 0; i < 3; i++) {
+            byte[] plain = ("round " + i + " of some compressible text text text").getBytes("UTF-8");
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            OutputStream gzip = encoder.encode(compressed);
+            gzip.write(plain);
+            gzip.close();
+            assertArrayEquals(plain, gunzip(new ByteArrayInputStream(compressed.toByteArray())));
+        }
+    }
+
+    private static byte[] gunzip(InputStream compressed) throws IOException {
+        GZIPInputStream in = new GZIPInputStream(compressed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
     }
 
     @Test
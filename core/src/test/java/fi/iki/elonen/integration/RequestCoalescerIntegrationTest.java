@@ -0,0 +1,263 @@
+package fi.iki.elonen.integration;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.RequestCoalescer;
+
+public class RequestCoalescerIntegrationTest extends IntegrationTestBase<RequestCoalescerIntegrationTest.TestServer> {
+
+    public static class TestServer extends NanoHTTPD {
+
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private RequestCoalescer coalescer = new RequestCoalescer(5000, 1024);
+
+        private long delayMillis = 500;
+
+        private String[] responseHeader;
+
+        private Response.Status status = Response.Status.OK;
+
+        public TestServer() {
+            super(8192);
+            getServeFilters().add(new ServeFilter() {
+
+                @Override
+                public Response filter(IHTTPSession session, Chain chain) {
+                    return TestServer.this.coalescer.filter(session, chain);
+                }
+            });
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            int call = this.calls.incrementAndGet();
+            try {
+                Thread.sleep(call == 1 ? this.delayMillis : 0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Response response;
+            if (session.getHeaders().containsKey("range")) {
+                response = newFixedLengthResponse(Response.Status.PARTIAL_CONTENT, NanoHTTPD.MIME_PLAINTEXT, "partial #" + call);
+            } else {
+                response = newFixedLengthResponse(this.status, NanoHTTPD.MIME_PLAINTEXT, session.getUri() + " #" + call);
+            }
+            if (this.responseHeader != null) {
+                response.addHeader(this.responseHeader[0], this.responseHeader[1]);
+            }
+            return response;
+        }
+    }
+
+    @Override
+    public TestServer createTestServer() {
+        return new TestServer();
+    }
+
+    @Test
+    public void concurrentRequestsShareOneResponse() throws Exception {
+        List<Fetch> fetches = fetch("/report", 5, 0);
+
+        assertEquals(1, this.testServer.calls.get());
+        for (Fetch fetch : fetches) {
+            assertEquals("/report #1", fetch.body);
+        }
+        assertEquals(1, this.testServer.coalescer.getLeaderCount());
+        assertEquals(4, this.testServer.coalescer.getCoalescedCount());
+    }
+
+    @Test
+    public void sequentialRequestsAreNotCoalesced() throws Exception {
+        this.testServer.delayMillis = 0;
+        assertEquals("/report #1", fetch("/report", 1, 0).get(0).body);
+        assertEquals("/report #2", fetch("/report", 1, 0).get(0).body);
+        assertEquals(0, this.testServer.coalescer.getCoalescedCount());
+    }
+
+    @Test
+    public void waitersFallBackAfterTimeout() throws Exception {
+        this.testServer.coalescer = new RequestCoalescer(50, 1024);
+        List<Fetch> fetches = fetch("/report", 2, 100);
+
+        assertEquals("/report #1", fetches.get(0).body);
+        assertEquals("/report #2", fetches.get(1).body);
+        assertEquals(1, this.testServer.coalescer.getFallbackCount());
+    }
+
+    @Test
+    public void requestsWithCookiesAreNotCoalesced() throws Exception {
+        this.testServer.delayMillis = 200;
+        List<Fetch> fetches = fetch("/account", 3, 0, "Cookie", "session=a");
+
+        assertEquals(3, this.testServer.calls.get());
+        assertEquals("/account #1", fetches.get(0).body);
+        assertEquals(0, this.testServer.coalescer.getLeaderCount());
+        assertEquals(0, this.testServer.coalescer.getCoalescedCount());
+    }
+
+    @Test
+    public void privateResponsesAreNotShared() throws Exception {
+        this.testServer.responseHeader = new String[]{
+            "Cache-Control",
+            "private, max-age=60"
+        };
+        assertNotShared();
+    }
+
+    @Test
+    public void noStoreResponsesAreNotShared() throws Exception {
+        this.testServer.responseHeader = new String[]{
+            "Cache-Control",
+            "no-store"
+        };
+        assertNotShared();
+    }
+
+    @Test
+    public void responsesVaryingByOtherHeadersAreNotShared() throws Exception {
+        this.testServer.responseHeader = new String[]{
+            "Vary",
+            "Accept-Language"
+        };
+        assertNotShared();
+    }
+
+    @Test
+    public void responsesVaryingByKeyHeadersAreShared() throws Exception {
+        this.testServer.coalescer = new RequestCoalescer(5000, 1024, "Accept-Language");
+        this.testServer.responseHeader = new String[]{
+            "Vary",
+            "Accept-Language"
+        };
+        List<Fetch> fetches = fetch("/report", 3, 0);
+
+        assertEquals(1, this.testServer.calls.get());
+        assertEquals("/report #1", fetches.get(2).body);
+        assertEquals(2, this.testServer.coalescer.getCoalescedCount());
+    }
+
+    @Test
+    public void errorResponsesAreNotShared() throws Exception {
+        this.testServer.status = NanoHTTPD.Response.Status.INTERNAL_ERROR;
+        assertNotShared();
+    }
+
+    @Test
+    public void rangeRequestsAreNotCoalesced() throws Exception {
+        Fetch ranged = new Fetch("/report", "Range", "bytes=0-1");
+        ranged.start();
+        Thread.sleep(50);
+        List<Fetch> fetches = fetch("/report", 2, 0);
+        ranged.join();
+
+        assertEquals("partial #1", ranged.body);
+        for (Fetch fetch : fetches) {
+            assertEquals(true, fetch.body.startsWith("/report #"));
+        }
+        assertEquals(0, this.testServer.coalescer.getFallbackCount());
+    }
+
+    private void assertNotShared() throws Exception {
+        List<Fetch> fetches = fetch("/report", 3, 0);
+
+        assertEquals(3, this.testServer.calls.get());
+        assertEquals("/report #1", fetches.get(0).body);
+        assertEquals(0, this.testServer.coalescer.getCoalescedCount());
+        assertEquals(2, this.testServer.coalescer.getFallbackCount());
+    }
+
+    private static class Fetch extends Thread {
+
+        private final String uri;
+
+        private final String[] header;
+
+        private String body;
+
+        private Exception failure;
+
+        Fetch(String uri, String... header) {
+            this.uri = uri;
+            this.header = header;
+        }
+
+        @Override
+        public void run() {
+            DefaultHttpClient client = new DefaultHttpClient();
+            try {
+                HttpGet get = new HttpGet("http://localhost:8192" + this.uri);
+                if (this.header.length == 2) {
+                    get.addHeader(this.header[0], this.header[1]);
+                }
+                this.body = EntityUtils.toString(client.execute(get).getEntity());
+            } catch (Exception e) {
+                this.failure = e;
+            } finally {
+                client.getConnectionManager().shutdown();
+            }
+        }
+    }
+
+    private List<Fetch> fetch(String uri, int count, long staggerMillis, String... header) throws Exception {
+        List<Fetch> fetches = new ArrayList<Fetch>();
+        for (int i = 0; i < count; i++) {
+            Fetch fetch = new Fetch(uri, header);
+            fetches.add(fetch);
+            fetch.start();
+            if (i == 0) {
+                Thread.sleep(staggerMillis + 50);
+            }
+        }
+        for (Fetch fetch : fetches) {
+            fetch.join();
+            if (fetch.failure != null) {
+                throw fetch.failure;
+            }
+        }
+        return fetches;
+    }
+}
@@ -0,0 +1,205 @@
+package fi.iki.elonen.integration;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.ResponseCache;
+
+public class ResponseCacheIntegrationTest extends IntegrationTestBase<ResponseCacheIntegrationTest.TestServer> {
+
+    public static class TestServer extends NanoHTTPD {
+
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private ResponseCache cache = new ResponseCache(4096, 1024);
+
+        private String cacheControl = "max-age=60";
+
+        private String vary;
+
+        private Response.Status status = Response.Status.OK;
+
+        public TestServer() {
+            super(8192);
+            getServeFilters().add(this.cache);
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            int call = this.calls.incrementAndGet();
+            String variant = session.getHeaders().get("x-variant");
+            String body = session.getUri() + " " + variant + " #" + call;
+            Response response;
+            if (session.getHeaders().containsKey("range")) {
+                response = newFixedLengthResponse(Response.Status.PARTIAL_CONTENT, "application/octet-stream", body.substring(0, 2));
+                response.addHeader("Content-Range", "bytes 0-1/" + body.length());
+            } else if (session.getHeaders().containsKey("if-none-match")) {
+                response = newFixedLengthResponse(Response.Status.NOT_MODIFIED, "application/octet-stream", "");
+            } else {
+                response = newFixedLengthResponse(this.status, "application/octet-stream", body);
+            }
+            if (this.cacheControl != null) {
+                response.addHeader("Cache-Control", this.cacheControl);
+            }
+            if (this.vary != null) {
+                response.addHeader("Vary", this.vary);
+            }
+            return response;
+        }
+    }
+
+    @Override
+    public TestServer createTestServer() {
+        return new TestServer();
+    }
+
+    @Test
+    public void repeatedRequestsAreServedFromTheCache() throws Exception {
+        assertEquals("/a null #1", get("/a", null));
+        assertEquals("/a null #1", get("/a", null));
+        assertEquals(1, this.testServer.calls.get());
+        assertEquals(1, this.testServer.cache.getHitCount());
+        assertEquals(1, this.testServer.cache.getMissCount());
+        assertEquals(0.5, this.testServer.cache.getHitRate(), 0.001);
+    }
+
+    @Test
+    public void queriesAreCachedSeparately() throws Exception {
+        assertEquals("/a null #1", get("/a?x=1", null));
+        assertEquals("/a null #2", get("/a?x=2", null));
+        assertEquals("/a null #1", get("/a?x=1", null));
+    }
+
+    @Test
+    public void responsesWithoutMaxAgeAreNotCached() throws Exception {
+        this.testServer.cacheControl = null;
+        get("/a", null);
+        get("/a", null);
+        this.testServer.cacheControl = "private, max-age=60";
+        get("/b", null);
+        get("/b", null);
+        assertEquals(4, this.testServer.calls.get());
+        assertEquals(0, this.testServer.cache.getEntryCount());
+    }
+
+    @Test
+    public void variantsAreCachedByVaryHeaders() throws Exception {
+        this.testServer.vary = "X-Variant";
+        assertEquals("/a one #1", get("/a", "one"));
+        assertEquals("/a two #2", get("/a", "two"));
+        assertEquals("/a one #1", get("/a", "one"));
+        assertEquals("/a two #2", get("/a", "two"));
+        assertEquals(2, this.testServer.cache.getEntryCount());
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreEvicted() throws Exception {
+        for (int i = 0; i < 40; i++) {
+            get("/" + i, null);
+        }
+        assertEquals(true, this.testServer.cache.getSize() <= 4096);
+        assertEquals(true, this.testServer.cache.getEvictionCount() > 0);
+        assertEquals(40 - this.testServer.cache.getEvictionCount(), this.testServer.cache.getEntryCount());
+        // the most recent one is still there
+        assertEquals("/39 null #40", get("/39", null));
+    }
+
+    @Test
+    public void cachedResponsesCarryAge() throws Exception {
+        get("/a", null);
+        HttpResponse response = this.httpclient.execute(new HttpGet("http://localhost:8192/a"));
+        EntityUtils.consume(response.getEntity());
+        assertNotNull(response.getFirstHeader("Age"));
+        assertEquals("max-age=60", response.getFirstHeader("Cache-Control").getValue());
+    }
+
+    @Test
+    public void rangeRequestsBypassTheCache() throws Exception {
+        HttpGet ranged = new HttpGet("http://localhost:8192/a");
+        ranged.addHeader("Range", "bytes=0-1");
+        HttpResponse response = this.httpclient.execute(ranged);
+        assertEquals(206, response.getStatusLine().getStatusCode());
+        assertEquals("/a", EntityUtils.toString(response.getEntity()));
+        assertEquals(0, this.testServer.cache.getEntryCount());
+        assertEquals("/a null #2", get("/a", null));
+        // a cached full response is not used for a range either
+        response = this.httpclient.execute(ranged);
+        assertEquals(206, response.getStatusLine().getStatusCode());
+        EntityUtils.consume(response.getEntity());
+        assertEquals("/a null #2", get("/a", null));
+        assertEquals(3, this.testServer.calls.get());
+    }
+
+    @Test
+    public void conditionalRequestsBypassTheCache() throws Exception {
+        HttpGet conditional = new HttpGet("http://localhost:8192/a");
+        conditional.addHeader("If-None-Match", "\"x\"");
+        HttpResponse response = this.httpclient.execute(conditional);
+        assertEquals(304, response.getStatusLine().getStatusCode());
+        assertEquals(0, this.testServer.cache.getEntryCount());
+        assertEquals("/a null #2", get("/a", null));
+        assertEquals("/a null #2", get("/a", null));
+    }
+
+    @Test
+    public void onlyCacheableStatusesAreStored() throws Exception {
+        this.testServer.status = NanoHTTPD.Response.Status.INTERNAL_ERROR;
+        assertEquals("/a null #1", get("/a", null));
+        assertEquals("/a null #2", get("/a", null));
+        assertEquals(0, this.testServer.cache.getEntryCount());
+        this.testServer.status = NanoHTTPD.Response.Status.NOT_FOUND;
+        assertEquals("/b null #3", get("/b", null));
+        assertEquals("/b null #3", get("/b", null));
+        assertEquals(1, this.testServer.cache.getEntryCount());
+    }
+
+    private String get(String uri, String variant) throws Exception {
+        HttpGet request = new HttpGet("http://localhost:8192" + uri);
+        if (variant != null) {
+            request.addHeader("X-Variant", variant);
+        }
+        HttpResponse response = this.httpclient.execute(request);
+        return EntityUtils.toString(response.getEntity());
+    }
+}
@@ -0,0 +1,207 @@
+package fi.iki.elonen.integration;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import fi.iki.elonen.CacheSnapshot;
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.ResponseCache;
+
+public class ResponseCacheSnapshotTest extends IntegrationTestBase<ResponseCacheSnapshotTest.TestServer> {
+
+    private static final int ENTRIES = 200;
+
+    private final File snapshot = new File(System.getProperty("java.io.tmpdir"), "nanohttpd-cache-" + System.nanoTime() + ".snapshot");
+
+    public class TestServer extends NanoHTTPD {
+
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private final ResponseCache cache = new ResponseCache();
+
+        public TestServer() {
+            super(8192);
+            this.cache.setSnapshotFile(ResponseCacheSnapshotTest.this.snapshot);
+            getServeFilters().add(this.cache);
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            this.calls.incrementAndGet();
+            Response response = newFixedLengthResponse(Response.Status.OK, "application/octet-stream", "content of " + session.getUri());
+            response.addHeader("Cache-Control", "max-age=600");
+            response.addHeader("X-Origin", "handler");
+            return response;
+        }
+    }
+
+    @Override
+    public TestServer createTestServer() {
+        return new TestServer();
+    }
+
+    @After
+    public void deleteSnapshot() {
+        this.snapshot.delete();
+    }
+
+    @Test
+    public void restartedServerServesFromSnapshot() throws Exception {
+        for (int i = 0; i < ENTRIES; i++) {
+            get("/" + i);
+        }
+        restart();
+
+        assertEquals(ENTRIES, this.testServer.cache.getEntryCount());
+        for (int i = 0; i < ENTRIES; i++) {
+            assertEquals("content of /" + i, get("/" + i));
+        }
+        assertEquals(0, this.testServer.calls.get());
+        assertEquals(1.0, this.testServer.cache.getHitRate(), 0.0);
+    }
+
+    @Test
+    public void startupWithSnapshotReadsNoBodies() throws Exception {
+        for (int i = 0; i < ENTRIES; i++) {
+            get("/" + i);
+        }
+        restart();
+
+        // mapping the file only parses the entry metadata
+        assertEquals(ENTRIES, this.testServer.cache.getEntryCount());
+        assertEquals(0, this.testServer.cache.getHitCount() + this.testServer.cache.getMissCount());
+        assertEquals("content of /7", get("/7"));
+        assertEquals(1, this.testServer.cache.getHitCount());
+        assertEquals(0, this.testServer.calls.get());
+    }
+
+    @Test
+    public void malformedEntriesAreSkipped() throws Exception {
+        get("/a");
+        get("/b");
+        this.testServer.stop();
+        List<CacheSnapshot.Entry> entries = new ArrayList<CacheSnapshot.Entry>();
+        for (CacheSnapshot.Entry entry : CacheSnapshot.read(this.snapshot)) {
+            Map<String, String> metadata = new LinkedHashMap<String, String>(entry.getMetadata());
+            if (entry.getKey().startsWith("GET /b")) {
+                metadata.put(":status", "OK");
+            }
+            entries.add(new CacheSnapshot.Entry(entry.getKey(), metadata, entry.getExpires(), entry.getBody()));
+        }
+        File rewritten = new File(this.snapshot.getPath() + ".new");
+        CacheSnapshot.write(rewritten, entries);
+        assertTrue(rewritten.renameTo(this.snapshot));
+        this.testServer = new TestServer();
+        this.testServer.start();
+
+        assertEquals(1, this.testServer.cache.getEntryCount());
+        assertEquals(1, this.testServer.cache.getMalformedSnapshotEntryCount());
+        assertEquals("content of /a", get("/a"));
+        assertEquals("content of /b", get("/b"));
+        assertEquals(1, this.testServer.calls.get());
+    }
+
+    @Test
+    public void corruptEntriesAreDroppedOnFirstHit() throws Exception {
+        get("/a");
+        this.testServer.stop();
+        RandomAccessFile raf = new RandomAccessFile(this.snapshot, "rw");
+        try {
+            // the body is at the end of the file
+            raf.seek(raf.length() - 1);
+            raf.write('!');
+        } finally {
+            raf.close();
+        }
+        this.testServer = new TestServer();
+        this.testServer.start();
+
+        assertEquals(1, this.testServer.cache.getEntryCount());
+        assertEquals("content of /a", get("/a"));
+        assertEquals(1, this.testServer.calls.get());
+    }
+
+    @Test
+    public void corruptLengthsAreRejected() throws Exception {
+        get("/a");
+        this.testServer.stop();
+        RandomAccessFile raf = new RandomAccessFile(this.snapshot, "rw");
+        try {
+            // the length of the first key, after magic, version and count
+            raf.seek(12);
+            raf.writeInt(Integer.MAX_VALUE);
+        } finally {
+            raf.close();
+        }
+        try {
+            CacheSnapshot.read(this.snapshot);
+            fail("corrupt snapshot was read");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Corrupt cache snapshot"));
+        }
+        this.testServer = new TestServer();
+        this.testServer.start();
+
+        assertEquals(0, this.testServer.cache.getEntryCount());
+        assertEquals("content of /a", get("/a"));
+    }
+
+    private void restart() throws Exception {
+        this.testServer.stop();
+        assertTrue(this.snapshot.isFile());
+        this.testServer = new TestServer();
+        this.testServer.start();
+    }
+
+    private String get(String uri) throws Exception {
+        return EntityUtils.toString(this.httpclient.execute(new HttpGet("http://localhost:8192" + uri)).getEntity());
+    }
+}
@@ -0,0 +1,237 @@
+package fi.iki.elonen.integration;
+
+/*
+ * #%L
+ * NanoHttpd-Core
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import fi.iki.elonen.BandwidthLimiter;
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.SlowClientGuard;
+
+public class SlowClientGuardIntegrationTest extends IntegrationTestBase<SlowClientGuardIntegrationTest.TestServer> {
+
+    public static class TestServer extends NanoHTTPD {
+
+        public TestServer() {
+            super(8192);
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            if ("/large".equals(session.getUri())) {
+                int length = 64 * 1024 * 1024;
+                return newFixedLengthResponse(Response.Status.OK, "application/octet-stream", new ByteArrayInputStream(new byte[length]), length);
+            }
+            if ("/throttled".equals(session.getUri())) {
+                int length = 48 * 1024;
+                Response response = newFixedLengthResponse(Response.Status.OK, "application/octet-stream", new ByteArrayInputStream(new byte[length]), length);
+                // well below the minimum send rate of the guard
+                response.setBandwidthLimiter(new BandwidthLimiter(32 * 1024, 16 * 1024));
+                return response;
+            }
+            if ("/upload".equals(session.getUri())) {
+                try {
+                    session.parseBody(new HashMap<String, String>());
+                } catch (Exception e) {
+                    return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, e.getMessage());
+                }
+            }
+            return newFixedLengthResponse("ok");
+        }
+    }
+
+    @Override
+    public TestServer createTestServer() {
+        TestServer server = new TestServer();
+        server.setSlowClientGuard(new SlowClientGuard(300, 300, 100, 300, 1024 * 1024));
+        return server;
+    }
+
+    @Test
+    public void testNormalRequest() throws Exception {
+        Socket socket = connect();
+        try {
+            send(socket, "GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            assertEquals("HTTP/1.1 200 OK", in.readLine().trim());
+        } finally {
+            socket.close();
+        }
+        SlowClientGuard guard = this.testServer.getSlowClientGuard();
+        assertEquals(0, guard.getHeaderTimeoutCount() + guard.getBodyTimeoutCount() + guard.getSendTimeoutCount());
+    }
+
+    @Test
+    public void testStopEndsTheChecker() throws Exception {
+        Socket socket = connect();
+        try {
+            send(socket, "GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            assertEquals("HTTP/1.1 200 OK", in.readLine().trim());
+        } finally {
+            socket.close();
+        }
+        int running = countCheckers();
+        assertTrue(running > 0);
+        this.testServer.stop();
+        assertEquals(running - 1, countCheckers());
+    }
+
+    @Test
+    public void testHeaderDeadline() throws Exception {
+        Socket socket = connect();
+        try {
+            send(socket, "GET / HTTP/1.1\r\n");
+            // one header byte at a time, each well within the read timeout
+            try {
+                for (int i = 0; i < 40 && this.testServer.getSlowClientGuard().getHeaderTimeoutCount() == 0; i++) {
+                    send(socket, "X");
+                    Thread.sleep(50);
+                }
+            } catch (IOException e) {
+                // the server closed the connection
+            }
+            assertEquals(1, this.testServer.getSlowClientGuard().getHeaderTimeoutCount());
+            assertClosed(socket);
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testSlowBody() throws Exception {
+        Socket socket = connect();
+        try {
+            send(socket, "POST /upload HTTP/1.1\r\nHost: localhost\r\nContent-Type: text/plain\r\nContent-Length: 1000\r\n\r\n0123456789");
+            awaitCount(this.testServer.getSlowClientGuard(), false);
+            assertEquals(1, this.testServer.getSlowClientGuard().getBodyTimeoutCount());
+            assertClosed(socket);
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testSlowReader() throws Exception {
+        Socket socket = connect();
+        try {
+            // never read, so the server blocks once the socket buffers are
+            // full
+            send(socket, "GET /large HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            awaitCount(this.testServer.getSlowClientGuard(), true);
+            assertEquals(1, this.testServer.getSlowClientGuard().getSendTimeoutCount());
+            assertEquals(0, this.testServer.getSlowClientGuard().getHeaderTimeoutCount());
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testThrottledResponse() throws Exception {
+        Socket socket = connect();
+        try {
+            send(socket, "GET /throttled HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[4096];
+            long total = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+            }
+            assertTrue(total > 48 * 1024);
+        } finally {
+            socket.close();
+        }
+        assertEquals(0, this.testServer.getSlowClientGuard().getSendTimeoutCount());
+    }
+
+    private static int countCheckers() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && "NanoHttpd Slow Client Guard".equals(thread.getName())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Socket connect() throws IOException {
+        Socket socket = new Socket("localhost", 8192);
+        socket.setSoTimeout(5000);
+        socket.setReceiveBufferSize(4096);
+        return socket;
+    }
+
+    private static void send(Socket socket, String data) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(data.getBytes("UTF-8"));
+        out.flush();
+    }
+
+    private static void awaitCount(SlowClientGuard guard, boolean send) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((send ? guard.getSendTimeoutCount() : guard.getBodyTimeoutCount()) == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static void assertClosed(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        try {
+            // skip whatever the server sent before closing
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) >= 0) {
+                continue;
+            }
+        } catch (SocketTimeoutException e) {
+            fail("the connection is still open");
+        } catch (IOException e) {
+            // connection reset
+        }
+    }
+}
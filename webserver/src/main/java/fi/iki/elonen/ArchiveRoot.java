@@ -0,0 +1,435 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import fi.iki.elonen.NanoHTTPD.StreamingBody;
+import fi.iki.elonen.NanoHTTPD.StreamingOutputStream;
+
+/**
+ * A zip or jar archive served by {@link SimpleWebServer} next to its root
+ * directories, so that a static site can be deployed as a single file
+ * instead of thousands of small ones.
+ * <p/>
+ * The central directory is read once when the archive is opened and kept
+ * as a hash map from entry name to offset, sizes and checksum. The archive
+ * stays open, so serving an entry neither opens a file nor searches the
+ * archive: STORED entries are transferred straight from their offset, and
+ * DEFLATED entries are sent as they are, wrapped in a gzip header and
+ * trailer, to clients accepting gzip. Other clients get them inflated while
+ * sending.
+ * <p/>
+ * The index is not refreshed, an archive replaced on disk needs a new
+ * ArchiveRoot. Zip64 archives and encrypted entries are not supported.
+ */
+public class ArchiveRoot {
+
+    /**
+     * An entry of the central directory.
+     */
+    public static final class Entry {
+
+        private final String name;
+
+        private final int method;
+
+        private final long crc;
+
+        private final long compressedSize;
+
+        private final long size;
+
+        private final long localHeaderOffset;
+
+        private final long lastModified;
+
+        private volatile long dataOffset = -1;
+
+        Entry(String name, int method, long crc, long compressedSize, long size, long localHeaderOffset, long lastModified) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+            this.lastModified = lastModified;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public boolean isDeflated() {
+            return this.method == ArchiveRoot.DEFLATED;
+        }
+
+        public long getCrc() {
+            return this.crc;
+        }
+
+        public long getCompressedSize() {
+            return this.compressedSize;
+        }
+
+        public long getSize() {
+            return this.size;
+        }
+
+        public long getLastModified() {
+            return this.lastModified;
+        }
+
+        /**
+         * @return an entity-tag of the uncompressed content, from its
+         *         checksum and size.
+         */
+        public String getETag() {
+            return "\"" + Long.toHexString(this.crc) + "-" + Long.toHexString(this.size) + "\"";
+        }
+
+        /**
+         * @return the length of the entry sent as gzip.
+         */
+        public long getGzipLength() {
+            return ArchiveRoot.GZIP_HEADER.length + this.compressedSize + 8;
+        }
+    }
+
+    private static final int STORED = 0;
+
+    private static final int DEFLATED = 8;
+
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+
+    private static final int CENTRAL_DIRECTORY_HEADER = 0x02014b50;
+
+    private static final int LOCAL_FILE_HEADER = 0x04034b50;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] GZIP_HEADER = {
+        0x1f,
+        (byte) 0x8b,
+        DEFLATED,
+        0,
+        0,
+        0,
+        0,
+        0,
+        0,
+        (byte) 0xff
+    };
+
+    private final File file;
+
+    private final String prefix;
+
+    private final RandomAccessFile archive;
+
+    private final FileChannel channel;
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    private final Set<String> directories = new HashSet<String>();
+
+    public ArchiveRoot(File file) throws IOException {
+        this(file, "");
+    }
+
+    /**
+     * @param prefix
+     *            the directory of the archive holding the site, like
+     *            "META-INF/resources/", or "" to serve the whole archive.
+     */
+    public ArchiveRoot(File file, String prefix) throws IOException {
+        this.file = file;
+        this.prefix = prefix.length() > 0 && !prefix.endsWith("/") ? prefix + "/" : prefix;
+        this.archive = new RandomAccessFile(file, "r");
+        this.channel = this.archive.getChannel();
+        try {
+            readCentralDirectory();
+        } catch (IOException e) {
+            this.archive.close();
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    public String getPrefix() {
+        return this.prefix;
+    }
+
+    /**
+     * @return the number of files served from the archive.
+     */
+    public int getEntryCount() {
+        return this.entries.size();
+    }
+
+    /**
+     * @return the file entry for a URI, or null if the archive does not
+     *         contain it.
+     */
+    public Entry getEntry(String uri) {
+        return this.entries.get(name(uri));
+    }
+
+    /**
+     * @return true if the URI names a directory of the archive, with or
+     *         without the trailing '/'.
+     */
+    public boolean isDirectory(String uri) {
+        String name = name(uri);
+        return name.equals(this.prefix) || this.directories.contains(name.endsWith("/") ? name : name + "/");
+    }
+
+    /**
+     * Creates a body with part of the uncompressed content of an entry.
+     * STORED entries are transferred from the archive, DEFLATED ones are
+     * inflated while writing.
+     */
+    public StreamingBody body(final Entry entry, final long offset, final long count) {
+        return new StreamingBody() {
+
+            @Override
+            public void writeTo(StreamingOutputStream out) throws IOException {
+                if (entry.isDeflated()) {
+                    inflate(entry, offset, count, out);
+                } else {
+                    transfer(dataOffset(entry) + offset, count, out.getChannel());
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates a body with a DEFLATED entry as gzip, the compressed data of
+     * the archive between a gzip header and trailer.
+     */
+    public StreamingBody gzipBody(final Entry entry) {
+        return new StreamingBody() {
+
+            @Override
+            public void writeTo(StreamingOutputStream out) throws IOException {
+                out.write(GZIP_HEADER);
+                transfer(dataOffset(entry), entry.getCompressedSize(), out.getChannel());
+                byte[] trailer = new byte[8];
+                ByteBuffer.wrap(trailer).order(ByteOrder.LITTLE_ENDIAN).putInt((int) entry.getCrc()).putInt((int) entry.getSize());
+                out.write(trailer);
+            }
+        };
+    }
+
+    /**
+     * Closes the archive, entries can no longer be sent afterwards.
+     */
+    public void close() throws IOException {
+        this.archive.close();
+    }
+
+    private String name(String uri) {
+        while (uri.startsWith("/")) {
+            uri = uri.substring(1);
+        }
+        return this.prefix + uri;
+    }
+
+    private void readCentralDirectory() throws IOException {
+        long length = this.channel.size();
+        int tail = (int) Math.min(length, 22 + 0xffff);
+        ByteBuffer end = read(length - tail, tail);
+        int eocd = -1;
+        for (int i = tail - 22; i >= 0; i--) {
+            if (end.getInt(i) == END_OF_CENTRAL_DIRECTORY) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException("Not a zip archive: " + this.file);
+        }
+        int count = end.getShort(eocd + 10) & 0xffff;
+        long size = end.getInt(eocd + 12) & 0xffffffffL;
+        long offset = end.getInt(eocd + 16) & 0xffffffffL;
+        if (count == 0xffff || size == 0xffffffffL || offset == 0xffffffffL) {
+            throw new IOException("Zip64 archives are not supported: " + this.file);
+        }
+        if (offset + size > length) {
+            throw new IOException("Invalid central directory: " + this.file);
+        }
+        ByteBuffer directory = read(offset, (int) size);
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            if (pos + 46 > directory.limit() || directory.getInt(pos) != CENTRAL_DIRECTORY_HEADER) {
+                throw new IOException("Invalid central directory: " + this.file);
+            }
+            int flags = directory.getShort(pos + 8) & 0xffff;
+            int method = directory.getShort(pos + 10) & 0xffff;
+            int time = directory.getShort(pos + 12) & 0xffff;
+            int date = directory.getShort(pos + 14) & 0xffff;
+            long crc = directory.getInt(pos + 16) & 0xffffffffL;
+            long compressedSize = directory.getInt(pos + 20) & 0xffffffffL;
+            long uncompressedSize = directory.getInt(pos + 24) & 0xffffffffL;
+            int nameLength = directory.getShort(pos + 28) & 0xffff;
+            int extraLength = directory.getShort(pos + 30) & 0xffff;
+            int commentLength = directory.getShort(pos + 32) & 0xffff;
+            long localHeaderOffset = directory.getInt(pos + 42) & 0xffffffffL;
+            byte[] nameBytes = new byte[nameLength];
+            directory.position(pos + 46);
+            directory.get(nameBytes);
+            String name = new String(nameBytes, (flags & 0x800) != 0 ? "UTF-8" : "ISO-8859-1");
+            pos += 46 + nameLength + extraLength + commentLength;
+
+            if (!name.startsWith(this.prefix)) {
+                continue;
+            }
+            addDirectories(name);
+            boolean encrypted = (flags & 1) != 0;
+            if (name.endsWith("/") || encrypted || method != STORED && method != DEFLATED) {
+                continue;
+            }
+            this.entries.put(name, new Entry(name, method, crc, compressedSize, uncompressedSize, localHeaderOffset, dosToJavaTime(date, time)));
+        }
+    }
+
+    private void addDirectories(String name) {
+        int slash = name.indexOf('/', this.prefix.length());
+        while (slash >= 0) {
+            this.directories.add(name.substring(0, slash + 1));
+            slash = name.indexOf('/', slash + 1);
+        }
+    }
+
+    /**
+     * @return the offset of the data of an entry, read from its local file
+     *         header the first time it is needed.
+     */
+    private long dataOffset(Entry entry) throws IOException {
+        long offset = entry.dataOffset;
+        if (offset < 0) {
+            ByteBuffer header = read(entry.localHeaderOffset, 30);
+            if (header.getInt(0) != LOCAL_FILE_HEADER) {
+                throw new IOException("Invalid local file header for " + entry.getName() + " in " + this.file);
+            }
+            offset = entry.localHeaderOffset + 30 + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+            entry.dataOffset = offset;
+        }
+        return offset;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("unexpected end of " + this.file);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private void transfer(long position, long count, WritableByteChannel out) throws IOException {
+        while (count > 0) {
+            long n = this.channel.transferTo(position, count, out);
+            if (n <= 0) {
+                throw new IOException("unexpected end of " + this.file);
+            }
+            position += n;
+            count -= n;
+        }
+    }
+
+    private void inflate(Entry entry, long offset, long count, StreamingOutputStream out) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            long position = dataOffset(entry);
+            long remaining = entry.getCompressedSize();
+            ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+            byte[] output = new byte[BUFFER_SIZE];
+            while (count > 0) {
+                if (inflater.needsInput()) {
+                    if (remaining <= 0) {
+                        throw new IOException("unexpected end of " + entry.getName() + " in " + this.file);
+                    }
+                    input.clear();
+                    input.limit((int) Math.min(input.capacity(), remaining));
+                    int n = this.channel.read(input, position);
+                    if (n <= 0) {
+                        throw new IOException("unexpected end of " + this.file);
+                    }
+                    position += n;
+                    remaining -= n;
+                    inflater.setInput(input.array(), 0, n);
+                }
+                int n = inflater.inflate(output);
+                if (n == 0 && (inflater.finished() || inflater.needsDictionary())) {
+                    throw new IOException("unexpected end of " + entry.getName() + " in " + this.file);
+                }
+                int skip = (int) Math.min(offset, n);
+                offset -= skip;
+                int len = (int) Math.min(count, n - skip);
+                out.write(output, skip, len);
+                count -= len;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed data for " + entry.getName() + " in " + this.file);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static long dosToJavaTime(int date, int time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(((date >> 9) & 0x7f) + 1980, ((date >> 5) & 0x0f) - 1, date & 0x1f, (time >> 11) & 0x1f, (time >> 5) & 0x3f, (time & 0x1f) * 2);
+        return calendar.getTimeInMillis();
+    }
+}
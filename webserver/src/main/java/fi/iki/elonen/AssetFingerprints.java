@@ -0,0 +1,345 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Content fingerprints of the files below the root directories of a
+ * {@link SimpleWebServer}, used to serve every file also under a URL that
+ * changes whenever its content does: /js/app.js as /js/app.3f9a1c07d2.js.
+ * Such URLs can be cached by clients forever, they never revalidate them.
+ * <p/>
+ * {@link #scan(int)} hashes all files once, several at a time. Templates and
+ * plugins get the current URL of a file from
+ * {@link #getFingerprintedUri(String)} or the whole {@link #getManifest()}.
+ * A file is hashed again when its modification time or length changed,
+ * checked at most once a second per file, or right away when it is about to
+ * be served with other ones. URLs handed out for older versions are
+ * forgotten and answered with 404 Not Found, so a fingerprinted URL never
+ * serves other content than the one it names.
+ */
+public class AssetFingerprints {
+
+    /**
+     * The Cache-Control header sent with files requested by their current
+     * fingerprinted URL.
+     */
+    public static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+    /**
+     * Files larger than this are not fingerprinted.
+     */
+    public static final long DEFAULT_MAX_FILE_SIZE = 16 * 1024 * 1024;
+
+    private static final int FINGERPRINT_LENGTH = 10;
+
+    private static final long CHECK_INTERVAL = 1000;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final class Fingerprint {
+
+        private final File file;
+
+        private final long lastModified;
+
+        private final long length;
+
+        private final String fingerprintedUri;
+
+        private volatile long checked;
+
+        private Fingerprint(File file, long lastModified, long length, String fingerprintedUri) {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.fingerprintedUri = fingerprintedUri;
+            this.checked = System.currentTimeMillis();
+        }
+
+        private boolean isOf(long lastModified, long length) {
+            return this.lastModified == lastModified && this.length == length;
+        }
+    }
+
+    private final List<File> rootDirs;
+
+    private final long maxFileSize;
+
+    private final ConcurrentHashMap<String, Fingerprint> byUri = new ConcurrentHashMap<String, Fingerprint>();
+
+    private final ConcurrentHashMap<String, String> byFingerprintedUri = new ConcurrentHashMap<String, String>();
+
+    public AssetFingerprints(List<File> rootDirs) {
+        this(rootDirs, DEFAULT_MAX_FILE_SIZE);
+    }
+
+    public AssetFingerprints(List<File> rootDirs, long maxFileSize) {
+        this.rootDirs = new ArrayList<File>(rootDirs);
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * Hashes all files below the root directories. A file present in
+     * several roots is taken from the first, as {@link SimpleWebServer}
+     * does.
+     * 
+     * @param threads
+     *            the number of files hashed in parallel.
+     * @return the number of files fingerprinted.
+     */
+    public int scan(int threads) throws IOException {
+        final Map<String, File> files = new HashMap<String, File>();
+        for (File root : this.rootDirs) {
+            collect(root, "/", files);
+        }
+        if (files.isEmpty()) {
+            return 0;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, files.size())));
+        try {
+            List<Future<?>> results = new ArrayList<Future<?>>(files.size());
+            for (final Map.Entry<String, File> file : files.entrySet()) {
+                results.add(executor.submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws IOException {
+                        fingerprint(file.getKey(), file.getValue());
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+            return files.size();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while hashing files");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("hashing files failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param uri
+     *            the URI of a file, e.g. "/js/app.js".
+     * @return the fingerprinted URI of the current content of the file, e.g.
+     *         "/js/app.3f9a1c07d2.js", or the URI itself if the file was
+     *         not fingerprinted.
+     */
+    public String getFingerprintedUri(String uri) {
+        Fingerprint fingerprint = current(uri);
+        return fingerprint != null ? fingerprint.fingerprintedUri : uri;
+    }
+
+    /**
+     * @return the URI of the file a fingerprinted URI stands for, or null if
+     *         the URI is not a fingerprinted one.
+     */
+    public String getOriginalUri(String fingerprintedUri) {
+        return this.byFingerprintedUri.get(fingerprintedUri);
+    }
+
+    /**
+     * Checks whether a fingerprinted URI names the content about to be
+     * served for it. The file is hashed again first if its modification
+     * time or length differ from the ones it was hashed with.
+     * 
+     * @param lastModified
+     *            the modification time of the file being served.
+     * @param length
+     *            the length of the file being served.
+     * @return true if the file was hashed with the given modification time
+     *         and length, and the fingerprinted URI is the one of that hash.
+     */
+    public boolean isCurrent(String fingerprintedUri, long lastModified, long length) {
+        String uri = this.byFingerprintedUri.get(fingerprintedUri);
+        if (uri == null) {
+            return false;
+        }
+        Fingerprint fingerprint = current(uri);
+        if (fingerprint != null && !fingerprint.isOf(lastModified, length)) {
+            fingerprint = refresh(uri, fingerprint);
+        }
+        return fingerprint != null && fingerprint.isOf(lastModified, length) && fingerprint.fingerprintedUri.equals(fingerprintedUri);
+    }
+
+    /**
+     * @return a sorted copy of the mapping from file URIs to their
+     *         fingerprinted URIs.
+     */
+    public Map<String, String> getManifest() {
+        Map<String, String> manifest = new TreeMap<String, String>();
+        for (Map.Entry<String, Fingerprint> entry : this.byUri.entrySet()) {
+            manifest.put(entry.getKey(), entry.getValue().fingerprintedUri);
+        }
+        return Collections.unmodifiableMap(manifest);
+    }
+
+    /**
+     * @return the fingerprint of a file, hashed again when the file changed,
+     *         or null if it is unknown or gone.
+     */
+    private Fingerprint current(String uri) {
+        Fingerprint fingerprint = this.byUri.get(uri);
+        if (fingerprint == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now - fingerprint.checked < CHECK_INTERVAL) {
+            return fingerprint;
+        }
+        fingerprint.checked = now;
+        return refresh(uri, fingerprint);
+    }
+
+    /**
+     * @return the fingerprint of the file as it is now on disk, or null if
+     *         it is gone.
+     */
+    private Fingerprint refresh(String uri, Fingerprint fingerprint) {
+        File file = fingerprint.file;
+        if (fingerprint.isOf(file.lastModified(), file.length())) {
+            return fingerprint;
+        }
+        if (!file.isFile()) {
+            if (this.byUri.remove(uri, fingerprint)) {
+                this.byFingerprintedUri.remove(fingerprint.fingerprintedUri, uri);
+            }
+            return null;
+        }
+        try {
+            return fingerprint(uri, file);
+        } catch (IOException e) {
+            return fingerprint;
+        }
+    }
+
+    /**
+     * Hashes a file and records its fingerprint, forgetting the fingerprinted
+     * URI of the content it had before.
+     */
+    private Fingerprint fingerprint(String uri, File file) throws IOException {
+        long lastModified = file.lastModified();
+        long length = file.length();
+        Fingerprint fingerprint = new Fingerprint(file, lastModified, length, fingerprintedUri(uri, hash(file)));
+        this.byFingerprintedUri.put(fingerprint.fingerprintedUri, uri);
+        Fingerprint old = this.byUri.put(uri, fingerprint);
+        if (old != null && !old.fingerprintedUri.equals(fingerprint.fingerprintedUri)) {
+            this.byFingerprintedUri.remove(old.fingerprintedUri, uri);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Inserts the fingerprint before the extension of the file name, or
+     * appends it if the name has none.
+     */
+    static String fingerprintedUri(String uri, String hash) {
+        int slash = uri.lastIndexOf('/');
+        int dot = uri.lastIndexOf('.');
+        if (dot <= slash + 1) {
+            return uri + "." + hash;
+        }
+        return uri.substring(0, dot) + "." + hash + uri.substring(dot);
+    }
+
+    private static String hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        byte[] hash = digest.digest();
+        char[] hex = new char[FINGERPRINT_LENGTH];
+        for (int i = 0; i < hex.length; i++) {
+            int b = hash[i / 2];
+            hex[i] = HEX[i % 2 == 0 ? b >> 4 & 0xf : b & 0xf];
+        }
+        return new String(hex);
+    }
+
+    private void collect(File dir, String uri, Map<String, File> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.getName().startsWith(".")) {
+                continue;
+            }
+            if (child.isDirectory()) {
+                collect(child, uri + child.getName() + "/", files);
+            } else if (child.isFile() && child.length() <= this.maxFileSize && !files.containsKey(uri + child.getName())) {
+                files.put(uri + child.getName(), child);
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Parses the Range request header of RFC 7233 for byte ranges: "bytes=0-99",
+ * open ranges "bytes=100-", suffix ranges "bytes=-500" and lists of them
+ * such as "bytes=0-99,200-299".
+ * <p/>
+ * Ranges are returned as inclusive {first, last} pairs within the
+ * representation, sorted by their first byte, with overlapping and adjacent
+ * ranges coalesced into one.
+ */
+public final class ByteRanges {
+
+    /**
+     * Requests with more ranges than this, after coalescing, get the whole
+     * representation, a cheap defense against range requests crafted to make
+     * the server do lots of small writes.
+     */
+    public static final int MAX_RANGES = 64;
+
+    private static final Comparator<long[]> BY_FIRST_BYTE = new Comparator<long[]>() {
+
+        @Override
+        public int compare(long[] a, long[] b) {
+            return a[0] < b[0] ? -1 : a[0] == b[0] ? 0 : 1;
+        }
+    };
+
+    private ByteRanges() {
+    }
+
+    /**
+     * @param range
+     *            the Range request header.
+     * @param length
+     *            the length of the representation.
+     * @return the satisfiable ranges, an empty list when none is
+     *         satisfiable (416), or null when the header is invalid, uses
+     *         another unit or asks for too many ranges, so that it must be
+     *         ignored.
+     */
+    public static List<long[]> parse(String range, long length) {
+        if (range == null) {
+            return null;
+        }
+        range = range.trim();
+        if (!range.regionMatches(true, 0, "bytes=", 0, "bytes=".length())) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<long[]>();
+        boolean valid = false;
+        for (String spec : range.substring("bytes=".length()).split(",")) {
+            spec = spec.trim();
+            if (spec.length() == 0) {
+                continue;
+            }
+            int minus = spec.indexOf('-');
+            if (minus < 0) {
+                return null;
+            }
+            long first;
+            long last;
+            try {
+                if (minus == 0) {
+                    long suffix = parseNumber(spec.substring(1));
+                    first = Math.max(0, length - suffix);
+                    last = suffix > 0 ? length - 1 : -1;
+                } else {
+                    first = parseNumber(spec.substring(0, minus));
+                    String end = spec.substring(minus + 1).trim();
+                    if (end.length() == 0) {
+                        last = length - 1;
+                    } else {
+                        last = parseNumber(end);
+                        if (last < first) {
+                            return null;
+                        }
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            valid = true;
+            if (first < length && last >= first) {
+                ranges.add(new long[]{
+                    first,
+                    Math.min(last, length - 1)
+                });
+            }
+        }
+        if (!valid) {
+            return null;
+        }
+        ranges = coalesce(ranges);
+        return ranges.size() > MAX_RANGES ? null : ranges;
+    }
+
+    /**
+     * @return the sum of the lengths of the ranges.
+     */
+    public static long length(List<long[]> ranges) {
+        long length = 0;
+        for (long[] range : ranges) {
+            length += range[1] - range[0] + 1;
+        }
+        return length;
+    }
+
+    static List<long[]> coalesce(List<long[]> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        Collections.sort(ranges, BY_FIRST_BYTE);
+        List<long[]> coalesced = new ArrayList<long[]>(ranges.size());
+        long[] current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            long[] next = ranges.get(i);
+            if (next[0] <= current[1] + 1) {
+                current = new long[]{
+                    current[0],
+                    Math.max(current[1], next[1])
+                };
+            } else {
+                coalesced.add(current);
+                current = next;
+            }
+        }
+        coalesced.add(current);
+        return coalesced;
+    }
+
+    private static long parseNumber(String digits) {
+        digits = digits.trim();
+        if (digits.length() == 0 || digits.charAt(0) == '+' || digits.charAt(0) == '-') {
+            throw new NumberFormatException(digits);
+        }
+        return Long.parseLong(digits);
+    }
+}
@@ -0,0 +1,294 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import fi.iki.elonen.NanoHTTPD.ContentEncoder;
+
+/**
+ * Keeps compressed copies of static files, so that {@link SimpleWebServer}
+ * compresses a file once per content-coding instead of on every request.
+ * <p/>
+ * Variants are keyed by file, modification time, length and coding. On a miss the
+ * file is compressed right away, or, in background mode, by a background
+ * thread while the request gets the uncompressed file. The size limit counts
+ * the compressed bytes; the least recently used variants are evicted once
+ * it is exceeded.
+ */
+public class CompressedVariantCache {
+
+    private static final Logger LOG = Logger.getLogger(CompressedVariantCache.class.getName());
+
+    public static final long DEFAULT_MAX_SIZE = 16 * 1024 * 1024;
+
+    public static final int DEFAULT_MAX_FILE_SIZE = 1024 * 1024;
+
+    private final long maxSize;
+
+    private final int maxFileSize;
+
+    private final boolean background;
+
+    private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+
+    private final Set<String> pending = new HashSet<String>();
+
+    private ExecutorService executor;
+
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    public CompressedVariantCache() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_MAX_FILE_SIZE, false);
+    }
+
+    /**
+     * @param maxSize
+     *            the maximum number of compressed bytes kept.
+     * @param maxFileSize
+     *            the size of the largest file compressed.
+     * @param background
+     *            whether to compress on a background thread rather than
+     *            while answering the first request.
+     */
+    public CompressedVariantCache(long maxSize, int maxFileSize, boolean background) {
+        this.maxSize = maxSize;
+        this.maxFileSize = maxFileSize;
+        this.background = background;
+    }
+
+    /**
+     * @return true if files of the given length are compressed by this
+     *         cache.
+     */
+    public boolean accepts(long length) {
+        return length <= this.maxFileSize && this.maxSize > 0;
+    }
+
+    /**
+     * Returns a file compressed with the given coding.
+     * 
+     * @return a buffer holding the compressed file, or null when the file is
+     *         too large, is being compressed in the background or changed
+     *         while it was read.
+     */
+    public ByteBuffer get(final File file, final long length, final long lastModified, final ContentEncoder encoder) throws IOException {
+        if (!accepts(length)) {
+            return null;
+        }
+        final String key = file.getPath() + '\n' + lastModified + '\n' + length + '\n' + encoder.getEncoding();
+        synchronized (this.entries) {
+            ByteBuffer compressed = this.entries.get(key);
+            if (compressed != null) {
+                this.hits.incrementAndGet();
+                return compressed.duplicate();
+            }
+            if (this.background && !this.pending.add(key)) {
+                return null;
+            }
+        }
+        this.misses.incrementAndGet();
+        if (!this.background) {
+            ByteBuffer compressed = compress(file, length, encoder);
+            if (compressed != null) {
+                put(key, compressed);
+                return compressed.duplicate();
+            }
+            return null;
+        }
+        executor().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    ByteBuffer compressed = compress(file, length, encoder);
+                    if (compressed != null) {
+                        put(key, compressed);
+                    }
+                } catch (IOException e) {
+                    CompressedVariantCache.LOG.log(Level.FINE, "Could not compress " + file, e);
+                } finally {
+                    synchronized (CompressedVariantCache.this.entries) {
+                        CompressedVariantCache.this.pending.remove(key);
+                    }
+                }
+            }
+        });
+        return null;
+    }
+
+    /**
+     * Removes all entries and stops the background thread, if any.
+     */
+    public void clear() {
+        synchronized (this.entries) {
+            this.entries.clear();
+            this.size = 0;
+            if (this.executor != null) {
+                this.executor.shutdown();
+                this.executor = null;
+            }
+        }
+    }
+
+    public long getMaxSize() {
+        return this.maxSize;
+    }
+
+    public int getMaxFileSize() {
+        return this.maxFileSize;
+    }
+
+    public boolean isBackground() {
+        return this.background;
+    }
+
+    public int getEntryCount() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    /**
+     * @return the number of compressed bytes kept.
+     */
+    public long getSize() {
+        synchronized (this.entries) {
+            return this.size;
+        }
+    }
+
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+    /**
+     * @return the number of variants removed to make room for others.
+     */
+    public long getEvictionCount() {
+        return this.evictions.get();
+    }
+
+    private ExecutorService executor() {
+        synchronized (this.entries) {
+            if (this.executor == null) {
+                this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "NanoHttpd Compressor");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            return this.executor;
+        }
+    }
+
+    private void put(String key, ByteBuffer compressed) {
+        if (compressed.capacity() > this.maxSize) {
+            return;
+        }
+        synchronized (this.entries) {
+            ByteBuffer previous = this.entries.put(key, compressed);
+            if (previous != null) {
+                this.size -= previous.capacity();
+            }
+            this.size += compressed.capacity();
+            Iterator<Map.Entry<String, ByteBuffer>> iterator = this.entries.entrySet().iterator();
+            while (this.size > this.maxSize && iterator.hasNext()) {
+                Map.Entry<String, ByteBuffer> eldest = iterator.next();
+                if (eldest.getValue() == compressed) {
+                    continue;
+                }
+                iterator.remove();
+                this.size -= eldest.getValue().capacity();
+                this.evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private static ByteBuffer compress(File file, long length, ContentEncoder encoder) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(length / 2 + 64, 64 * 1024));
+        long read = 0;
+        InputStream in = new FileInputStream(file);
+        try {
+            OutputStream out = encoder.encode(bytes);
+            try {
+                byte[] buffer = new byte[16 * 1024];
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, n);
+                    read += n;
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (read != length) {
+            return null;
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+}
@@ -0,0 +1,335 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A sorted snapshot of the entries of a directory, read with a single
+ * listing of the directory, and its rendered pages.
+ * <p/>
+ * {@link SimpleWebServer} keeps snapshots as long as the modification time
+ * of the directory does not change, which happens when entries are added,
+ * removed or renamed. Pages are rendered as HTML or JSON, a few hundred
+ * entries at a time, and the last rendered pages are kept with the snapshot.
+ */
+final class DirectoryListing {
+
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    public static final int MAX_PAGE_SIZE = 10000;
+
+    private static final int MAX_RENDERED_PAGES = 8;
+
+    private static final Comparator<File> BY_NAME = new Comparator<File>() {
+
+        @Override
+        public int compare(File a, File b) {
+            return a.getName().compareTo(b.getName());
+        }
+    };
+
+    private final long lastModified;
+
+    private final String[] directories;
+
+    private final String[] files;
+
+    private final long[] sizes;
+
+    private final LinkedHashMap<String, byte[]> rendered = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > MAX_RENDERED_PAGES;
+        }
+    };
+
+    private DirectoryListing(long lastModified, String[] directories, String[] files, long[] sizes) {
+        this.lastModified = lastModified;
+        this.directories = directories;
+        this.files = files;
+        this.sizes = sizes;
+    }
+
+    /**
+     * Lists a directory.
+     * 
+     * @return the snapshot, or null when the directory cannot be read.
+     */
+    static DirectoryListing read(File dir) {
+        long lastModified = dir.lastModified();
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return null;
+        }
+        Arrays.sort(children, BY_NAME);
+        List<String> directories = new ArrayList<String>();
+        List<String> files = new ArrayList<String>(children.length);
+        long[] sizes = new long[children.length];
+        for (File child : children) {
+            if (child.isDirectory()) {
+                directories.add(child.getName());
+            } else if (child.isFile()) {
+                sizes[files.size()] = child.length();
+                files.add(child.getName());
+            }
+        }
+        return new DirectoryListing(lastModified, directories.toArray(new String[directories.size()]), files.toArray(new String[files.size()]), Arrays.copyOf(sizes,
+                files.size()));
+    }
+
+    long getLastModified() {
+        return this.lastModified;
+    }
+
+    /**
+     * @return the number of subdirectories and files.
+     */
+    int getEntryCount() {
+        return this.directories.length + this.files.length;
+    }
+
+    /**
+     * Renders one page of the listing, or takes it from the pages rendered
+     * before.
+     * 
+     * @param uri
+     *            the URI of the directory, ending with '/'.
+     * @param json
+     *            whether to render JSON rather than HTML.
+     * @param page
+     *            the page number, starting at 1.
+     * @param pageSize
+     *            the number of entries per page.
+     */
+    byte[] render(String uri, boolean json, int page, int pageSize) {
+        String key = uri + '\n' + json + '\n' + page + '\n' + pageSize;
+        synchronized (this.rendered) {
+            byte[] bytes = this.rendered.get(key);
+            if (bytes != null) {
+                return bytes;
+            }
+        }
+        String text = json ? renderJson(uri, page, pageSize) : renderHtml(uri, page, pageSize);
+        byte[] bytes;
+        try {
+            bytes = text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        synchronized (this.rendered) {
+            this.rendered.put(key, bytes);
+        }
+        return bytes;
+    }
+
+    private String renderHtml(String uri, int page, int pageSize) {
+        String heading = "Directory " + escapeHtml(uri);
+        StringBuilder msg =
+                new StringBuilder("<html><head><title>" + heading + "</title><style><!--\n" + "span.dirname { font-weight: bold; }\n" + "span.filesize { font-size: 75%; }\n"
+                        + "// -->\n" + "</style>" + "</head><body><h1>" + heading + "</h1>");
+
+        String up = null;
+        if (uri.length() > 1) {
+            String u = uri.substring(0, uri.length() - 1);
+            int slash = u.lastIndexOf('/');
+            if (slash >= 0 && slash < u.length()) {
+                up = uri.substring(0, slash + 1);
+            }
+        }
+
+        int first = firstEntry(page, pageSize);
+        int last = (int) Math.min((long) first + pageSize, getEntryCount());
+        int firstFile = Math.max(first - this.directories.length, 0);
+        int lastFile = Math.max(last - this.directories.length, 0);
+        if (up != null || first < last) {
+            msg.append("<ul>");
+            if (up != null || first < this.directories.length) {
+                msg.append("<section class=\"directories\">");
+                if (up != null) {
+                    msg.append("<li><a rel=\"directory\" href=\"").append(up).append("\"><span class=\"dirname\">..</span></a></b></li>");
+                }
+                for (int i = first; i < Math.min(last, this.directories.length); i++) {
+                    String dir = this.directories[i] + "/";
+                    msg.append("<li><a rel=\"directory\" href=\"").append(encodeUri(uri + dir)).append("\"><span class=\"dirname\">").append(escapeHtml(dir))
+                            .append("</span></a></b></li>");
+                }
+                msg.append("</section>");
+            }
+            if (firstFile < lastFile) {
+                msg.append("<section class=\"files\">");
+                for (int i = firstFile; i < lastFile; i++) {
+                    String file = this.files[i];
+                    msg.append("<li><a href=\"").append(encodeUri(uri + file)).append("\"><span class=\"filename\">").append(escapeHtml(file)).append("</span></a>");
+                    long len = this.sizes[i];
+                    msg.append("&nbsp;<span class=\"filesize\">(");
+                    if (len < 1024) {
+                        msg.append(len).append(" bytes");
+                    } else if (len < 1024 * 1024) {
+                        msg.append(len / 1024).append(".").append(len % 1024 / 10 % 100).append(" KB");
+                    } else {
+                        msg.append(len / (1024 * 1024)).append(".").append(len % (1024 * 1024) / 10000 % 100).append(" MB");
+                    }
+                    msg.append(")</span></li>");
+                }
+                msg.append("</section>");
+            }
+            msg.append("</ul>");
+        }
+        if (page > 1 || last < getEntryCount()) {
+            msg.append("<nav class=\"pages\">");
+            if (page > 1) {
+                msg.append("<a rel=\"prev\" href=\"?page=").append(page - 1).append("&amp;size=").append(pageSize).append("\">previous</a> ");
+            }
+            msg.append("page ").append(page).append(" of ").append(Math.max(1, (getEntryCount() + pageSize - 1) / pageSize));
+            if (last < getEntryCount()) {
+                msg.append(" <a rel=\"next\" href=\"?page=").append(page + 1).append("&amp;size=").append(pageSize).append("\">next</a>");
+            }
+            msg.append("</nav>");
+        }
+        msg.append("</body></html>");
+        return msg.toString();
+    }
+
+    private String renderJson(String uri, int page, int pageSize) {
+        int first = firstEntry(page, pageSize);
+        int last = (int) Math.min((long) first + pageSize, getEntryCount());
+        StringBuilder json = new StringBuilder(64 + (last - first) * 48);
+        json.append("{\"path\":");
+        appendJsonString(json, uri);
+        json.append(",\"total\":").append(getEntryCount());
+        json.append(",\"page\":").append(page);
+        json.append(",\"size\":").append(pageSize);
+        json.append(",\"directories\":[");
+        for (int i = first; i < Math.min(last, this.directories.length); i++) {
+            if (i > first) {
+                json.append(',');
+            }
+            appendJsonString(json, this.directories[i]);
+        }
+        json.append("],\"files\":[");
+        int firstFile = Math.max(first - this.directories.length, 0);
+        int lastFile = Math.max(last - this.directories.length, 0);
+        for (int i = firstFile; i < lastFile; i++) {
+            if (i > firstFile) {
+                json.append(',');
+            }
+            json.append("{\"name\":");
+            appendJsonString(json, this.files[i]);
+            json.append(",\"size\":").append(this.sizes[i]).append('}');
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    /**
+     * @return the index of the first entry of a page, at most the number of
+     *         entries for pages past the end.
+     */
+    private int firstEntry(int page, int pageSize) {
+        long first = ((long) page - 1) * pageSize;
+        return (int) Math.max(0, Math.min(first, getEntryCount()));
+    }
+
+    /**
+     * URL-encodes everything between "/"-characters. Encodes spaces as '%20'
+     * instead of '+'.
+     */
+    static String encodeUri(String uri) {
+        StringBuilder newUri = new StringBuilder(uri.length() + 16);
+        int start = 0;
+        while (start < uri.length()) {
+            int end = start;
+            while (end < uri.length() && uri.charAt(end) != '/' && uri.charAt(end) != ' ') {
+                end++;
+            }
+            if (end > start) {
+                try {
+                    newUri.append(URLEncoder.encode(uri.substring(start, end), "UTF-8"));
+                } catch (UnsupportedEncodingException ignored) {
+                }
+            }
+            if (end < uri.length()) {
+                newUri.append(uri.charAt(end) == '/' ? "/" : "%20");
+            }
+            start = end + 1;
+        }
+        return newUri.toString();
+    }
+
+    private static String escapeHtml(String text) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            String replacement = c == '<' ? "&lt;" : c == '>' ? "&gt;" : c == '&' ? "&amp;" : c == '"' ? "&quot;" : null;
+            if (replacement != null && escaped == null) {
+                escaped = new StringBuilder(text.length() + 16).append(text, 0, i);
+            }
+            if (escaped != null) {
+                if (replacement != null) {
+                    escaped.append(replacement);
+                } else {
+                    escaped.append(c);
+                }
+            }
+        }
+        return escaped == null ? text : escaped.toString();
+    }
+
+    private static void appendJsonString(StringBuilder json, String text) {
+        json.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,348 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the content of small, frequently served files in memory, so that
+ * {@link SimpleWebServer} answers them with a buffer write instead of
+ * opening and reading the file for every request.
+ * <p/>
+ * Files up to a maximum size are read once into a heap buffer, or a direct
+ * buffer outside the heap if asked for, and every response gets its own
+ * view of that shared buffer. A cached file is read again when its
+ * modification time or length no longer match the ones it was read with.
+ * The least recently used files are evicted once the total size exceeds the
+ * limit.
+ * <p/>
+ * The cached files can be saved to a {@link CacheSnapshot} and loaded back,
+ * which {@link SimpleWebServer} does when it stops and starts if a snapshot
+ * file is set. Loaded files are served from the mapped snapshot, and only
+ * if the file on disk still has the same modification time and length;
+ * each one is checked against its CRC-32 on its first hit.
+ */
+public class FileContentCache {
+
+    public static final long DEFAULT_MAX_SIZE = 16 * 1024 * 1024;
+
+    public static final int DEFAULT_MAX_FILE_SIZE = 64 * 1024;
+
+    private static final class CachedContent {
+
+        private final ByteBuffer content;
+
+        private final long lastModified;
+
+        /**
+         * The snapshot entry the content was loaded from, until it has been
+         * checked.
+         */
+        private CacheSnapshot.Entry unchecked;
+
+        private CachedContent(ByteBuffer content, long lastModified) {
+            this.content = content;
+            this.lastModified = lastModified;
+        }
+
+        private boolean isValid() {
+            if (this.unchecked == null) {
+                return true;
+            }
+            if (!this.unchecked.isValid()) {
+                return false;
+            }
+            this.unchecked = null;
+            return true;
+        }
+    }
+
+    private static final String LAST_MODIFIED = ":lastModified";
+
+    private final long maxSize;
+
+    private final int maxFileSize;
+
+    private final boolean direct;
+
+    private final LinkedHashMap<String, CachedContent> entries = new LinkedHashMap<String, CachedContent>(16, 0.75f, true);
+
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong malformedSnapshotEntries = new AtomicLong();
+
+    private volatile File snapshotFile;
+
+    public FileContentCache() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_MAX_FILE_SIZE, false);
+    }
+
+    /**
+     * @param maxSize
+     *            the maximum number of bytes kept, zero disables the cache.
+     * @param maxFileSize
+     *            the size of the largest file kept.
+     * @param direct
+     *            whether to keep the content in direct buffers rather than
+     *            on the heap.
+     */
+    public FileContentCache(long maxSize, int maxFileSize, boolean direct) {
+        this.maxSize = maxSize;
+        this.maxFileSize = maxFileSize;
+        this.direct = direct;
+    }
+
+    /**
+     * Returns the content of a file, reading it unless it is cached with the
+     * given modification time and length.
+     * 
+     * @return a buffer holding the whole file, which the caller may move the
+     *         position and limit of, or null when the file is too large to be
+     *         cached or changed while it was read.
+     */
+    public ByteBuffer get(File file, long length, long lastModified) throws IOException {
+        if (length > this.maxFileSize || length > this.maxSize) {
+            return null;
+        }
+        String key = file.getPath();
+        synchronized (this.entries) {
+            CachedContent cached = this.entries.get(key);
+            if (cached != null && cached.lastModified == lastModified && cached.content.capacity() == length) {
+                if (cached.isValid()) {
+                    this.hits.incrementAndGet();
+                    return cached.content.duplicate();
+                }
+                this.entries.remove(key);
+                this.size -= cached.content.capacity();
+            }
+        }
+        this.misses.incrementAndGet();
+        ByteBuffer content = read(file, (int) length);
+        if (content == null) {
+            return null;
+        }
+        put(key, new CachedContent(content, lastModified));
+        return content.duplicate();
+    }
+
+    /**
+     * Forgets the content of a file.
+     */
+    public void invalidate(File file) {
+        synchronized (this.entries) {
+            CachedContent removed = this.entries.remove(file.getPath());
+            if (removed != null) {
+                this.size -= removed.content.capacity();
+            }
+        }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        synchronized (this.entries) {
+            this.entries.clear();
+            this.size = 0;
+        }
+    }
+
+    /**
+     * Sets the file the cached files are saved to when the server stops and
+     * loaded from when it starts, or null to not keep them.
+     */
+    public void setSnapshotFile(File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    public File getSnapshotFile() {
+        return this.snapshotFile;
+    }
+
+    /**
+     * Writes the cached files to the given snapshot file, least recently
+     * used first.
+     */
+    public void saveSnapshot(File file) throws IOException {
+        List<CacheSnapshot.Entry> snapshot = new ArrayList<CacheSnapshot.Entry>();
+        synchronized (this.entries) {
+            for (Map.Entry<String, CachedContent> entry : this.entries.entrySet()) {
+                CachedContent cached = entry.getValue();
+                if (cached.isValid()) {
+                    Map<String, String> metadata = Collections.singletonMap(LAST_MODIFIED, String.valueOf(cached.lastModified));
+                    snapshot.add(new CacheSnapshot.Entry(entry.getKey(), metadata, Long.MAX_VALUE, cached.content.duplicate()));
+                }
+            }
+        }
+        CacheSnapshot.write(file, snapshot);
+    }
+
+    /**
+     * Adds the files of the given snapshot file that did not change since
+     * it was written. Entries with malformed metadata are skipped and
+     * counted.
+     * 
+     * @return the number of files loaded.
+     */
+    public int loadSnapshot(File file) throws IOException {
+        int loaded = 0;
+        for (CacheSnapshot.Entry entry : CacheSnapshot.read(file)) {
+            long lastModified;
+            try {
+                lastModified = Long.parseLong(entry.getMetadata().get(LAST_MODIFIED));
+            } catch (NumberFormatException e) {
+                this.malformedSnapshotEntries.incrementAndGet();
+                continue;
+            }
+            ByteBuffer content = entry.getBody();
+            File cachedFile = new File(entry.getKey());
+            int length = content.remaining();
+            if (length > this.maxFileSize || length > this.maxSize || cachedFile.length() != length || cachedFile.lastModified() != lastModified) {
+                continue;
+            }
+            CachedContent cached = new CachedContent(content.slice(), lastModified);
+            cached.unchecked = entry;
+            put(entry.getKey(), cached);
+            loaded++;
+        }
+        return loaded;
+    }
+
+    public long getMaxSize() {
+        return this.maxSize;
+    }
+
+    public int getMaxFileSize() {
+        return this.maxFileSize;
+    }
+
+    public boolean isDirect() {
+        return this.direct;
+    }
+
+    public int getEntryCount() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    /**
+     * @return the number of bytes of file content kept.
+     */
+    public long getSize() {
+        synchronized (this.entries) {
+            return this.size;
+        }
+    }
+
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+    /**
+     * @return the number of files removed to make room for others.
+     */
+    public long getEvictionCount() {
+        return this.evictions.get();
+    }
+
+    /**
+     * @return the number of snapshot entries that were not loaded because
+     *         their metadata is malformed.
+     */
+    public long getMalformedSnapshotEntryCount() {
+        return this.malformedSnapshotEntries.get();
+    }
+
+    private void put(String key, CachedContent cached) {
+        synchronized (this.entries) {
+            CachedContent previous = this.entries.put(key, cached);
+            if (previous != null) {
+                this.size -= previous.content.capacity();
+            }
+            this.size += cached.content.capacity();
+            Iterator<Map.Entry<String, CachedContent>> iterator = this.entries.entrySet().iterator();
+            while (this.size > this.maxSize && iterator.hasNext()) {
+                Map.Entry<String, CachedContent> eldest = iterator.next();
+                if (eldest.getValue() == cached) {
+                    continue;
+                }
+                iterator.remove();
+                this.size -= eldest.getValue().content.capacity();
+                this.evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private ByteBuffer read(File file, int length) throws IOException {
+        ByteBuffer content = this.direct ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            while (content.hasRemaining()) {
+                if (channel.read(content) < 0) {
+                    return null;
+                }
+            }
+            if (channel.size() != length) {
+                return null;
+            }
+        } finally {
+            in.close();
+        }
+        content.flip();
+        return content;
+    }
+}
@@ -0,0 +1,286 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers how request URIs were resolved against the root directories of a
+ * {@link SimpleWebServer}: the file, its mime type, length, modification time
+ * and ETag, the index file of a directory, or that nothing could serve the
+ * URI at all. A hit answers a request without touching the file system.
+ * <p/>
+ * Entries are trusted for a short time to live and resolved again after
+ * that, so changes on disk show up after at most that delay. A time to live
+ * of zero or less turns the cache off. The number of entries is bounded, the
+ * least recently used ones are evicted first.
+ */
+public class FileMetadataCache {
+
+    /**
+     * Default time to live of an entry in milliseconds.
+     */
+    public static final long DEFAULT_TTL = 1000;
+
+    public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+    /**
+     * The result of resolving one URI.
+     */
+    public static final class Entry {
+
+        private final File homeDir;
+
+        private final File file;
+
+        private final String mimeType;
+
+        private final boolean directory;
+
+        private final String indexFile;
+
+        private final long length;
+
+        private final long lastModified;
+
+        private final String etag;
+
+        private String lastModifiedDate;
+
+        private long expires;
+
+        Entry(File homeDir, File file, String mimeType, boolean directory, String indexFile, long length, long lastModified) {
+            this.homeDir = homeDir;
+            this.file = file;
+            this.mimeType = mimeType;
+            this.directory = directory;
+            this.indexFile = indexFile;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.etag = file == null ? null : etag(lastModified, length);
+        }
+
+        /**
+         * @return the root directory the URI was found in, or null when it
+         *         could not be served.
+         */
+        public File getHomeDir() {
+            return this.homeDir;
+        }
+
+        public File getFile() {
+            return this.file;
+        }
+
+        public String getMimeType() {
+            return this.mimeType;
+        }
+
+        public boolean isDirectory() {
+            return this.directory;
+        }
+
+        /**
+         * @return the name of the index file of a directory, or null when
+         *         there is none.
+         */
+        public String getIndexFile() {
+            return this.indexFile;
+        }
+
+        public long getLength() {
+            return this.length;
+        }
+
+        public long getLastModified() {
+            return this.lastModified;
+        }
+
+        public String getETag() {
+            return this.etag;
+        }
+
+        /**
+         * @return the modification time as an HTTP-date, for the
+         *         Last-Modified header.
+         */
+        public String getLastModifiedDate() {
+            if (this.lastModifiedDate == null) {
+                this.lastModifiedDate = HttpDates.format(this.lastModified);
+            }
+            return this.lastModifiedDate;
+        }
+
+        /**
+         * @return true when no root directory could serve the URI.
+         */
+        public boolean isNotFound() {
+            return this.homeDir == null;
+        }
+    }
+
+    /**
+     * @return the entry for a URI that no root directory can serve.
+     */
+    public static Entry notFound() {
+        return new Entry(null, null, null, false, null, 0, 0);
+    }
+
+    /**
+     * Computes the ETag SimpleWebServer sends for a file, a quoted
+     * entity-tag made of its mtime and length.
+     */
+    public static String etag(long lastModified, long length) {
+        return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+    }
+
+    /**
+     * @return the ETag of a content coding of the file with the given ETag,
+     *         e.g. "5a3f-1c-gzip".
+     */
+    public static String etag(String etag, String encoding) {
+        return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+    }
+
+    private final long ttl;
+
+    private final int maxEntries;
+
+    private final LinkedHashMap<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    public FileMetadataCache() {
+        this(DEFAULT_TTL, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param ttl
+     *            how long an entry is trusted in milliseconds, zero or less
+     *            disables the cache.
+     * @param maxEntries
+     *            the maximum number of URIs remembered.
+     */
+    public FileMetadataCache(long ttl, final int maxEntries) {
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FileMetadataCache.Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return the entry for the URI, or null when it is unknown or has
+     *         expired.
+     */
+    public Entry get(String uri) {
+        if (this.ttl <= 0) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (this.entries) {
+            Entry entry = this.entries.get(uri);
+            if (entry != null && entry.expires > now) {
+                this.hits.incrementAndGet();
+                return entry;
+            }
+            if (entry != null) {
+                this.entries.remove(uri);
+            }
+        }
+        this.misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(String uri, Entry entry) {
+        if (this.ttl <= 0) {
+            return;
+        }
+        entry.expires = System.currentTimeMillis() + this.ttl;
+        synchronized (this.entries) {
+            this.entries.put(uri, entry);
+        }
+    }
+
+    /**
+     * Forgets the entry of a URI, for instance after the file was changed.
+     */
+    public void invalidate(String uri) {
+        synchronized (this.entries) {
+            this.entries.remove(uri);
+        }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        synchronized (this.entries) {
+            this.entries.clear();
+        }
+    }
+
+    public long getTtl() {
+        return this.ttl;
+    }
+
+    public int getMaxEntries() {
+        return this.maxEntries;
+    }
+
+    public int getEntryCount() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    public long getMissCount() {
+        return this.misses.get();
+    }
+}
@@ -0,0 +1,92 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Formats and parses the HTTP-date of RFC 7231 section 7.1.1.1, as used by
+ * Last-Modified, If-Modified-Since, If-Unmodified-Since and If-Range.
+ */
+final class HttpDates {
+
+    private static final String[] PATTERNS = {
+        // IMF-fixdate, the preferred format
+        "EEE, dd MMM yyyy HH:mm:ss zzz",
+        // obsolete RFC 850 format
+        "EEEE, dd-MMM-yy HH:mm:ss zzz",
+        // ANSI C's asctime() format
+        "EEE MMM d HH:mm:ss yyyy"
+    };
+
+    private HttpDates() {
+    }
+
+    /**
+     * @return the time in the preferred HTTP-date format, e.g.
+     *         "Sun, 06 Nov 1994 08:49:37 GMT".
+     */
+    static String format(long time) {
+        return newFormat(PATTERNS[0]).format(new Date(time));
+    }
+
+    /**
+     * @return the time in milliseconds, or -1 if the value is not a date in
+     *         one of the three HTTP-date formats.
+     */
+    static long parse(String value) {
+        if (value == null) {
+            return -1;
+        }
+        value = value.trim();
+        for (String pattern : PATTERNS) {
+            ParsePosition position = new ParsePosition(0);
+            Date date = newFormat(pattern).parse(value, position);
+            if (date != null && position.getIndex() == value.length()) {
+                return date.getTime();
+            }
+        }
+        return -1;
+    }
+
+    private static SimpleDateFormat newFormat(String pattern) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+}
@@ -0,0 +1,365 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import fi.iki.elonen.NanoHTTPD.StreamingBody;
+import fi.iki.elonen.NanoHTTPD.StreamingOutputStream;
+
+/**
+ * Keeps large, frequently served files memory-mapped, so that
+ * {@link SimpleWebServer} answers full and range requests for them by
+ * writing slices of the mapping, without opening the file and skipping to
+ * the requested offset every time.
+ * <p/>
+ * Files of at least a minimum size are mapped on their first request, in
+ * segments of up to 1 GB, and kept until their modification time or length
+ * changes or they are evicted. The least recently used files are evicted
+ * once the number of mapped files or bytes exceeds the limits. An evicted
+ * mapping is released as soon as the last response writing from it is done;
+ * responses created before the eviction that have not started writing read
+ * the file through a channel instead.
+ * <p/>
+ * Like any mapping, it should only be used for files that are replaced
+ * rather than truncated in place while the server runs.
+ */
+public class MappedFileCache {
+
+    private static final Logger LOG = Logger.getLogger(MappedFileCache.class.getName());
+
+    public static final long DEFAULT_MIN_FILE_SIZE = 1024 * 1024;
+
+    public static final long DEFAULT_MAX_SIZE = 4L * 1024 * 1024 * 1024;
+
+    public static final int DEFAULT_MAX_FILES = 64;
+
+    private static final long SEGMENT_SIZE = 1 << 30;
+
+    private static final class MappedFile {
+
+        private final File file;
+
+        private final long length;
+
+        private final long lastModified;
+
+        private final MappedByteBuffer[] segments;
+
+        private int users;
+
+        private boolean evicted;
+
+        private MappedFile(File file, long length, long lastModified) throws IOException {
+            this.file = file;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.segments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                for (int i = 0; i < this.segments.length; i++) {
+                    long position = i * SEGMENT_SIZE;
+                    this.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT_SIZE, length - position));
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        private synchronized boolean acquire() {
+            if (this.evicted) {
+                return false;
+            }
+            this.users++;
+            return true;
+        }
+
+        private synchronized void release() {
+            this.users--;
+            if (this.evicted && this.users == 0) {
+                unmap();
+            }
+        }
+
+        private synchronized void evict() {
+            if (!this.evicted) {
+                this.evicted = true;
+                if (this.users == 0) {
+                    unmap();
+                }
+            }
+        }
+
+        private void write(long offset, long count, WritableByteChannel out) throws IOException {
+            while (count > 0) {
+                ByteBuffer slice = this.segments[(int) (offset / SEGMENT_SIZE)].duplicate();
+                int position = (int) (offset % SEGMENT_SIZE);
+                int n = (int) Math.min(count, slice.capacity() - position);
+                slice.limit(position + n);
+                slice.position(position);
+                while (slice.hasRemaining()) {
+                    out.write(slice);
+                }
+                offset += n;
+                count -= n;
+            }
+        }
+
+        private void unmap() {
+            for (MappedByteBuffer segment : this.segments) {
+                MappedFileCache.unmap(segment);
+            }
+        }
+    }
+
+    private final long minFileSize;
+
+    private final long maxSize;
+
+    private final int maxFiles;
+
+    private final LinkedHashMap<String, MappedFile> entries = new LinkedHashMap<String, MappedFile>(16, 0.75f, true);
+
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    public MappedFileCache() {
+        this(DEFAULT_MIN_FILE_SIZE, DEFAULT_MAX_SIZE, DEFAULT_MAX_FILES);
+    }
+
+    /**
+     * @param minFileSize
+     *            the size of the smallest file mapped.
+     * @param maxSize
+     *            the maximum number of bytes mapped at a time.
+     * @param maxFiles
+     *            the maximum number of files mapped at a time.
+     */
+    public MappedFileCache(long minFileSize, long maxSize, int maxFiles) {
+        this.minFileSize = minFileSize;
+        this.maxSize = maxSize;
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * Returns a body writing part of a file from its mapping, mapping the
+     * file unless it is mapped with the given modification time and length.
+     * 
+     * @return the body, which writes exactly count bytes, or null when the
+     *         file is too small or too large to be mapped.
+     */
+    public StreamingBody body(final File file, final long length, long lastModified, final long offset, final long count) throws IOException {
+        final MappedFile mapped = get(file, length, lastModified);
+        if (mapped == null) {
+            return null;
+        }
+        return new StreamingBody() {
+
+            @Override
+            public void writeTo(StreamingOutputStream out) throws IOException {
+                if (mapped.acquire()) {
+                    try {
+                        mapped.write(offset, count, out.getChannel());
+                    } finally {
+                        mapped.release();
+                    }
+                } else {
+                    transfer(file, offset, count, out.getChannel());
+                }
+            }
+        };
+    }
+
+    /**
+     * Unmaps all files.
+     */
+    public void clear() {
+        synchronized (this.entries) {
+            for (MappedFile mapped : this.entries.values()) {
+                mapped.evict();
+            }
+            this.entries.clear();
+            this.size = 0;
+        }
+    }
+
+    public long getMinFileSize() {
+        return this.minFileSize;
+    }
+
+    public long getMaxSize() {
+        return this.maxSize;
+    }
+
+    public int getMaxFiles() {
+        return this.maxFiles;
+    }
+
+    public int getEntryCount() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    /**
+     * @return the number of bytes mapped.
+     */
+    public long getSize() {
+        synchronized (this.entries) {
+            return this.size;
+        }
+    }
+
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+    /**
+     * @return the number of files unmapped to make room for others.
+     */
+    public long getEvictionCount() {
+        return this.evictions.get();
+    }
+
+    private MappedFile get(File file, long length, long lastModified) throws IOException {
+        if (length < this.minFileSize || length > this.maxSize || this.maxFiles <= 0) {
+            return null;
+        }
+        String key = file.getPath();
+        synchronized (this.entries) {
+            MappedFile mapped = this.entries.get(key);
+            if (mapped != null && mapped.lastModified == lastModified && mapped.length == length) {
+                this.hits.incrementAndGet();
+                return mapped;
+            }
+        }
+        this.misses.incrementAndGet();
+        MappedFile mapped = new MappedFile(file, length, lastModified);
+        synchronized (this.entries) {
+            MappedFile previous = this.entries.put(key, mapped);
+            if (previous != null) {
+                this.size -= previous.length;
+                previous.evict();
+            }
+            this.size += length;
+            Iterator<MappedFile> iterator = this.entries.values().iterator();
+            while ((this.size > this.maxSize || this.entries.size() > this.maxFiles) && iterator.hasNext()) {
+                MappedFile eldest = iterator.next();
+                if (eldest == mapped) {
+                    continue;
+                }
+                iterator.remove();
+                this.size -= eldest.length;
+                eldest.evict();
+                this.evictions.incrementAndGet();
+            }
+        }
+        return mapped;
+    }
+
+    /**
+     * Writes part of a file to a channel without mapping it.
+     */
+    static void transfer(File file, long offset, long count, WritableByteChannel out) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            while (count > 0) {
+                long n = channel.transferTo(offset, count, out);
+                if (n <= 0) {
+                    throw new IOException("unexpected end of " + file);
+                }
+                offset += n;
+                count -= n;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Releases a mapping right away instead of waiting for the garbage
+     * collector. There is no public API for it, so the cleaner is looked up
+     * by reflection; when that fails the mapping is left to the collector.
+     */
+    private static void unmap(ByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                invokeCleaner = null;
+            }
+            if (invokeCleaner != null) {
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } else {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (Exception e) {
+            MappedFileCache.LOG.log(Level.FINE, "Could not unmap buffer, leaving it to the garbage collector", e);
+        }
+    }
+}
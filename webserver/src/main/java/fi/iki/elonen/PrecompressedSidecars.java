@@ -0,0 +1,190 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Creates the gzip sidecars served by {@link SimpleWebServer} when
+ * {@link SimpleWebServer#setServePrecompressed(boolean)} is on: foo.js.gz
+ * next to foo.js, compressed at the best level once instead of on every
+ * request.
+ * <p/>
+ * Only text-like files (text, JavaScript, JSON, XML and SVG) of at least a
+ * minimum size get a sidecar, and only when the compressed file is smaller.
+ * Existing sidecars are kept unless they are older than their file. Brotli
+ * sidecars need an external encoder, they are served but not created here.
+ */
+public final class PrecompressedSidecars {
+
+    /**
+     * Files smaller than this gain too little from compression.
+     */
+    public static final int MIN_FILE_SIZE = 256;
+
+    private PrecompressedSidecars() {
+    }
+
+    /**
+     * @return true if files of the given mime type are worth compressing.
+     */
+    public static boolean isCompressible(String mimeType) {
+        if (mimeType == null) {
+            return false;
+        }
+        String mime = mimeType.toLowerCase();
+        return mime.startsWith("text/") || mime.contains("javascript") || mime.contains("json") || mime.contains("xml");
+    }
+
+    /**
+     * Creates missing or outdated gzip sidecars for all compressible files
+     * below a directory, compressing several files at a time.
+     * 
+     * @param root
+     *            the directory to scan.
+     * @param threads
+     *            the number of files compressed in parallel.
+     * @return the number of sidecars written.
+     */
+    public static int generate(File root, int threads) throws IOException {
+        List<File> files = new ArrayList<File>();
+        collect(root, files);
+        if (files.isEmpty()) {
+            return 0;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, files.size())));
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(files.size());
+            for (final File file : files) {
+                results.add(executor.submit(new Callable<Boolean>() {
+
+                    @Override
+                    public Boolean call() throws IOException {
+                        return compress(file);
+                    }
+                }));
+            }
+            int written = 0;
+            for (Future<Boolean> result : results) {
+                if (result.get()) {
+                    written++;
+                }
+            }
+            return written;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while compressing " + root);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("compressing " + root + " failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes the gzip sidecar of one file unless an up to date one exists or
+     * compression does not make it smaller.
+     * 
+     * @return true if the sidecar was written.
+     */
+    public static boolean compress(File file) throws IOException {
+        File sidecar = new File(file.getPath() + ".gz");
+        if (sidecar.exists() && sidecar.lastModified() >= file.lastModified()) {
+            return false;
+        }
+        File temp = new File(file.getPath() + ".gz.tmp");
+        InputStream in = new FileInputStream(file);
+        try {
+            OutputStream out = new GZIPOutputStream(new FileOutputStream(temp), 16 * 1024) {
+
+                {
+                    this.def.setLevel(Deflater.BEST_COMPRESSION);
+                }
+            };
+            try {
+                byte[] buffer = new byte[16 * 1024];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (temp.length() >= file.length()) {
+            temp.delete();
+            return false;
+        }
+        sidecar.delete();
+        if (!temp.renameTo(sidecar)) {
+            temp.delete();
+            throw new IOException("could not rename " + temp + " to " + sidecar);
+        }
+        return true;
+    }
+
+    private static void collect(File dir, List<File> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                collect(child, files);
+            } else if (child.length() >= MIN_FILE_SIZE && isCompressible(NanoHTTPD.getMimeTypeForFile(child.getName()))) {
+                files.add(child);
+            }
+        }
+    }
+}
@@ -35,27 +35,32 @@ package fi.iki.elonen;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Random;
 import java.util.ServiceLoader;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import fi.iki.elonen.NanoHTTPD.Response.IStatus;
 import fi.iki.elonen.util.ServerRunner;
 
 public class SimpleWebServer extends NanoHTTPD {
 
+    private static final Logger LOG = Logger.getLogger(SimpleWebServer.class.getName());
+
     /**
      * Default Index file names.
      */
@@ -92,6 +97,8 @@ public class SimpleWebServer extends NanoHTTPD {
 
     private static Map<String, WebServerPlugin> mimeTypeHandlers = new HashMap<String, WebServerPlugin>();
 
+    private static AccessLog consoleAccessLog;
+
     /**
      * Starts as a standalone file server and waits for Enter.
      */
@@ -101,7 +108,15 @@ public class SimpleWebServer extends NanoHTTPD {
 
         String host = null; // bind to all interfaces by default
         List<File> rootDirs = new ArrayList<File>();
+        List<File> archives = new ArrayList<File>();
         boolean quiet = false;
+        boolean precompressed = false;
+        boolean fingerprint = false;
+        File accessLogFile = null;
+        long connectionBandwidth = 0;
+        long totalBandwidth = 0;
+        boolean guardSlowClients = false;
+        AccessLog.Format accessLogFormat = AccessLog.Format.COMBINED;
         String cors = null;
         Map<String, String> options = new HashMap<String, String>();
 
@@ -113,8 +128,24 @@ public class SimpleWebServer extends NanoHTTPD {
                 port = Integer.parseInt(args[i + 1]);
             } else if ("-q".equalsIgnoreCase(args[i]) || "--quiet".equalsIgnoreCase(args[i])) {
                 quiet = true;
+            } else if ("--precompressed".equalsIgnoreCase(args[i])) {
+                precompressed = true;
+            } else if ("--fingerprint".equalsIgnoreCase(args[i])) {
+                fingerprint = true;
             } else if ("-d".equalsIgnoreCase(args[i]) || "--dir".equalsIgnoreCase(args[i])) {
                 rootDirs.add(new File(args[i + 1]).getAbsoluteFile());
+            } else if ("--limit-rate".equalsIgnoreCase(args[i])) {
+                connectionBandwidth = Long.parseLong(args[i + 1]);
+            } else if ("--max-bandwidth".equalsIgnoreCase(args[i])) {
+                totalBandwidth = Long.parseLong(args[i + 1]);
+            } else if ("--slow-client-guard".equalsIgnoreCase(args[i])) {
+                guardSlowClients = true;
+            } else if ("--access-log".equalsIgnoreCase(args[i])) {
+                accessLogFile = new File(args[i + 1]).getAbsoluteFile();
+            } else if ("--access-log-format".equalsIgnoreCase(args[i])) {
+                accessLogFormat = AccessLog.Format.valueOf(args[i + 1].toUpperCase(Locale.US));
+            } else if ("--archive".equalsIgnoreCase(args[i])) {
+                archives.add(new File(args[i + 1]).getAbsoluteFile());
             } else if (args[i].startsWith("--cors")) {
                 cors = "*";
                 int equalIdx = args[i].indexOf('=');
@@ -133,7 +164,7 @@ public class SimpleWebServer extends NanoHTTPD {
             }
         }
 
-        if (rootDirs.isEmpty()) {
+        if (rootDirs.isEmpty() && archives.isEmpty()) {
             rootDirs.add(new File(".").getAbsoluteFile());
         }
         options.put("host", host);
@@ -168,7 +199,58 @@ public class SimpleWebServer extends NanoHTTPD {
                 registerPluginForMimeType(indexFiles, mime, info.getWebServerPlugin(mime), options);
             }
         }
-        ServerRunner.executeInstance(new SimpleWebServer(host, port, rootDirs, quiet, cors));
+        SimpleWebServer server = new SimpleWebServer(host, port, rootDirs, quiet, cors);
+        server.setConnectionBandwidthLimit(connectionBandwidth);
+        if (totalBandwidth > 0) {
+            server.setBandwidthLimiter(new BandwidthLimiter(totalBandwidth));
+        }
+        if (guardSlowClients) {
+            server.setSlowClientGuard(new SlowClientGuard());
+        }
+        if (accessLogFile != null) {
+            try {
+                server.setAccessLog(new AccessLog(accessLogFile, accessLogFormat));
+            } catch (IOException e) {
+                System.err.println("Couldn't open access log " + accessLogFile + ": " + e.getMessage());
+            }
+        }
+        for (File archive : archives) {
+            try {
+                ArchiveRoot archiveRoot = new ArchiveRoot(archive);
+                server.addArchiveRoot(archiveRoot);
+                if (!quiet) {
+                    System.out.println("# Serving " + archiveRoot.getEntryCount() + " files from " + archive);
+                }
+            } catch (IOException e) {
+                System.err.println("Couldn't open archive " + archive + ": " + e.getMessage());
+            }
+        }
+        if (precompressed) {
+            server.setServePrecompressed(true);
+            for (File dir : rootDirs) {
+                try {
+                    int written = PrecompressedSidecars.generate(dir, Runtime.getRuntime().availableProcessors());
+                    if (!quiet) {
+                        System.out.println("# Compressed " + written + " files in " + dir);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Couldn't compress files in " + dir + ": " + e.getMessage());
+                }
+            }
+        }
+        if (fingerprint) {
+            AssetFingerprints fingerprints = new AssetFingerprints(rootDirs);
+            try {
+                int count = fingerprints.scan(Runtime.getRuntime().availableProcessors());
+                if (!quiet) {
+                    System.out.println("# Fingerprinted " + count + " files");
+                }
+                server.setAssetFingerprints(fingerprints);
+            } catch (IOException e) {
+                System.err.println("Couldn't fingerprint files: " + e.getMessage());
+            }
+        }
+        ServerRunner.executeInstance(server);
     }
 
     protected static void registerPluginForMimeType(String[] indexFiles, String mimeType, WebServerPlugin plugin, Map<String, String> commandLineOptions) {
@@ -190,12 +272,41 @@ public class SimpleWebServer extends NanoHTTPD {
         plugin.initialize(commandLineOptions);
     }
 
-    private final boolean quiet;
-
     private final String cors;
 
     protected List<File> rootDirs;
 
+    private final List<ArchiveRoot> archiveRoots = new ArrayList<ArchiveRoot>();
+
+    private FileMetadataCache metadataCache = new FileMetadataCache();
+
+    private FileContentCache contentCache = new FileContentCache();
+
+    private MappedFileCache mappedFileCache;
+
+    private boolean servePrecompressed;
+
+    private AssetFingerprints assetFingerprints;
+
+    /**
+     * the first root that was not a directory when the server started, if any.
+     */
+    private File invalidRootDir;
+
+    private final Map<String, DirectoryListing> directoryListings = new LinkedHashMap<String, DirectoryListing>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DirectoryListing> eldest) {
+            return size() > MAX_DIRECTORY_LISTINGS;
+        }
+    };
+
+    private CompressedVariantCache compressedVariantCache = new CompressedVariantCache();
+
+    private final Map<String, BandwidthLimiter> mimeTypeBandwidthLimiters = new ConcurrentHashMap<String, BandwidthLimiter>();
+
     public SimpleWebServer(String host, int port, File wwwroot, boolean quiet, String cors) {
         this(host, port, Collections.singletonList(wwwroot), quiet, cors);
     }
@@ -210,47 +321,234 @@ public class SimpleWebServer extends NanoHTTPD {
 
     public SimpleWebServer(String host, int port, List<File> wwwroots, boolean quiet, String cors) {
         super(host, port);
-        this.quiet = quiet;
+        if (!quiet) {
+            setAccessLog(getConsoleAccessLog());
+        }
         this.cors = cors;
         this.rootDirs = new ArrayList<File>(wwwroots);
 
         init();
     }
 
-    private boolean canServeUri(String uri, File homeDir) {
-        boolean canServeUri;
-        File f = new File(homeDir, uri);
-        canServeUri = f.exists();
-        if (!canServeUri) {
-            WebServerPlugin plugin = SimpleWebServer.mimeTypeHandlers.get(getMimeTypeForFile(uri));
-            if (plugin != null) {
-                canServeUri = plugin.canServeUri(uri, homeDir);
+    /**
+     * @return the log shared by all servers that are not quiet, writing the
+     *         requests to System.out.
+     */
+    private static synchronized AccessLog getConsoleAccessLog() {
+        if (SimpleWebServer.consoleAccessLog == null) {
+            SimpleWebServer.consoleAccessLog = new AccessLog(System.out, AccessLog.Format.COMBINED);
+        }
+        return SimpleWebServer.consoleAccessLog;
+    }
+
+    /**
+     * Checks the root directories once and loads the snapshot of the content
+     * cache, if it has one, before the server accepts connections.
+     */
+    @Override
+    public void start(int timeout, boolean daemon) throws IOException {
+        // Make sure we won't die of an exception later
+        this.invalidRootDir = null;
+        for (File homeDir : this.rootDirs) {
+            if (!homeDir.isDirectory()) {
+                this.invalidRootDir = homeDir;
+                break;
             }
         }
-        return canServeUri;
+        FileContentCache cache = this.contentCache;
+        File snapshot = cache.getSnapshotFile();
+        if (snapshot != null && snapshot.isFile()) {
+            try {
+                cache.loadSnapshot(snapshot);
+            } catch (IOException e) {
+                SimpleWebServer.LOG.log(Level.WARNING, "Could not load content cache snapshot " + snapshot, e);
+            }
+        }
+        super.start(timeout, daemon);
     }
 
     /**
-     * URL-encodes everything between "/"-characters. Encodes spaces as '%20'
-     * instead of '+'.
+     * Stops the server and saves the snapshot of the content cache, if it
+     * has a snapshot file.
      */
-    private String encodeUri(String uri) {
-        String newUri = "";
-        StringTokenizer st = new StringTokenizer(uri, "/ ", true);
-        while (st.hasMoreTokens()) {
-            String tok = st.nextToken();
-            if ("/".equals(tok)) {
-                newUri += "/";
-            } else if (" ".equals(tok)) {
-                newUri += "%20";
-            } else {
-                try {
-                    newUri += URLEncoder.encode(tok, "UTF-8");
-                } catch (UnsupportedEncodingException ignored) {
-                }
+    @Override
+    public void stop() {
+        super.stop();
+        FileContentCache cache = this.contentCache;
+        File snapshot = cache.getSnapshotFile();
+        if (snapshot != null) {
+            try {
+                cache.saveSnapshot(snapshot);
+            } catch (IOException e) {
+                SimpleWebServer.LOG.log(Level.WARNING, "Could not save content cache snapshot " + snapshot, e);
             }
         }
-        return newUri;
+    }
+
+    /**
+     * Finds the root directory and file serving a URI, from the metadata
+     * cache when it knows the URI. URIs only a plugin can serve are not
+     * cached, as the plugin may depend on more than the file system.
+     */
+    protected FileMetadataCache.Entry resolve(String uri) {
+        FileMetadataCache.Entry entry = this.metadataCache.get(uri);
+        if (entry != null) {
+            return entry;
+        }
+        String mimeTypeForFile = getMimeTypeForFile(uri);
+        for (File homeDir : this.rootDirs) {
+            File f = new File(homeDir, uri);
+            if (f.exists()) {
+                boolean directory = f.isDirectory();
+                entry = new FileMetadataCache.Entry(homeDir, f, mimeTypeForFile, directory, directory ? findIndexFileInDirectory(f) : null, f.length(), f.lastModified());
+                this.metadataCache.put(uri, entry);
+                return entry;
+            }
+            WebServerPlugin plugin = SimpleWebServer.mimeTypeHandlers.get(mimeTypeForFile);
+            if (plugin != null && plugin.canServeUri(uri, homeDir)) {
+                return new FileMetadataCache.Entry(homeDir, f, mimeTypeForFile, false, null, 0, 0);
+            }
+        }
+        entry = FileMetadataCache.notFound();
+        this.metadataCache.put(uri, entry);
+        return entry;
+    }
+
+    public FileMetadataCache getMetadataCache() {
+        return this.metadataCache;
+    }
+
+    /**
+     * Replaces the cache of resolved URIs, for instance with one using
+     * another time to live. <code>new FileMetadataCache(0, 0)</code> turns
+     * caching off.
+     */
+    public void setMetadataCache(FileMetadataCache metadataCache) {
+        this.metadataCache = metadataCache;
+    }
+
+    public FileContentCache getContentCache() {
+        return this.contentCache;
+    }
+
+    /**
+     * Replaces the cache keeping small files in memory.
+     * <code>new FileContentCache(0, 0, false)</code> turns caching off.
+     */
+    public void setContentCache(FileContentCache contentCache) {
+        this.contentCache = contentCache;
+    }
+
+    /**
+     * @return the archives served after the root directories, in the order
+     *         they are searched.
+     */
+    public List<ArchiveRoot> getArchiveRoots() {
+        return Collections.unmodifiableList(this.archiveRoots);
+    }
+
+    /**
+     * Adds an archive serving the URIs none of the root directories and
+     * archives added before has a file for. Archives should be added before
+     * the server is started.
+     */
+    public void addArchiveRoot(ArchiveRoot archiveRoot) {
+        this.archiveRoots.add(archiveRoot);
+    }
+
+    /**
+     * Limits the rate at which files of a media type are sent, all together.
+     * 
+     * @param mimeType
+     *            a media type like "video/mp4", or a whole type like
+     *            "video/*".
+     * @param bandwidthLimiter
+     *            the limiter shared by the files, or null to remove the
+     *            limit.
+     */
+    public void setMimeTypeBandwidthLimiter(String mimeType, BandwidthLimiter bandwidthLimiter) {
+        if (bandwidthLimiter == null) {
+            this.mimeTypeBandwidthLimiters.remove(mimeType.toLowerCase(Locale.US));
+        } else {
+            this.mimeTypeBandwidthLimiters.put(mimeType.toLowerCase(Locale.US), bandwidthLimiter);
+        }
+    }
+
+    /**
+     * @return the limiter of a media type, of its whole type if it has none
+     *         itself, or null.
+     */
+    public BandwidthLimiter getMimeTypeBandwidthLimiter(String mimeType) {
+        if (mimeType == null || this.mimeTypeBandwidthLimiters.isEmpty()) {
+            return null;
+        }
+        int semicolon = mimeType.indexOf(';');
+        String type = (semicolon >= 0 ? mimeType.substring(0, semicolon) : mimeType).trim().toLowerCase(Locale.US);
+        BandwidthLimiter limiter = this.mimeTypeBandwidthLimiters.get(type);
+        int slash = type.indexOf('/');
+        if (limiter == null && slash > 0) {
+            limiter = this.mimeTypeBandwidthLimiters.get(type.substring(0, slash) + "/*");
+        }
+        return limiter;
+    }
+
+    public AssetFingerprints getAssetFingerprints() {
+        return this.assetFingerprints;
+    }
+
+    /**
+     * Serves files also under the fingerprinted URIs of the given
+     * fingerprints, with a Cache-Control header that lets clients keep them
+     * forever. Off when null, the default.
+     */
+    public void setAssetFingerprints(AssetFingerprints assetFingerprints) {
+        this.assetFingerprints = assetFingerprints;
+    }
+
+    public boolean isServePrecompressed() {
+        return this.servePrecompressed;
+    }
+
+    /**
+     * Serves foo.js.br or foo.js.gz, when present, at least as fresh as
+     * foo.js and accepted by the client, in place of foo.js, with the
+     * matching Content-Encoding. Off by default. See
+     * {@link PrecompressedSidecars} to create missing gzip sidecars.
+     */
+    public void setServePrecompressed(boolean servePrecompressed) {
+        this.servePrecompressed = servePrecompressed;
+    }
+
+    public CompressedVariantCache getCompressedVariantCache() {
+        return this.compressedVariantCache;
+    }
+
+    /**
+     * Replaces the cache of compressed files, or turns compression of files
+     * off when null.
+     */
+    public void setCompressedVariantCache(CompressedVariantCache compressedVariantCache) {
+        CompressedVariantCache previous = this.compressedVariantCache;
+        this.compressedVariantCache = compressedVariantCache;
+        if (previous != null && previous != compressedVariantCache) {
+            previous.clear();
+        }
+    }
+
+    public MappedFileCache getMappedFileCache() {
+        return this.mappedFileCache;
+    }
+
+    /**
+     * Serves large files from memory mappings kept by the given cache, or
+     * reads them through streams again when it is null, the default.
+     */
+    public void setMappedFileCache(MappedFileCache mappedFileCache) {
+        MappedFileCache previous = this.mappedFileCache;
+        this.mappedFileCache = mappedFileCache;
+        if (previous != null && previous != mappedFileCache) {
+            previous.clear();
+        }
     }
 
     private String findIndexFileInDirectory(File directory) {
@@ -281,73 +579,70 @@ public class SimpleWebServer extends NanoHTTPD {
     public void init() {
     }
 
+    /**
+     * @return the HTML listing of a directory, all entries on one page.
+     */
     protected String listDirectory(String uri, File f) {
-        String heading = "Directory " + uri;
-        StringBuilder msg =
-                new StringBuilder("<html><head><title>" + heading + "</title><style><!--\n" + "span.dirname { font-weight: bold; }\n" + "span.filesize { font-size: 75%; }\n"
-                        + "// -->\n" + "</style>" + "</head><body><h1>" + heading + "</h1>");
-
-        String up = null;
-        if (uri.length() > 1) {
-            String u = uri.substring(0, uri.length() - 1);
-            int slash = u.lastIndexOf('/');
-            if (slash >= 0 && slash < u.length()) {
-                up = uri.substring(0, slash + 1);
-            }
+        DirectoryListing listing = getDirectoryListing(f);
+        if (listing == null) {
+            return "";
+        }
+        try {
+            return new String(listing.render(uri, false, 1, Math.max(1, listing.getEntryCount())), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
         }
+    }
 
-        List<String> files = Arrays.asList(f.list(new FilenameFilter() {
+    /**
+     * Answers a directory listing request. The query parameters "page" and
+     * "size" select a page of the listing, by default the first
+     * {@value DirectoryListing#DEFAULT_PAGE_SIZE} entries, and "format=json"
+     * asks for JSON instead of HTML.
+     */
+    protected Response serveDirectoryListing(String uri, File f, Map<String, String> parms) {
+        DirectoryListing listing = getDirectoryListing(f);
+        if (listing == null) {
+            return getForbiddenResponse("No directory listing.");
+        }
+        boolean json = "json".equalsIgnoreCase(parms.get("format"));
+        int page = Math.max(1, parseInt(parms.get("page"), 1));
+        int pageSize = Math.min(DirectoryListing.MAX_PAGE_SIZE, Math.max(1, parseInt(parms.get("size"), DirectoryListing.DEFAULT_PAGE_SIZE)));
+        byte[] body = listing.render(uri, json, page, pageSize);
+        return NanoHTTPD.newFixedLengthResponse(Response.Status.OK, json ? "application/json" : NanoHTTPD.MIME_HTML, body);
+    }
 
-            @Override
-            public boolean accept(File dir, String name) {
-                return new File(dir, name).isFile();
+    /**
+     * @return the snapshot of a directory, read again when the modification
+     *         time of the directory changed, or null if it cannot be read.
+     */
+    private DirectoryListing getDirectoryListing(File dir) {
+        String key = dir.getPath();
+        long lastModified = dir.lastModified();
+        synchronized (this.directoryListings) {
+            DirectoryListing listing = this.directoryListings.get(key);
+            if (listing != null && listing.getLastModified() == lastModified) {
+                return listing;
             }
-        }));
-        Collections.sort(files);
-        List<String> directories = Arrays.asList(f.list(new FilenameFilter() {
-
-            @Override
-            public boolean accept(File dir, String name) {
-                return new File(dir, name).isDirectory();
-            }
-        }));
-        Collections.sort(directories);
-        if (up != null || directories.size() + files.size() > 0) {
-            msg.append("<ul>");
-            if (up != null || directories.size() > 0) {
-                msg.append("<section class=\"directories\">");
-                if (up != null) {
-                    msg.append("<li><a rel=\"directory\" href=\"").append(up).append("\"><span class=\"dirname\">..</span></a></b></li>");
-                }
-                for (String directory : directories) {
-                    String dir = directory + "/";
-                    msg.append("<li><a rel=\"directory\" href=\"").append(encodeUri(uri + dir)).append("\"><span class=\"dirname\">").append(dir)
-                            .append("</span></a></b></li>");
-                }
-                msg.append("</section>");
-            }
-            if (files.size() > 0) {
-                msg.append("<section class=\"files\">");
-                for (String file : files) {
-                    msg.append("<li><a href=\"").append(encodeUri(uri + file)).append("\"><span class=\"filename\">").append(file).append("</span></a>");
-                    File curFile = new File(f, file);
-                    long len = curFile.length();
-                    msg.append("&nbsp;<span class=\"filesize\">(");
-                    if (len < 1024) {
-                        msg.append(len).append(" bytes");
-                    } else if (len < 1024 * 1024) {
-                        msg.append(len / 1024).append(".").append(len % 1024 / 10 % 100).append(" KB");
-                    } else {
-                        msg.append(len / (1024 * 1024)).append(".").append(len % (1024 * 1024) / 10000 % 100).append(" MB");
-                    }
-                    msg.append(")</span></li>");
-                }
-                msg.append("</section>");
+        }
+        DirectoryListing listing = DirectoryListing.read(dir);
+        if (listing != null) {
+            synchronized (this.directoryListings) {
+                this.directoryListings.put(key, listing);
             }
-            msg.append("</ul>");
         }
-        msg.append("</body></html>");
-        return msg.toString();
+        return listing;
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
     }
 
     public static Response newFixedLengthResponse(IStatus status, String mimeType, String message) {
@@ -383,35 +678,45 @@ public class SimpleWebServer extends NanoHTTPD {
             return getForbiddenResponse("Won't serve ../ for security reasons.");
         }
 
-        boolean canServeUri = false;
-        File homeDir = null;
-        for (int i = 0; !canServeUri && i < this.rootDirs.size(); i++) {
-            homeDir = this.rootDirs.get(i);
-            canServeUri = canServeUri(uri, homeDir);
+        // Serve fingerprinted URIs from their files as immutable, but only
+        // while the file is the one the fingerprint was taken of
+        AssetFingerprints fingerprints = this.assetFingerprints;
+        String originalUri = fingerprints != null ? fingerprints.getOriginalUri(uri) : null;
+        if (originalUri != null) {
+            FileMetadataCache.Entry original = resolve(originalUri);
+            if (original.isNotFound() || original.isDirectory() || !fingerprints.isCurrent(uri, original.getLastModified(), original.getLength())) {
+                return getNotFoundResponse();
+            }
+            Response response = defaultRespond(headers, session, originalUri);
+            int status = response.getStatus().getRequestStatus();
+            if (status == 200 || status == 206 || status == 304) {
+                response.addHeader("Cache-Control", AssetFingerprints.IMMUTABLE_CACHE_CONTROL);
+            }
+            return response;
         }
-        if (!canServeUri) {
-            return getNotFoundResponse();
+
+        FileMetadataCache.Entry entry = resolve(uri);
+        if (entry.isNotFound()) {
+            Response response = serveArchive(uri, headers);
+            return response != null ? response : getNotFoundResponse();
         }
+        File homeDir = entry.getHomeDir();
 
         // Browsers get confused without '/' after the directory, send a
         // redirect.
-        File f = new File(homeDir, uri);
-        if (f.isDirectory() && !uri.endsWith("/")) {
-            uri += "/";
-            Response res =
-                    newFixedLengthResponse(Response.Status.REDIRECT, NanoHTTPD.MIME_HTML, "<html><body>Redirected: <a href=\"" + uri + "\">" + uri + "</a></body></html>");
-            res.addHeader("Location", uri);
-            return res;
+        File f = entry.getFile();
+        if (entry.isDirectory() && !uri.endsWith("/")) {
+            return newRedirectResponse(uri + "/");
         }
 
-        if (f.isDirectory()) {
+        if (entry.isDirectory()) {
             // First look for index files (index.html, index.htm, etc) and if
             // none found, list the directory if readable.
-            String indexFile = findIndexFileInDirectory(f);
+            String indexFile = entry.getIndexFile();
             if (indexFile == null) {
                 if (f.canRead()) {
                     // No index file, list the directory if it is readable
-                    return newFixedLengthResponse(Response.Status.OK, NanoHTTPD.MIME_HTML, listDirectory(uri, f));
+                    return serveDirectoryListing(uri, f, session.getParms());
                 } else {
                     return getForbiddenResponse("No directory listing.");
                 }
@@ -419,7 +724,7 @@ public class SimpleWebServer extends NanoHTTPD {
                 return respond(headers, session, uri + indexFile);
             }
         }
-        String mimeTypeForFile = getMimeTypeForFile(uri);
+        String mimeTypeForFile = entry.getMimeType();
         WebServerPlugin plugin = SimpleWebServer.mimeTypeHandlers.get(mimeTypeForFile);
         Response response = null;
         if (plugin != null && plugin.canServeUri(uri, homeDir)) {
@@ -429,136 +734,259 @@ public class SimpleWebServer extends NanoHTTPD {
                 return respond(rewrite.getHeaders(), session, rewrite.getUri());
             }
         } else {
-            response = serveFile(uri, headers, f, mimeTypeForFile);
+            response = serveFile(uri, headers, entry);
         }
         return response != null ? response : getNotFoundResponse();
     }
 
+    private Response newRedirectResponse(String uri) {
+        Response res = newFixedLengthResponse(Response.Status.REDIRECT, NanoHTTPD.MIME_HTML, "<html><body>Redirected: <a href=\"" + uri + "\">" + uri + "</a></body></html>");
+        res.addHeader("Location", uri);
+        return res;
+    }
+
+    /**
+     * Serves a URI from the first archive that has a file or directory for
+     * it. Directories are served by their index file, they are not listed.
+     * 
+     * @return the response, or null if no archive has the URI.
+     */
+    protected Response serveArchive(String uri, Map<String, String> header) {
+        for (ArchiveRoot archive : this.archiveRoots) {
+            if (archive.isDirectory(uri)) {
+                if (!uri.endsWith("/")) {
+                    return newRedirectResponse(uri + "/");
+                }
+                for (String indexFile : SimpleWebServer.INDEX_FILE_NAMES) {
+                    ArchiveRoot.Entry entry = archive.getEntry(uri + indexFile);
+                    if (entry != null) {
+                        return serveArchiveEntry(archive, entry, getMimeTypeForFile(indexFile), header);
+                    }
+                }
+                return getForbiddenResponse("No directory listing.");
+            }
+            ArchiveRoot.Entry entry = archive.getEntry(uri);
+            if (entry != null) {
+                return serveArchiveEntry(archive, entry, getMimeTypeForFile(uri), header);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Serves a file of an archive. DEFLATED entries are sent as gzip to
+     * clients accepting it and inflated for the others. Only single byte
+     * ranges are served, requests for several get the whole file.
+     */
+    private Response serveArchiveEntry(ArchiveRoot archive, ArchiveRoot.Entry entry, String mime, Map<String, String> header) {
+        String acceptEncoding = header.get("accept-encoding");
+        boolean gzip = entry.isDeflated() && header.get("range") == null && acceptsEncoding(acceptEncoding, "gzip");
+        String etag = gzip ? FileMetadataCache.etag(entry.getETag(), "gzip") : entry.getETag();
+        String lastModified = HttpDates.format(entry.getLastModified());
+        long length = entry.getSize();
+        List<long[]> ranges = ByteRanges.parse(header.get("range"), length);
+
+        String ifMatch = header.get("if-match");
+        String ifNoneMatch = header.get("if-none-match");
+        String ifModifiedSince = header.get("if-modified-since");
+        String ifRange = header.get("if-range");
+        boolean preconditionFailed;
+        if (ifMatch != null) {
+            preconditionFailed = !matchesETag(ifMatch, etag, false);
+        } else {
+            preconditionFailed = isModifiedSince(entry.getLastModified(), header.get("if-unmodified-since"), false);
+        }
+        boolean notModified;
+        if (ifNoneMatch != null) {
+            notModified = matchesETag(ifNoneMatch, etag, true);
+        } else {
+            notModified = ifModifiedSince != null && !isModifiedSince(entry.getLastModified(), ifModifiedSince, true);
+        }
+        if (ranges != null && ifRange != null && !matchesIfRange(ifRange, entry.getLastModified(), etag)) {
+            ranges = null;
+        }
+
+        Response res;
+        if (preconditionFailed) {
+            res = newFixedLengthResponse(Response.Status.PRECONDITION_FAILED, NanoHTTPD.MIME_PLAINTEXT, "");
+        } else if (notModified) {
+            res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
+            res.addHeader("Last-Modified", lastModified);
+        } else if (ranges != null && ranges.isEmpty()) {
+            res = newFixedLengthResponse(Response.Status.RANGE_NOT_SATISFIABLE, NanoHTTPD.MIME_PLAINTEXT, "");
+            res.addHeader("Content-Range", "bytes */" + length);
+        } else if (ranges != null && ranges.size() == 1) {
+            long startFrom = ranges.get(0)[0];
+            long endAt = ranges.get(0)[1];
+            long newLen = endAt - startFrom + 1;
+            res = NanoHTTPD.newStreamingResponse(Response.Status.PARTIAL_CONTENT, mime, archive.body(entry, startFrom, newLen), newLen);
+            res.addHeader("Accept-Ranges", "bytes");
+            res.addHeader("Content-Length", "" + newLen);
+            res.addHeader("Content-Range", "bytes " + startFrom + "-" + endAt + "/" + length);
+            res.addHeader("Last-Modified", lastModified);
+        } else if (gzip) {
+            res = NanoHTTPD.newStreamingResponse(Response.Status.OK, mime, archive.gzipBody(entry), entry.getGzipLength());
+            res.addHeader("Accept-Ranges", "bytes");
+            res.addHeader("Content-Encoding", "gzip");
+            res.addHeader("Content-Length", "" + entry.getGzipLength());
+            res.addHeader("Last-Modified", lastModified);
+        } else {
+            res = NanoHTTPD.newStreamingResponse(Response.Status.OK, mime, archive.body(entry, 0, length), length);
+            res.addHeader("Accept-Ranges", "bytes");
+            res.addHeader("Content-Length", "" + length);
+            res.addHeader("Last-Modified", lastModified);
+        }
+        res.addHeader("ETag", etag);
+        if (entry.isDeflated()) {
+            res.addVaryHeader("Accept-Encoding");
+        }
+        return res;
+    }
+
     @Override
     public Response serve(IHTTPSession session) {
         Map<String, String> header = session.getHeaders();
-        Map<String, String> parms = session.getParms();
         String uri = session.getUri();
 
-        if (!this.quiet) {
-            System.out.println(session.getMethod() + " '" + uri + "' ");
-
-            Iterator<String> e = header.keySet().iterator();
-            while (e.hasNext()) {
-                String value = e.next();
-                System.out.println("  HDR: '" + value + "' = '" + header.get(value) + "'");
-            }
-            e = parms.keySet().iterator();
-            while (e.hasNext()) {
-                String value = e.next();
-                System.out.println("  PRM: '" + value + "' = '" + parms.get(value) + "'");
-            }
+        if (this.invalidRootDir != null) {
+            return getInternalErrorResponse("given path is not a directory (" + this.invalidRootDir + ").");
         }
-
-        for (File homeDir : this.rootDirs) {
-            // Make sure we won't die of an exception later
-            if (!homeDir.isDirectory()) {
-                return getInternalErrorResponse("given path is not a directory (" + homeDir + ").");
-            }
+        Response response = respond(Collections.unmodifiableMap(header), session, uri);
+        if (response.getBandwidthLimiter() == null) {
+            response.setBandwidthLimiter(getMimeTypeBandwidthLimiter(response.getMimeType()));
         }
-        return respond(Collections.unmodifiableMap(header), session, uri);
+        return response;
     }
 
     /**
      * Serves file from homeDir and its' subdirectories (only). Uses only URI,
      * ignores all headers and HTTP parameters.
      */
-    Response serveFile(String uri, Map<String, String> header, File file, String mime) {
+    Response serveFile(String uri, Map<String, String> header, FileMetadataCache.Entry entry) {
+        String mime = entry.getMimeType();
         Response res;
         try {
-            // Calculate etag
-            String etag = Integer.toHexString((file.getAbsolutePath() + file.lastModified() + "" + file.length()).hashCode());
-
-            // Support (simple) skipping:
-            long startFrom = 0;
-            long endAt = -1;
-            String range = header.get("range");
-            if (range != null) {
-                if (range.startsWith("bytes=")) {
-                    range = range.substring("bytes=".length());
-                    int minus = range.indexOf('-');
-                    try {
-                        if (minus > 0) {
-                            startFrom = Long.parseLong(range.substring(0, minus));
-                            endAt = Long.parseLong(range.substring(minus + 1));
+            String etag = entry.getETag();
+
+            // Look for precompressed sidecars, foo.js.br or foo.js.gz, at
+            // least as fresh as the file
+            boolean hasVariants = false;
+            FileMetadataCache.Entry sidecar = null;
+            String variantEncoding = null;
+            String acceptEncoding = header.get("accept-encoding");
+            if (this.servePrecompressed) {
+                for (int i = 0; i < SIDECAR_ENCODINGS.length; i += 2) {
+                    FileMetadataCache.Entry candidate = resolve(uri + SIDECAR_ENCODINGS[i + 1]);
+                    if (!candidate.isNotFound() && !candidate.isDirectory() && candidate.getLastModified() >= entry.getLastModified()) {
+                        hasVariants = true;
+                        if (sidecar == null && header.get("range") == null && acceptsEncoding(acceptEncoding, SIDECAR_ENCODINGS[i])) {
+                            sidecar = candidate;
+                            variantEncoding = SIDECAR_ENCODINGS[i];
                         }
-                    } catch (NumberFormatException ignored) {
                     }
                 }
             }
 
-            // get if-range header. If present, it must match etag or else we
-            // should ignore the range request
-            String ifRange = header.get("if-range");
-            boolean headerIfRangeMissingOrMatching = (ifRange == null || etag.equals(ifRange));
-
-            String ifNoneMatch = header.get("if-none-match");
-            boolean headerIfNoneMatchPresentAndMatching = ifNoneMatch != null && ("*".equals(ifNoneMatch) || ifNoneMatch.equals(etag));
-
-            // Change return code and add Content-Range header when skipping is
-            // requested
-            long fileLen = file.length();
-
-            if (headerIfRangeMissingOrMatching && range != null && startFrom >= 0 && startFrom < fileLen) {
-                // range request that matches current etag
-                // and the startFrom of the range is satisfiable
-                if (headerIfNoneMatchPresentAndMatching) {
-                    // range request that matches current etag
-                    // and the startFrom of the range is satisfiable
-                    // would return range from file
-                    // respond with not-modified
-                    res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
-                    res.addHeader("ETag", etag);
-                } else {
-                    if (endAt < 0) {
-                        endAt = fileLen - 1;
-                    }
-                    long newLen = endAt - startFrom + 1;
-                    if (newLen < 0) {
-                        newLen = 0;
-                    }
+            // Otherwise compress the file once and keep the result, the
+            // coding is picked now but the file only compressed when sent
+            ContentEncoder encoder = null;
+            CompressedVariantCache variants = this.compressedVariantCache;
+            if (sidecar == null && variants != null && isCompressible(variants, mime, entry.getLength())) {
+                hasVariants = true;
+                ContentEncoder candidate = header.get("range") == null ? selectContentEncoder(acceptEncoding) : null;
+                if (candidate != null && candidate.shouldEncode(entry.getLength())) {
+                    encoder = candidate;
+                    variantEncoding = candidate.getEncoding();
+                }
+            }
+            if (variantEncoding != null) {
+                etag = FileMetadataCache.etag(etag, variantEncoding);
+            }
 
-                    FileInputStream fis = new FileInputStream(file);
-                    fis.skip(startFrom);
+            // Parse the requested byte ranges, null when there is no valid
+            // Range header
+            long fileLen = entry.getLength();
+            List<long[]> ranges = ByteRanges.parse(header.get("range"), fileLen);
 
-                    res = newFixedLengthResponse(Response.Status.PARTIAL_CONTENT, mime, fis, newLen);
-                    res.addHeader("Accept-Ranges", "bytes");
-                    res.addHeader("Content-Length", "" + newLen);
-                    res.addHeader("Content-Range", "bytes " + startFrom + "-" + endAt + "/" + fileLen);
-                    res.addHeader("ETag", etag);
-                }
+            // Evaluate the preconditions in the order of RFC 7232 section 6,
+            // from the cached metadata only
+            String ifMatch = header.get("if-match");
+            String ifNoneMatch = header.get("if-none-match");
+            String ifModifiedSince = header.get("if-modified-since");
+            boolean preconditionFailed;
+            if (ifMatch != null) {
+                preconditionFailed = !matchesETag(ifMatch, etag, false);
+            } else {
+                preconditionFailed = isModifiedSince(entry.getLastModified(), header.get("if-unmodified-since"), false);
+            }
+            boolean notModified;
+            if (ifNoneMatch != null) {
+                notModified = matchesETag(ifNoneMatch, etag, true);
             } else {
+                notModified = ifModifiedSince != null && !isModifiedSince(entry.getLastModified(), ifModifiedSince, true);
+            }
 
-                if (headerIfRangeMissingOrMatching && range != null && startFrom >= fileLen) {
-                    // return the size of the file
-                    // 4xx responses are not trumped by if-none-match
-                    res = newFixedLengthResponse(Response.Status.RANGE_NOT_SATISFIABLE, NanoHTTPD.MIME_PLAINTEXT, "");
-                    res.addHeader("Content-Range", "bytes */" + fileLen);
-                    res.addHeader("ETag", etag);
-                } else if (range == null && headerIfNoneMatchPresentAndMatching) {
-                    // full-file-fetch request
-                    // would return entire file
-                    // respond with not-modified
-                    res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
-                    res.addHeader("ETag", etag);
-                } else if (!headerIfRangeMissingOrMatching && headerIfNoneMatchPresentAndMatching) {
-                    // range request that doesn't match current etag
-                    // would return entire (different) file
-                    // respond with not-modified
-
-                    res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
-                    res.addHeader("ETag", etag);
+            // get if-range header. If present, it must match etag or
+            // last-modified date or else we should ignore the range request
+            String ifRange = header.get("if-range");
+            boolean headerIfRangeMissingOrMatching = ifRange == null || matchesIfRange(ifRange, entry.getLastModified(), etag);
+
+            if (preconditionFailed) {
+                res = newFixedLengthResponse(Response.Status.PRECONDITION_FAILED, NanoHTTPD.MIME_PLAINTEXT, "");
+                res.addHeader("ETag", etag);
+            } else if (notModified) {
+                // the client's copy is up to date, respond with not-modified
+                // without opening the file
+                res = newFixedLengthResponse(Response.Status.NOT_MODIFIED, mime, "");
+                res.addHeader("ETag", etag);
+                res.addHeader("Last-Modified", entry.getLastModifiedDate());
+            } else if (headerIfRangeMissingOrMatching && ranges != null && ranges.isEmpty()) {
+                // no range is satisfiable, return the size of the file
+                res = newFixedLengthResponse(Response.Status.RANGE_NOT_SATISFIABLE, NanoHTTPD.MIME_PLAINTEXT, "");
+                res.addHeader("Content-Range", "bytes */" + fileLen);
+                res.addHeader("ETag", etag);
+            } else if (headerIfRangeMissingOrMatching && ranges != null && ranges.size() == 1) {
+                long startFrom = ranges.get(0)[0];
+                long endAt = ranges.get(0)[1];
+                long newLen = endAt - startFrom + 1;
+
+                res = newFileResponse(Response.Status.PARTIAL_CONTENT, entry, mime, startFrom, newLen);
+                res.addHeader("Accept-Ranges", "bytes");
+                res.addHeader("Content-Length", "" + newLen);
+                res.addHeader("Content-Range", "bytes " + startFrom + "-" + endAt + "/" + fileLen);
+                res.addHeader("ETag", etag);
+                res.addHeader("Last-Modified", entry.getLastModifiedDate());
+            } else if (headerIfRangeMissingOrMatching && ranges != null) {
+                res = newMultipartRangeResponse(entry, mime, ranges);
+                res.addHeader("Accept-Ranges", "bytes");
+                res.addHeader("ETag", etag);
+                res.addHeader("Last-Modified", entry.getLastModifiedDate());
+            } else {
+                ByteBuffer compressed = encoder != null ? variants.get(entry.getFile(), fileLen, entry.getLastModified(), encoder) : null;
+                if (sidecar != null) {
+                    // supply the precompressed file
+                    res = newFileResponse(Response.Status.OK, sidecar, mime, 0, sidecar.getLength());
+                    res.addHeader("Content-Encoding", variantEncoding);
+                    res.addHeader("Content-Length", "" + sidecar.getLength());
+                } else if (compressed != null) {
+                    // supply the cached compressed file
+                    int compressedLen = compressed.remaining();
+                    res = NanoHTTPD.newFixedLengthResponse(Response.Status.OK, mime, compressed);
+                    res.addHeader("Content-Encoding", variantEncoding);
+                    res.addHeader("Content-Length", "" + compressedLen);
                 } else {
-                    // supply the file
-                    res = newFixedFileResponse(file, mime);
+                    // supply the file, also when its compressed variant is
+                    // still being prepared
+                    etag = entry.getETag();
+                    res = newFileResponse(Response.Status.OK, entry, mime, 0, fileLen);
                     res.addHeader("Content-Length", "" + fileLen);
-                    res.addHeader("ETag", etag);
                 }
+                res.addHeader("Accept-Ranges", "bytes");
+                res.addHeader("ETag", etag);
+                res.addHeader("Last-Modified", entry.getLastModifiedDate());
+            }
+            if (hasVariants) {
+                res.addVaryHeader("Accept-Encoding");
             }
         } catch (IOException ioe) {
             res = getForbiddenResponse("Reading file failed.");
@@ -567,13 +995,194 @@ public class SimpleWebServer extends NanoHTTPD {
         return res;
     }
 
-    private Response newFixedFileResponse(File file, String mime) throws FileNotFoundException {
-        Response res;
-        res = newFixedLengthResponse(Response.Status.OK, mime, new FileInputStream(file), (int) file.length());
-        res.addHeader("Accept-Ranges", "bytes");
+    /**
+     * Compares the entity-tags of an If-Match or If-None-Match header with
+     * the ETag of a file. "*" matches any file. If-None-Match uses the weak
+     * comparison, ignoring the W/ prefix; If-Match the strong one, which
+     * weak tags never match.
+     */
+    static boolean matchesETag(String header, String etag, boolean weak) {
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if ("*".equals(tag)) {
+                return true;
+            }
+            if (tag.startsWith("W/")) {
+                if (!weak) {
+                    continue;
+                }
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the file was modified after the HTTP-date of an
+     *         If-Modified-Since or If-Unmodified-Since header, at the one
+     *         second precision of HTTP dates. An invalid or missing date
+     *         yields the given default.
+     */
+    private static boolean isModifiedSince(long lastModified, String date, boolean defaultValue) {
+        long since = HttpDates.parse(date);
+        if (since < 0) {
+            return defaultValue;
+        }
+        return lastModified / 1000 > since / 1000;
+    }
+
+    /**
+     * @return true if the If-Range header, an entity-tag or an HTTP-date,
+     *         names the current version of the file.
+     */
+    private static boolean matchesIfRange(String ifRange, long lastModified, String etag) {
+        long date = HttpDates.parse(ifRange);
+        if (date >= 0) {
+            return lastModified / 1000 == date / 1000;
+        }
+        return !ifRange.trim().startsWith("W/") && matchesETag(ifRange, etag, false) && !"*".equals(ifRange.trim());
+    }
+
+    /**
+     * @return true if a file of the given type and length would be
+     *         compressed for clients accepting one of the content-codings of
+     *         the server.
+     */
+    private boolean isCompressible(CompressedVariantCache variants, String mime, long length) {
+        if (!PrecompressedSidecars.isCompressible(mime) || !variants.accepts(length)) {
+            return false;
+        }
+        for (ContentEncoder encoder : getContentEncoders()) {
+            if (encoder.shouldEncode(length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the Accept-Encoding request header allows the given
+     *         content-coding, by name or through "*", with a quality value
+     *         above zero.
+     */
+    static boolean acceptsEncoding(String acceptEncoding, String coding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        float quality = -1;
+        float wildcard = 0;
+        StringTokenizer st = new StringTokenizer(acceptEncoding, ",");
+        while (st.hasMoreTokens()) {
+            String element = st.nextToken();
+            int semicolon = element.indexOf(';');
+            String name = (semicolon >= 0 ? element.substring(0, semicolon) : element).trim().toLowerCase();
+            if ("x-gzip".equals(name)) {
+                name = "gzip";
+            }
+            float q = 1;
+            if (semicolon >= 0) {
+                String params = element.substring(semicolon + 1).trim();
+                if (params.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(params.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (name.equals(coding)) {
+                quality = q;
+            } else if ("*".equals(name)) {
+                wildcard = q;
+            }
+        }
+        return (quality >= 0 ? quality : wildcard) > 0;
+    }
+
+    /**
+     * Creates a multipart/byteranges response with several ranges of a file.
+     * The parts are streamed one after the other, each range is written
+     * like the body of a single range response.
+     */
+    private Response newMultipartRangeResponse(final FileMetadataCache.Entry entry, String mime, final List<long[]> ranges) throws IOException {
+        String boundary = Long.toHexString(SimpleWebServer.RANDOM.nextLong()) + Long.toHexString(SimpleWebServer.RANDOM.nextLong());
+        final byte[][] partHeaders = new byte[ranges.size()][];
+        long length = 0;
+        for (int i = 0; i < partHeaders.length; i++) {
+            long[] range = ranges.get(i);
+            String partHeader = "\r\n--" + boundary + "\r\nContent-Type: " + mime + "\r\nContent-Range: bytes " + range[0] + "-" + range[1] + "/" + entry.getLength() + "\r\n\r\n";
+            partHeaders[i] = partHeader.getBytes("ISO-8859-1");
+            length += partHeaders[i].length + range[1] - range[0] + 1;
+        }
+        final byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes("ISO-8859-1");
+        length += trailer.length;
+        Response res = NanoHTTPD.newStreamingResponse(Response.Status.PARTIAL_CONTENT, "multipart/byteranges; boundary=" + boundary, new StreamingBody() {
+
+            @Override
+            public void writeTo(StreamingOutputStream out) throws IOException {
+                for (int i = 0; i < partHeaders.length; i++) {
+                    long[] range = ranges.get(i);
+                    out.write(partHeaders[i]);
+                    writeFileRange(entry, range[0], range[1] - range[0] + 1, out);
+                }
+                out.write(trailer);
+            }
+        }, length);
+        res.addHeader("Content-Length", "" + length);
         return res;
     }
 
+    /**
+     * Writes part of a file from the content cache, from a memory mapping,
+     * or by transferring it from a file channel.
+     */
+    private void writeFileRange(FileMetadataCache.Entry entry, long offset, long length, StreamingOutputStream out) throws IOException {
+        File file = entry.getFile();
+        ByteBuffer content = this.contentCache.get(file, entry.getLength(), entry.getLastModified());
+        if (content != null) {
+            content.limit((int) (offset + length));
+            content.position((int) offset);
+            while (content.hasRemaining()) {
+                out.getChannel().write(content);
+            }
+            return;
+        }
+        MappedFileCache mapped = this.mappedFileCache;
+        StreamingBody body = mapped != null ? mapped.body(file, entry.getLength(), entry.getLastModified(), offset, length) : null;
+        if (body != null) {
+            body.writeTo(out);
+        } else {
+            MappedFileCache.transfer(file, offset, length, out.getChannel());
+        }
+    }
+
+    /**
+     * Creates a response with part of a file as body, taken from the content
+     * cache or a memory mapping when the file is kept there.
+     */
+    private Response newFileResponse(IStatus status, FileMetadataCache.Entry entry, String mime, long offset, long length) throws IOException {
+        File file = entry.getFile();
+        if (length > 0) {
+            ByteBuffer content = this.contentCache.get(file, entry.getLength(), entry.getLastModified());
+            if (content != null) {
+                content.limit((int) (offset + length));
+                content.position((int) offset);
+                return NanoHTTPD.newFixedLengthResponse(status, mime, content);
+            }
+            MappedFileCache mapped = this.mappedFileCache;
+            StreamingBody body = mapped != null ? mapped.body(file, entry.getLength(), entry.getLastModified(), offset, length) : null;
+            if (body != null) {
+                return NanoHTTPD.newStreamingResponse(status, mime, body, length);
+            }
+        }
+        FileInputStream fis = new FileInputStream(file);
+        fis.skip(offset);
+        return newFixedLengthResponse(status, mime, fis, length);
+    }
+
     protected Response addCORSHeaders(Map<String, String> queryHeaders, Response resp, String cors) {
         resp.addHeader("Access-Control-Allow-Origin", cors);
         resp.addHeader("Access-Control-Allow-Headers", calculateAllowHeaders(queryHeaders));
@@ -592,6 +1201,21 @@ public class SimpleWebServer extends NanoHTTPD {
         return System.getProperty(ACCESS_CONTROL_ALLOW_HEADER_PROPERTY_NAME, DEFAULT_ALLOWED_HEADERS);
     }
 
+    /**
+     * Content-codings of precompressed sidecars and their file name
+     * extensions, in order of preference.
+     */
+    private final static String[] SIDECAR_ENCODINGS = {
+        "br",
+        ".br",
+        "gzip",
+        ".gz"
+    };
+
+    private final static int MAX_DIRECTORY_LISTINGS = 64;
+
+    private final static Random RANDOM = new Random();
+
     private final static String ALLOWED_METHODS = "GET, POST, PUT, DELETE, OPTIONS, HEAD";
 
     private final static int MAX_AGE = 42 * 60 * 60;
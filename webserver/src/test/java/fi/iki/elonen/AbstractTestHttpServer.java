@@ -34,8 +34,12 @@ package fi.iki.elonen;
  */
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+
 import org.apache.http.HttpEntity;
 
 /**
@@ -64,4 +68,48 @@ public class AbstractTestHttpServer {
         return bytes;
     }
 
+    /**
+     * @return a quiet server on port 9091 serving the given root
+     *         directories, not started yet.
+     */
+    protected static SimpleWebServer newServer(File... roots) {
+        return new SimpleWebServer("localhost", 9091, Arrays.asList(roots), true);
+    }
+
+    /**
+     * @return a new empty directory in the temp directory, remove it with
+     *         {@link #delete(File)}.
+     */
+    protected static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    protected static void write(File file, String content) throws IOException {
+        write(file, content.getBytes("UTF-8"));
+    }
+
+    protected static void write(File file, byte[] content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Deletes a file, or a directory with everything in it.
+     */
+    protected static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
 }
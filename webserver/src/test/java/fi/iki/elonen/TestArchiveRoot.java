@@ -0,0 +1,253 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestArchiveRoot extends AbstractTestHttpServer {
+
+    private static final String SCRIPT;
+
+    static {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("var line").append(i).append(" = ").append(i).append(";\n");
+        }
+        SCRIPT = sb.toString();
+    }
+
+    private File root;
+
+    private File zip;
+
+    private ArchiveRoot archive;
+
+    private SimpleWebServer server;
+
+    private CloseableHttpClient httpclient;
+
+    @Before
+    public void setUp() throws Exception {
+        this.root = createTempDir("archive");
+        write(new File(this.root, "override.txt"), "from directory");
+        this.zip = File.createTempFile("archive", ".zip");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(this.zip));
+        try {
+            putStored(out, "site/docs/index.html", "<html>archived</html>");
+            putStored(out, "site/override.txt", "from archive");
+            putStored(out, "site/data.bin", "0123456789");
+            out.putNextEntry(new ZipEntry("site/js/"));
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry("site/js/app.js"));
+            out.write(SCRIPT.getBytes("UTF-8"));
+            out.closeEntry();
+            putStored(out, "outside.txt", "not served");
+        } finally {
+            out.close();
+        }
+
+        this.archive = new ArchiveRoot(this.zip, "site");
+        this.server = newServer(this.root);
+        this.server.setCompressedVariantCache(null);
+        this.server.addArchiveRoot(this.archive);
+        this.server.start();
+        this.httpclient = HttpClients.custom().disableContentCompression().build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.httpclient.close();
+        this.server.stop();
+        this.archive.close();
+        this.zip.delete();
+        delete(this.root);
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+        Assert.assertEquals(4, this.archive.getEntryCount());
+        Assert.assertNotNull(this.archive.getEntry("/js/app.js"));
+        Assert.assertNull(this.archive.getEntry("/outside.txt"));
+        Assert.assertTrue(this.archive.isDirectory("/js"));
+        Assert.assertTrue(this.archive.isDirectory("/"));
+        Assert.assertFalse(this.archive.isDirectory("/docs/index.html"));
+    }
+
+    @Test
+    public void testStoredEntry() throws Exception {
+        CloseableHttpResponse response = get("/data.bin", null);
+        try {
+            Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+            Assert.assertEquals("10", response.getFirstHeader("Content-Length").getValue());
+            Assert.assertNotNull(response.getFirstHeader("Last-Modified"));
+            Assert.assertEquals("0123456789", new String(readContents(response.getEntity()), "UTF-8"));
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testDirectoriesComeFirst() throws Exception {
+        CloseableHttpResponse response = get("/override.txt", null);
+        try {
+            Assert.assertEquals("from directory", new String(readContents(response.getEntity()), "UTF-8"));
+        } finally {
+            response.close();
+        }
+        response = get("/outside.txt", null);
+        try {
+            Assert.assertEquals(404, response.getStatusLine().getStatusCode());
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testDeflatedEntryAsGzip() throws Exception {
+        CloseableHttpResponse response = get("/js/app.js", "gzip");
+        try {
+            Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+            Assert.assertEquals("gzip", response.getFirstHeader("Content-Encoding").getValue());
+            byte[] body = readContents(response.getEntity());
+            Assert.assertEquals(Long.parseLong(response.getFirstHeader("Content-Length").getValue()), body.length);
+            Assert.assertTrue(body.length < SCRIPT.length());
+            GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body));
+            Assert.assertEquals(SCRIPT, new String(readContents(in), "UTF-8"));
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testDeflatedEntryInflated() throws Exception {
+        CloseableHttpResponse response = get("/js/app.js", null);
+        try {
+            Assert.assertNull(response.getFirstHeader("Content-Encoding"));
+            Assert.assertEquals("Accept-Encoding", response.getFirstHeader("Vary").getValue());
+            Assert.assertEquals(SCRIPT, new String(readContents(response.getEntity()), "UTF-8"));
+        } finally {
+            response.close();
+        }
+        HttpGet request = new HttpGet("http://localhost:9091/js/app.js");
+        request.addHeader("Range", "bytes=100-199");
+        request.addHeader("Accept-Encoding", "gzip");
+        response = this.httpclient.execute(request);
+        try {
+            Assert.assertEquals(206, response.getStatusLine().getStatusCode());
+            Assert.assertNull(response.getFirstHeader("Content-Encoding"));
+            Assert.assertEquals(SCRIPT.substring(100, 200), new String(readContents(response.getEntity()), "UTF-8"));
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testDirectoryIndex() throws Exception {
+        CloseableHttpResponse response = get("/docs", null);
+        try {
+            Assert.assertEquals("<html>archived</html>", new String(readContents(response.getEntity()), "UTF-8"));
+            Assert.assertEquals("text/html", response.getFirstHeader("Content-Type").getValue());
+        } finally {
+            response.close();
+        }
+        response = get("/js/", null);
+        try {
+            Assert.assertEquals(403, response.getStatusLine().getStatusCode());
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testRangeAndNotModified() throws Exception {
+        HttpGet request = new HttpGet("http://localhost:9091/data.bin");
+        request.addHeader("Range", "bytes=2-4");
+        CloseableHttpResponse response = this.httpclient.execute(request);
+        String etag;
+        try {
+            Assert.assertEquals(206, response.getStatusLine().getStatusCode());
+            Assert.assertEquals("bytes 2-4/10", response.getFirstHeader("Content-Range").getValue());
+            Assert.assertEquals("234", new String(readContents(response.getEntity()), "UTF-8"));
+            etag = response.getFirstHeader("ETag").getValue();
+        } finally {
+            response.close();
+        }
+        request = new HttpGet("http://localhost:9091/data.bin");
+        request.addHeader("If-None-Match", etag);
+        response = this.httpclient.execute(request);
+        try {
+            Assert.assertEquals(304, response.getStatusLine().getStatusCode());
+        } finally {
+            response.close();
+        }
+    }
+
+    private CloseableHttpResponse get(String path, String acceptEncoding) throws IOException {
+        HttpGet request = new HttpGet("http://localhost:9091" + path);
+        if (acceptEncoding != null) {
+            request.addHeader("Accept-Encoding", acceptEncoding);
+        }
+        return this.httpclient.execute(request);
+    }
+
+    private static void putStored(ZipOutputStream out, String name, String content) throws IOException {
+        byte[] bytes = content.getBytes("UTF-8");
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(bytes.length);
+        entry.setCompressedSize(bytes.length);
+        entry.setCrc(crc.getValue());
+        out.putNextEntry(entry);
+        out.write(bytes);
+        out.closeEntry();
+    }
+}
@@ -0,0 +1,200 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestAssetFingerprints extends AbstractTestHttpServer {
+
+    private File root;
+
+    private File other;
+
+    private AssetFingerprints fingerprints;
+
+    private SimpleWebServer server;
+
+    private CloseableHttpClient httpclient;
+
+    @Before
+    public void setUp() throws Exception {
+        this.root = createTempDir("fingerprints");
+        new File(this.root, "js").mkdirs();
+        write(new File(this.root, "js/app.js"), "var a = 1;");
+        write(new File(this.root, "LICENSE"), "free");
+        write(new File(this.root, ".hidden"), "secret");
+        this.other = createTempDir("fingerprints");
+        write(new File(this.other, "LICENSE"), "shadowed");
+        write(new File(this.other, "other.css"), "p {}");
+
+        this.fingerprints = new AssetFingerprints(Arrays.asList(this.root, this.other));
+        Assert.assertEquals(3, this.fingerprints.scan(2));
+        this.server = newServer(this.root, this.other);
+        this.server.setMetadataCache(new FileMetadataCache(0, 0));
+        this.server.setAssetFingerprints(this.fingerprints);
+        this.server.start();
+        this.httpclient = HttpClients.createDefault();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.httpclient.close();
+        this.server.stop();
+        delete(this.root);
+        delete(this.other);
+    }
+
+    @Test
+    public void testManifest() throws Exception {
+        Map<String, String> manifest = this.fingerprints.getManifest();
+        Assert.assertEquals(3, manifest.size());
+        Assert.assertTrue(manifest.get("/js/app.js").matches("/js/app\\.[0-9a-f]{10}\\.js"));
+        Assert.assertTrue(manifest.get("/LICENSE").matches("/LICENSE\\.[0-9a-f]{10}"));
+        Assert.assertTrue(manifest.get("/other.css").matches("/other\\.[0-9a-f]{10}\\.css"));
+        Assert.assertEquals(manifest.get("/js/app.js"), this.fingerprints.getFingerprintedUri("/js/app.js"));
+        Assert.assertEquals("/unknown.js", this.fingerprints.getFingerprintedUri("/unknown.js"));
+        Assert.assertEquals("/js/app.js", this.fingerprints.getOriginalUri(manifest.get("/js/app.js")));
+        Assert.assertNull(this.fingerprints.getOriginalUri("/js/app.js"));
+    }
+
+    @Test
+    public void testFingerprintedUriIsImmutable() throws Exception {
+        CloseableHttpResponse response = get(this.fingerprints.getFingerprintedUri("/js/app.js"));
+        try {
+            Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+            Assert.assertEquals(AssetFingerprints.IMMUTABLE_CACHE_CONTROL, response.getFirstHeader("Cache-Control").getValue());
+            Assert.assertEquals("var a = 1;", new String(readContents(response.getEntity()), "UTF-8"));
+        } finally {
+            response.close();
+        }
+        response = get("/js/app.js");
+        try {
+            Assert.assertNull(response.getFirstHeader("Cache-Control"));
+            readContents(response.getEntity());
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testFirstRootWins() throws Exception {
+        CloseableHttpResponse response = get(this.fingerprints.getFingerprintedUri("/LICENSE"));
+        try {
+            Assert.assertEquals("free", new String(readContents(response.getEntity()), "UTF-8"));
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testChangedFileGetsNewFingerprint() throws Exception {
+        String old = this.fingerprints.getFingerprintedUri("/js/app.js");
+        File file = new File(this.root, "js/app.js");
+        write(file, "var a = 22;");
+        file.setLastModified(file.lastModified() + 2000);
+        Thread.sleep(1100);
+        String current = this.fingerprints.getFingerprintedUri("/js/app.js");
+        Assert.assertFalse(old.equals(current));
+        Assert.assertTrue(this.fingerprints.isCurrent(current, file.lastModified(), file.length()));
+        Assert.assertFalse(this.fingerprints.isCurrent(old, file.lastModified(), file.length()));
+        Assert.assertNull(this.fingerprints.getOriginalUri(old));
+
+        assertNotFound(old);
+    }
+
+    @Test
+    public void testChangeIsNoticedBeforeServing() throws Exception {
+        String old = this.fingerprints.getFingerprintedUri("/js/app.js");
+        File file = new File(this.root, "js/app.js");
+        write(file, "var a = 333;");
+        file.setLastModified(file.lastModified() + 2000);
+
+        // within the check interval, but the served file differs
+        assertNotFound(old);
+        String current = this.fingerprints.getFingerprintedUri("/js/app.js");
+        Assert.assertFalse(old.equals(current));
+        CloseableHttpResponse response = get(current);
+        try {
+            Assert.assertEquals(AssetFingerprints.IMMUTABLE_CACHE_CONTROL, response.getFirstHeader("Cache-Control").getValue());
+            Assert.assertEquals("var a = 333;", new String(readContents(response.getEntity()), "UTF-8"));
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testRemovedFileIsForgotten() throws Exception {
+        String old = this.fingerprints.getFingerprintedUri("/js/app.js");
+        Assert.assertTrue(new File(this.root, "js/app.js").delete());
+        Thread.sleep(1100);
+        Assert.assertEquals("/js/app.js", this.fingerprints.getFingerprintedUri("/js/app.js"));
+        Assert.assertNull(this.fingerprints.getOriginalUri(old));
+        assertNotFound(old);
+    }
+
+    @Test
+    public void testFingerprintedUriFormat() {
+        Assert.assertEquals("/js/app.0123456789.js", AssetFingerprints.fingerprintedUri("/js/app.js", "0123456789"));
+        Assert.assertEquals("/js/app.min.0123456789.js", AssetFingerprints.fingerprintedUri("/js/app.min.js", "0123456789"));
+        Assert.assertEquals("/a.b/LICENSE.0123456789", AssetFingerprints.fingerprintedUri("/a.b/LICENSE", "0123456789"));
+        Assert.assertEquals("/.profile.0123456789", AssetFingerprints.fingerprintedUri("/.profile", "0123456789"));
+    }
+
+    private void assertNotFound(String path) throws IOException {
+        CloseableHttpResponse response = get(path);
+        try {
+            Assert.assertEquals(404, response.getStatusLine().getStatusCode());
+            Assert.assertNull(response.getFirstHeader("Cache-Control"));
+            readContents(response.getEntity());
+        } finally {
+            response.close();
+        }
+    }
+
+    private CloseableHttpResponse get(String path) throws IOException {
+        return this.httpclient.execute(new HttpGet("http://localhost:9091" + path));
+    }
+}
@@ -0,0 +1,113 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestBandwidthLimit extends AbstractTestHttpServer {
+
+    private File root;
+
+    private SimpleWebServer server;
+
+    private CloseableHttpClient httpclient;
+
+    @Before
+    public void setUp() throws Exception {
+        this.root = createTempDir("bandwidth");
+        byte[] content = new byte[64 * 1024];
+        Arrays.fill(content, (byte) 'x');
+        write(new File(this.root, "large.txt"), content);
+        write(new File(this.root, "large.png"), content);
+        this.server = newServer(this.root);
+        this.server.start();
+        this.httpclient = HttpClients.custom().disableContentCompression().build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.httpclient.close();
+        this.server.stop();
+        delete(this.root);
+    }
+
+    @Test
+    public void testMimeTypeLookup() {
+        BandwidthLimiter text = new BandwidthLimiter(1000);
+        BandwidthLimiter html = new BandwidthLimiter(2000);
+        this.server.setMimeTypeBandwidthLimiter("text/*", text);
+        this.server.setMimeTypeBandwidthLimiter("text/html", html);
+        Assert.assertSame(html, this.server.getMimeTypeBandwidthLimiter("text/html; charset=UTF-8"));
+        Assert.assertSame(text, this.server.getMimeTypeBandwidthLimiter("text/plain"));
+        Assert.assertNull(this.server.getMimeTypeBandwidthLimiter("image/png"));
+        this.server.setMimeTypeBandwidthLimiter("text/*", null);
+        Assert.assertNull(this.server.getMimeTypeBandwidthLimiter("text/plain"));
+    }
+
+    @Test
+    public void testMimeTypeLimit() throws Exception {
+        BandwidthLimiter limiter = new BandwidthLimiter(128 * 1024, 16 * 1024);
+        this.server.setMimeTypeBandwidthLimiter("text/*", limiter);
+
+        long start = System.nanoTime();
+        Assert.assertEquals(64 * 1024, get("/large.txt"));
+        long elapsed = System.nanoTime() - start;
+        Assert.assertTrue("" + elapsed, elapsed >= 300L * 1000 * 1000);
+        long count = limiter.getByteCount();
+        Assert.assertTrue(count > 64 * 1024);
+
+        Assert.assertEquals(64 * 1024, get("/large.png"));
+        Assert.assertEquals(count, limiter.getByteCount());
+    }
+
+    private int get(String path) throws IOException {
+        CloseableHttpResponse response = this.httpclient.execute(new HttpGet("http://localhost:9091" + path));
+        try {
+            return readContents(response.getEntity()).length;
+        } finally {
+            response.close();
+        }
+    }
+}
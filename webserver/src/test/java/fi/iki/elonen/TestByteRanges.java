@@ -0,0 +1,173 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestByteRanges extends AbstractTestHttpServer {
+
+    private static final String CONTENT = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+    private File root;
+
+    private SimpleWebServer server;
+
+    private CloseableHttpClient httpclient;
+
+    @Before
+    public void setUp() throws Exception {
+        this.root = createTempDir("ranges");
+        write(new File(this.root, "data.bin"), CONTENT.getBytes("US-ASCII"));
+        this.server = newServer(this.root);
+        this.server.start();
+        this.httpclient = HttpClients.createDefault();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.httpclient.close();
+        this.server.stop();
+        delete(this.root);
+    }
+
+    @Test
+    public void testParse() {
+        assertRanges("0-9", ByteRanges.parse("bytes=0-9", 36));
+        assertRanges("30-35", ByteRanges.parse("bytes=30-", 36));
+        assertRanges("26-35", ByteRanges.parse("bytes=-10", 36));
+        assertRanges("0-35", ByteRanges.parse("bytes=-100", 36));
+        assertRanges("10-35", ByteRanges.parse("bytes=10-1000", 36));
+        assertRanges("0-9,20-29", ByteRanges.parse("bytes=20-29, 0-9", 36));
+        assertRanges("0-14", ByteRanges.parse("bytes=0-9,5-14", 36));
+        assertRanges("0-19", ByteRanges.parse("bytes=0-9,10-19", 36));
+        assertRanges("0-9", ByteRanges.parse("bytes=0-9,100-200", 36));
+        assertRanges("", ByteRanges.parse("bytes=100-200", 36));
+        assertRanges("", ByteRanges.parse("bytes=-0", 36));
+        Assert.assertNull(ByteRanges.parse("bytes=9-0", 36));
+        Assert.assertNull(ByteRanges.parse("bytes=a-b", 36));
+        Assert.assertNull(ByteRanges.parse("bytes=", 36));
+        Assert.assertNull(ByteRanges.parse("items=0-9", 36));
+        Assert.assertNull(ByteRanges.parse(null, 36));
+    }
+
+    @Test
+    public void testTooManyRangesAreIgnored() {
+        StringBuilder range = new StringBuilder("bytes=");
+        for (int i = 0; i <= ByteRanges.MAX_RANGES; i++) {
+            range.append(i * 2).append('-').append(i * 2).append(',');
+        }
+        Assert.assertNull(ByteRanges.parse(range.toString(), 1000));
+    }
+
+    @Test
+    public void testSuffixRange() throws Exception {
+        CloseableHttpResponse response = get("bytes=-6");
+        try {
+            Assert.assertEquals(206, response.getStatusLine().getStatusCode());
+            Assert.assertEquals("bytes 30-35/36", response.getFirstHeader("Content-Range").getValue());
+            Assert.assertEquals("uvwxyz", new String(readContents(response.getEntity()), "US-ASCII"));
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testMultipartByteranges() throws Exception {
+        CloseableHttpResponse response = get("bytes=20-24,0-4,2-6");
+        try {
+            Assert.assertEquals(206, response.getStatusLine().getStatusCode());
+            String contentType = response.getFirstHeader("Content-Type").getValue();
+            Assert.assertTrue(contentType.startsWith("multipart/byteranges; boundary="));
+            String boundary = contentType.substring(contentType.indexOf('=') + 1);
+            String body = new String(readContents(response.getEntity()), "US-ASCII");
+            Assert.assertEquals(String.valueOf(body.length()), response.getFirstHeader("Content-Length").getValue());
+            String expected =
+                    "\r\n--" + boundary + "\r\nContent-Type: application/octet-stream\r\nContent-Range: bytes 0-6/36\r\n\r\n0123456" + "\r\n--" + boundary
+                            + "\r\nContent-Type: application/octet-stream\r\nContent-Range: bytes 20-24/36\r\n\r\nklmno" + "\r\n--" + boundary + "--\r\n";
+            Assert.assertEquals(expected, body);
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testUnsatisfiableRanges() throws Exception {
+        CloseableHttpResponse response = get("bytes=40-50,-0");
+        try {
+            Assert.assertEquals(416, response.getStatusLine().getStatusCode());
+            Assert.assertEquals("bytes */36", response.getFirstHeader("Content-Range").getValue());
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testInvalidRangeIsIgnored() throws Exception {
+        CloseableHttpResponse response = get("bytes=9-0");
+        try {
+            Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+            Assert.assertEquals(CONTENT, new String(readContents(response.getEntity()), "US-ASCII"));
+        } finally {
+            response.close();
+        }
+    }
+
+    private CloseableHttpResponse get(String range) throws IOException {
+        HttpGet get = new HttpGet("http://localhost:9091/data.bin");
+        get.addHeader("Range", range);
+        return this.httpclient.execute(get);
+    }
+
+    private static void assertRanges(String expected, List<long[]> ranges) {
+        StringBuilder actual = new StringBuilder();
+        for (long[] range : ranges) {
+            if (actual.length() > 0) {
+                actual.append(',');
+            }
+            actual.append(range[0]).append('-').append(range[1]);
+        }
+        Assert.assertEquals(expected, actual.toString());
+    }
+}
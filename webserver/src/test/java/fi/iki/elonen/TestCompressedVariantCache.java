@@ -0,0 +1,186 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCompressedVariantCache extends AbstractTestHttpServer {
+
+    private File root;
+
+    private String style;
+
+    private SimpleWebServer server;
+
+    private CloseableHttpClient httpclient;
+
+    @Before
+    public void setUp() throws Exception {
+        this.root = createTempDir("variants");
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            text.append(".c").append(i).append(" { margin: ").append(i).append("px; }\n");
+        }
+        this.style = text.toString();
+        write(new File(this.root, "site.css"), this.style);
+        this.server = newServer(this.root);
+        this.server.start();
+        this.httpclient = HttpClients.custom().disableContentCompression().build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.httpclient.close();
+        this.server.stop();
+        this.server.setCompressedVariantCache(null);
+        delete(this.root);
+    }
+
+    @Test
+    public void testFileIsCompressedOnce() throws Exception {
+        String etag = null;
+        for (int i = 0; i < 3; i++) {
+            CloseableHttpResponse response = get("gzip");
+            try {
+                Assert.assertEquals("gzip", response.getFirstHeader("Content-Encoding").getValue());
+                Assert.assertEquals("Accept-Encoding", response.getFirstHeader("Vary").getValue());
+                byte[] body = readContents(response.getEntity());
+                Assert.assertEquals(String.valueOf(body.length), response.getFirstHeader("Content-Length").getValue());
+                Assert.assertEquals(this.style, new String(readContents(new GZIPInputStream(new ByteArrayInputStream(body))), "UTF-8"));
+                etag = response.getFirstHeader("ETag").getValue();
+                Assert.assertTrue(etag.endsWith("-gzip\""));
+            } finally {
+                response.close();
+            }
+        }
+        CompressedVariantCache cache = this.server.getCompressedVariantCache();
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(2, cache.getHitCount());
+        Assert.assertTrue(cache.getSize() < this.style.length());
+
+        HttpGet get = new HttpGet("http://localhost:9091/site.css");
+        get.addHeader("Accept-Encoding", "gzip");
+        get.addHeader("If-None-Match", etag);
+        CloseableHttpResponse response = this.httpclient.execute(get);
+        try {
+            Assert.assertEquals(304, response.getStatusLine().getStatusCode());
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testEncodingsAreCachedSeparately() throws Exception {
+        get("gzip").close();
+        CloseableHttpResponse response = get("deflate");
+        try {
+            Assert.assertEquals("deflate", response.getFirstHeader("Content-Encoding").getValue());
+            readContents(response.getEntity());
+        } finally {
+            response.close();
+        }
+        Assert.assertEquals(2, this.server.getCompressedVariantCache().getEntryCount());
+    }
+
+    @Test
+    public void testIdentityWithoutAcceptEncoding() throws Exception {
+        CloseableHttpResponse response = get(null);
+        try {
+            Assert.assertNull(response.getFirstHeader("Content-Encoding"));
+            Assert.assertEquals("Accept-Encoding", response.getFirstHeader("Vary").getValue());
+            Assert.assertEquals(this.style, new String(readContents(response.getEntity()), "UTF-8"));
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testBackgroundCompression() throws Exception {
+        this.server.setCompressedVariantCache(new CompressedVariantCache(1024 * 1024, 1024 * 1024, true));
+        CloseableHttpResponse response = get("gzip");
+        try {
+            Assert.assertNull(response.getFirstHeader("Content-Encoding"));
+            Assert.assertEquals(this.style, new String(readContents(response.getEntity()), "UTF-8"));
+        } finally {
+            response.close();
+        }
+        CompressedVariantCache cache = this.server.getCompressedVariantCache();
+        for (int i = 0; i < 100 && cache.getEntryCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        response = get("gzip");
+        try {
+            Assert.assertEquals("gzip", response.getFirstHeader("Content-Encoding").getValue());
+            readContents(response.getEntity());
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testEvictionCountsCompressedSize() throws Exception {
+        get("gzip").close();
+        long compressedSize = this.server.getCompressedVariantCache().getSize();
+        this.server.setCompressedVariantCache(new CompressedVariantCache(compressedSize * 3 / 2, 1024 * 1024, false));
+        write(new File(this.root, "other.css"), this.style.replace("margin", "padding"));
+        get("gzip").close();
+        HttpGet get = new HttpGet("http://localhost:9091/other.css");
+        get.addHeader("Accept-Encoding", "gzip");
+        this.httpclient.execute(get).close();
+        CompressedVariantCache cache = this.server.getCompressedVariantCache();
+        Assert.assertEquals(1, cache.getEntryCount());
+        Assert.assertEquals(1, cache.getEvictionCount());
+        Assert.assertTrue(cache.getSize() <= compressedSize * 3 / 2);
+    }
+
+    private CloseableHttpResponse get(String acceptEncoding) throws IOException {
+        HttpGet get = new HttpGet("http://localhost:9091/site.css");
+        if (acceptEncoding != null) {
+            get.addHeader("Accept-Encoding", acceptEncoding);
+        }
+        return this.httpclient.execute(get);
+    }
+}
@@ -0,0 +1,168 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestConditionalRequests extends AbstractTestHttpServer {
+
+    private static final long MODIFIED = 1400000000000L;
+
+    private File root;
+
+    private File file;
+
+    private SimpleWebServer server;
+
+    private CloseableHttpClient httpclient;
+
+    @Before
+    public void setUp() throws Exception {
+        this.root = createTempDir("conditional");
+        this.file = new File(this.root, "data.bin");
+        write(this.file, "0123456789".getBytes("US-ASCII"));
+        this.file.setLastModified(MODIFIED);
+        this.server = newServer(this.root);
+        this.server.setMetadataCache(new FileMetadataCache(60000, 16));
+        this.server.start();
+        this.httpclient = HttpClients.createDefault();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.httpclient.close();
+        this.server.stop();
+        delete(this.root);
+    }
+
+    @Test
+    public void testLastModifiedHeader() throws Exception {
+        CloseableHttpResponse response = get();
+        try {
+            Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+            Assert.assertEquals("Tue, 13 May 2014 16:53:20 GMT", response.getFirstHeader("Last-Modified").getValue());
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testIfModifiedSince() throws Exception {
+        Assert.assertEquals(304, status("If-Modified-Since", "Tue, 13 May 2014 16:53:20 GMT"));
+        Assert.assertEquals(304, status("If-Modified-Since", "Tuesday, 13-May-14 16:53:21 GMT"));
+        Assert.assertEquals(304, status("If-Modified-Since", "Tue May 13 16:53:20 2014"));
+        Assert.assertEquals(200, status("If-Modified-Since", "Tue, 13 May 2014 16:53:19 GMT"));
+        Assert.assertEquals(200, status("If-Modified-Since", "yesterday"));
+    }
+
+    @Test
+    public void testNotModifiedWithoutOpeningTheFile() throws Exception {
+        status(null, null);
+        this.file.delete();
+        Assert.assertEquals(304, status("If-Modified-Since", "Tue, 13 May 2014 16:53:20 GMT"));
+    }
+
+    @Test
+    public void testIfNoneMatchTakesPrecedence() throws Exception {
+        CloseableHttpResponse response = get();
+        String etag;
+        try {
+            etag = response.getFirstHeader("ETag").getValue();
+        } finally {
+            response.close();
+        }
+        // a quoted entity-tag made of the mtime and the length
+        Assert.assertEquals("\"" + Long.toHexString(MODIFIED) + "-a\"", etag);
+        Assert.assertEquals(200, status("If-None-Match", "\"other\"", "If-Modified-Since", "Tue, 13 May 2014 16:53:20 GMT"));
+        Assert.assertEquals(304, status("If-None-Match", "\"other\", " + etag, "If-Modified-Since", "Tue, 13 May 2014 16:53:19 GMT"));
+        Assert.assertEquals(304, status("If-None-Match", "W/" + etag));
+    }
+
+    @Test
+    public void testIfUnmodifiedSinceAndIfMatch() throws Exception {
+        Assert.assertEquals(412, status("If-Unmodified-Since", "Tue, 13 May 2014 16:53:19 GMT"));
+        Assert.assertEquals(200, status("If-Unmodified-Since", "Tue, 13 May 2014 16:53:20 GMT"));
+        Assert.assertEquals(412, status("If-Match", "\"other\""));
+        Assert.assertEquals(200, status("If-Match", "*"));
+        Assert.assertEquals(200, status("If-Match", "*", "If-Unmodified-Since", "Tue, 13 May 2014 16:53:19 GMT"));
+    }
+
+    @Test
+    public void testIfRangeWithDate() throws Exception {
+        Assert.assertEquals(206, status("Range", "bytes=0-4", "If-Range", "Tue, 13 May 2014 16:53:20 GMT"));
+        Assert.assertEquals(200, status("Range", "bytes=0-4", "If-Range", "Tue, 13 May 2014 16:53:21 GMT"));
+    }
+
+    @Test
+    public void testMatchesETag() {
+        Assert.assertTrue(SimpleWebServer.matchesETag("\"abc\"", "\"abc\"", false));
+        Assert.assertTrue(SimpleWebServer.matchesETag("\"x\", \"abc\"", "\"abc\"", false));
+        Assert.assertTrue(SimpleWebServer.matchesETag("W/\"abc\"", "\"abc\"", true));
+        Assert.assertFalse(SimpleWebServer.matchesETag("W/\"abc\"", "\"abc\"", false));
+        Assert.assertFalse(SimpleWebServer.matchesETag("\"abcd\"", "\"abc\"", true));
+        Assert.assertEquals("\"abc-gzip\"", FileMetadataCache.etag("\"abc\"", "gzip"));
+    }
+
+    private CloseableHttpResponse get(String... headers) throws IOException {
+        HttpGet get = new HttpGet("http://localhost:9091/data.bin");
+        for (int i = 0; i + 1 < headers.length; i += 2) {
+            if (headers[i] != null) {
+                get.addHeader(headers[i], headers[i + 1]);
+            }
+        }
+        return this.httpclient.execute(get);
+    }
+
+    private int status(String... headers) throws IOException {
+        CloseableHttpResponse response = get(headers);
+        try {
+            if (response.getEntity() != null) {
+                readContents(response.getEntity());
+            }
+            return response.getStatusLine().getStatusCode();
+        } finally {
+            response.close();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestDirectoryListing extends AbstractTestHttpServer {
+
+    private File root;
+
+    private File dir;
+
+    private SimpleWebServer server;
+
+    private CloseableHttpClient httpclient;
+
+    @Before
+    public void setUp() throws Exception {
+        this.root = createTempDir("listing");
+        this.dir = new File(this.root, "dir");
+        this.dir.mkdirs();
+        new File(this.dir, "sub").mkdir();
+        write(new File(this.dir, "b.txt"), "bb");
+        write(new File(this.dir, "a b.txt"), "a");
+        write(new File(this.dir, "<c>.txt"), "ccc");
+        this.server = newServer(this.root);
+        this.server.start();
+        this.httpclient = HttpClients.createDefault();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.httpclient.close();
+        this.server.stop();
+        delete(this.root);
+    }
+
+    @Test
+    public void testHtmlListing() throws Exception {
+        String html = get("/dir/");
+        Assert.assertTrue(html.contains("<a rel=\"directory\" href=\"/dir/sub/\"><span class=\"dirname\">sub/</span>"));
+        Assert.assertTrue(html.contains("<a href=\"/dir/a%20b.txt\"><span class=\"filename\">a b.txt</span></a>&nbsp;<span class=\"filesize\">(1 bytes)"));
+        Assert.assertTrue(html.contains("<span class=\"filename\">&lt;c&gt;.txt</span>"));
+        Assert.assertTrue(html.indexOf("&lt;c&gt;.txt") < html.indexOf("a b.txt"));
+        Assert.assertTrue(html.indexOf("a b.txt") < html.indexOf("\"/dir/b.txt\""));
+        Assert.assertFalse(html.contains("<nav"));
+    }
+
+    @Test
+    public void testJsonListing() throws Exception {
+        Assert.assertEquals("{\"path\":\"/dir/\",\"total\":4,\"page\":1,\"size\":1000,\"directories\":[\"sub\"],"
+                + "\"files\":[{\"name\":\"<c>.txt\",\"size\":3},{\"name\":\"a b.txt\",\"size\":1},{\"name\":\"b.txt\",\"size\":2}]}", get("/dir/?format=json"));
+    }
+
+    @Test
+    public void testPagination() throws Exception {
+        Assert.assertEquals("{\"path\":\"/dir/\",\"total\":4,\"page\":1,\"size\":2,\"directories\":[\"sub\"],\"files\":[{\"name\":\"<c>.txt\",\"size\":3}]}",
+                get("/dir/?format=json&size=2"));
+        Assert.assertEquals("{\"path\":\"/dir/\",\"total\":4,\"page\":2,\"size\":2,\"directories\":[],\"files\":[{\"name\":\"a b.txt\",\"size\":1},"
+                + "{\"name\":\"b.txt\",\"size\":2}]}", get("/dir/?format=json&size=2&page=2"));
+        Assert.assertEquals("{\"path\":\"/dir/\",\"total\":4,\"page\":3,\"size\":2,\"directories\":[],\"files\":[]}", get("/dir/?format=json&size=2&page=3"));
+
+        String html = get("/dir/?size=3&page=2");
+        Assert.assertTrue(html.contains("b.txt"));
+        Assert.assertFalse(html.contains("sub/"));
+        Assert.assertTrue(html.contains("<a rel=\"prev\" href=\"?page=1&amp;size=3\">previous</a> page 2 of 2"));
+    }
+
+    @Test
+    public void testPagePastTheEnd() throws Exception {
+        Assert.assertEquals("{\"path\":\"/dir/\",\"total\":4,\"page\":2,\"size\":1000,\"directories\":[],\"files\":[]}", get("/dir/?format=json&page=2"));
+        Assert.assertTrue(get("/dir/?page=2").contains("<a rel=\"prev\" href=\"?page=1&amp;size=1000\">previous</a> page 2 of 1"));
+    }
+
+    @Test
+    public void testHugePage() throws Exception {
+        Assert.assertEquals("{\"path\":\"/dir/\",\"total\":4,\"page\":429497,\"size\":10000,\"directories\":[],\"files\":[]}",
+                get("/dir/?format=json&page=429497&size=10000"));
+        Assert.assertEquals("{\"path\":\"/dir/\",\"total\":4,\"page\":2147483647,\"size\":10000,\"directories\":[],\"files\":[]}",
+                get("/dir/?format=json&page=2147483647&size=10000"));
+        Assert.assertFalse(get("/dir/?page=429497&size=10000").contains("b.txt"));
+    }
+
+    @Test
+    public void testListingIsRefreshedWhenDirectoryChanges() throws Exception {
+        Assert.assertFalse(get("/dir/").contains("new.txt"));
+        long lastModified = this.dir.lastModified();
+        write(new File(this.dir, "new.txt"), "n");
+        this.dir.setLastModified(lastModified + 2000);
+        Assert.assertTrue(get("/dir/").contains("new.txt"));
+    }
+
+    @Test
+    public void testEncodeUri() {
+        Assert.assertEquals("/a%20b/c%2Bd//e%26f", DirectoryListing.encodeUri("/a b/c+d//e&f"));
+    }
+
+    private String get(String path) throws IOException {
+        CloseableHttpResponse response = this.httpclient.execute(new HttpGet("http://localhost:9091" + path));
+        try {
+            Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+            return new String(readContents(response.getEntity()), "UTF-8");
+        } finally {
+            response.close();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestFileContentCache extends AbstractTestHttpServer {
+
+    private File root;
+
+    private SimpleWebServer server;
+
+    private CloseableHttpClient httpclient;
+
+    @Before
+    public void setUp() throws Exception {
+        this.root = createTempDir("content");
+        write(new File(this.root, "a.js"), "var a = 1;");
+        this.server = newServer(this.root);
+        this.server.setMetadataCache(new FileMetadataCache(0, 0));
+        this.server.setContentCache(new FileContentCache(1024, 100, false));
+        this.server.start();
+        this.httpclient = HttpClients.createDefault();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.httpclient.close();
+        this.server.stop();
+        delete(this.root);
+    }
+
+    @Test
+    public void testSmallFileIsServedFromMemory() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals("var a = 1;", get("http://localhost:9091/a.js", null));
+        }
+        FileContentCache cache = this.server.getContentCache();
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(2, cache.getHitCount());
+        Assert.assertEquals(10, cache.getSize());
+    }
+
+    @Test
+    public void testRangeIsServedFromMemory() throws Exception {
+        get("http://localhost:9091/a.js", null);
+        Assert.assertEquals("a = 1", get("http://localhost:9091/a.js", "bytes=4-8"));
+        Assert.assertEquals("1;", get("http://localhost:9091/a.js", "bytes=8-100"));
+        Assert.assertEquals(2, this.server.getContentCache().getHitCount());
+    }
+
+    @Test
+    public void testModifiedFileIsReadAgain() throws Exception {
+        File file = new File(this.root, "a.js");
+        Assert.assertEquals("var a = 1;", get("http://localhost:9091/a.js", null));
+        write(file, "var a = 2;");
+        file.setLastModified(file.lastModified() + 2000);
+        Assert.assertEquals("var a = 2;", get("http://localhost:9091/a.js", null));
+        Assert.assertEquals(2, this.server.getContentCache().getMissCount());
+    }
+
+    @Test
+    public void testLargeFileIsNotCached() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            text.append("0123456789");
+        }
+        write(new File(this.root, "large.js"), text.toString());
+        Assert.assertEquals(text.toString(), get("http://localhost:9091/large.js", null));
+        Assert.assertEquals(0, this.server.getContentCache().getEntryCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedFilesAreEvicted() throws Exception {
+        FileContentCache cache = new FileContentCache(20, 10, true);
+        File a = new File(this.root, "a.js");
+        File b = new File(this.root, "b.js");
+        File c = new File(this.root, "c.js");
+        write(b, "var b = 1;");
+        write(c, "var c = 1;");
+        ByteBuffer content = cache.get(a, a.length(), a.lastModified());
+        Assert.assertTrue(content.isDirect());
+        Assert.assertEquals(10, content.remaining());
+        cache.get(b, b.length(), b.lastModified());
+        cache.get(a, a.length(), a.lastModified());
+        cache.get(c, c.length(), c.lastModified());
+        Assert.assertEquals(2, cache.getEntryCount());
+        Assert.assertEquals(20, cache.getSize());
+        Assert.assertEquals(1, cache.getEvictionCount());
+        cache.get(a, a.length(), a.lastModified());
+        Assert.assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void testSnapshotSurvivesRestart() throws Exception {
+        File snapshot = new File(this.root.getPath() + ".snapshot");
+        try {
+            write(new File(this.root, "b.js"), "var b = 1;");
+            this.server.getContentCache().setSnapshotFile(snapshot);
+            get("http://localhost:9091/a.js", null);
+            get("http://localhost:9091/b.js", null);
+            this.server.stop();
+            Assert.assertTrue(snapshot.isFile());
+            File b = new File(this.root, "b.js");
+            write(b, "var b = 22;");
+            b.setLastModified(b.lastModified() + 2000);
+
+            FileContentCache cache = new FileContentCache(1024, 100, false);
+            cache.setSnapshotFile(snapshot);
+            this.server = newServer(this.root);
+            this.server.setMetadataCache(new FileMetadataCache(0, 0));
+            this.server.setContentCache(cache);
+            this.server.start();
+            // the changed file is not loaded
+            Assert.assertEquals(1, cache.getEntryCount());
+            Assert.assertEquals("var a = 1;", get("http://localhost:9091/a.js", null));
+            Assert.assertEquals("var b = 22;", get("http://localhost:9091/b.js", null));
+            Assert.assertEquals(1, cache.getHitCount());
+            Assert.assertEquals(1, cache.getMissCount());
+        } finally {
+            snapshot.delete();
+        }
+    }
+
+    @Test
+    public void testMalformedSnapshotEntriesAreSkipped() throws Exception {
+        File snapshot = new File(this.root.getPath() + ".snapshot");
+        try {
+            File a = new File(this.root, "a.js");
+            File b = new File(this.root, "b.js");
+            write(b, "var b = 1;");
+            List<CacheSnapshot.Entry> entries = new ArrayList<CacheSnapshot.Entry>();
+            entries.add(new CacheSnapshot.Entry(a.getPath(), Collections.singletonMap(":lastModified", String.valueOf(a.lastModified())), Long.MAX_VALUE,
+                    ByteBuffer.wrap("var a = 1;".getBytes("UTF-8"))));
+            entries.add(new CacheSnapshot.Entry(b.getPath(), Collections.singletonMap(":lastModified", "yesterday"), Long.MAX_VALUE, ByteBuffer.wrap("var b = 1;"
+                    .getBytes("UTF-8"))));
+            CacheSnapshot.write(snapshot, entries);
+
+            FileContentCache cache = new FileContentCache(1024, 100, false);
+            Assert.assertEquals(1, cache.loadSnapshot(snapshot));
+            Assert.assertEquals(1, cache.getMalformedSnapshotEntryCount());
+        } finally {
+            snapshot.delete();
+        }
+    }
+
+    private String get(String url, String range) throws IOException {
+        HttpGet get = new HttpGet(url);
+        if (range != null) {
+            get.addHeader("range", range);
+        }
+        CloseableHttpResponse response = this.httpclient.execute(get);
+        try {
+            return new String(readContents(response.getEntity()), "UTF-8");
+        } finally {
+            response.close();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestFileMetadataCache extends AbstractTestHttpServer {
+
+    private File root;
+
+    private SimpleWebServer server;
+
+    private CloseableHttpClient httpclient;
+
+    @Before
+    public void setUp() throws Exception {
+        this.root = createTempDir("metadata");
+        write(new File(this.root, "a.css"), "body {}");
+        this.server = newServer(this.root);
+        this.server.setMetadataCache(new FileMetadataCache(60000, 16));
+        this.server.start();
+        this.httpclient = HttpClients.createDefault();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.httpclient.close();
+        this.server.stop();
+        delete(this.root);
+    }
+
+    @Test
+    public void testRepeatedRequestsHitTheCache() throws Exception {
+        FileMetadataCache cache = this.server.getMetadataCache();
+        String etag = null;
+        for (int i = 0; i < 3; i++) {
+            CloseableHttpResponse response = this.httpclient.execute(new HttpGet("http://localhost:9091/a.css"));
+            Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+            Assert.assertEquals("body {}", new String(readContents(response.getEntity()), "UTF-8"));
+            Assert.assertEquals("text/css", response.getFirstHeader("Content-Type").getValue());
+            if (etag != null) {
+                Assert.assertEquals(etag, response.getFirstHeader("ETag").getValue());
+            }
+            etag = response.getFirstHeader("ETag").getValue();
+            response.close();
+        }
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(2, cache.getHitCount());
+        Assert.assertEquals(1, cache.getEntryCount());
+    }
+
+    @Test
+    public void testNotFoundIsCachedUntilInvalidated() throws Exception {
+        Assert.assertEquals(404, status("http://localhost:9091/b.css"));
+        write(new File(this.root, "b.css"), "p {}");
+        Assert.assertEquals(404, status("http://localhost:9091/b.css"));
+
+        this.server.getMetadataCache().invalidate("/b.css");
+        Assert.assertEquals(200, status("http://localhost:9091/b.css"));
+    }
+
+    @Test
+    public void testEntriesExpire() throws Exception {
+        this.server.setMetadataCache(new FileMetadataCache(50, 16));
+        Assert.assertEquals(404, status("http://localhost:9091/c.css"));
+        write(new File(this.root, "c.css"), "p {}");
+        Thread.sleep(100);
+        Assert.assertEquals(200, status("http://localhost:9091/c.css"));
+    }
+
+    @Test
+    public void testDisabledCache() throws Exception {
+        this.server.setMetadataCache(new FileMetadataCache(0, 0));
+        Assert.assertEquals(404, status("http://localhost:9091/d.css"));
+        write(new File(this.root, "d.css"), "p {}");
+        Assert.assertEquals(200, status("http://localhost:9091/d.css"));
+        Assert.assertEquals(0, this.server.getMetadataCache().getEntryCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntriesAreEvicted() {
+        FileMetadataCache cache = new FileMetadataCache(60000, 2);
+        cache.put("/1", FileMetadataCache.notFound());
+        cache.put("/2", FileMetadataCache.notFound());
+        Assert.assertNotNull(cache.get("/1"));
+        cache.put("/3", FileMetadataCache.notFound());
+        Assert.assertEquals(2, cache.getEntryCount());
+        Assert.assertNotNull(cache.get("/1"));
+        Assert.assertNull(cache.get("/2"));
+    }
+
+    @Test
+    public void testRootsAreCheckedAtStart() throws Exception {
+        this.server.stop();
+        File missing = new File(this.root, "missing");
+        this.server = newServer(this.root, missing);
+        this.server.start();
+        Assert.assertEquals(500, status("http://localhost:9091/a.css"));
+        // the check is not repeated for every request
+        missing.mkdir();
+        Assert.assertEquals(500, status("http://localhost:9091/a.css"));
+        this.server.stop();
+        this.server.start();
+        Assert.assertEquals(200, status("http://localhost:9091/a.css"));
+    }
+
+    private int status(String url) throws IOException {
+        CloseableHttpResponse response = this.httpclient.execute(new HttpGet(url));
+        try {
+            readContents(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        } finally {
+            response.close();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestMappedFileCache extends AbstractTestHttpServer {
+
+    private static final int LENGTH = 300 * 1024;
+
+    private File root;
+
+    private byte[] content;
+
+    private SimpleWebServer server;
+
+    private CloseableHttpClient httpclient;
+
+    @Before
+    public void setUp() throws Exception {
+        this.root = createTempDir("mapped");
+        this.content = new byte[LENGTH];
+        for (int i = 0; i < LENGTH; i++) {
+            this.content[i] = (byte) (i * 31 + i / 256);
+        }
+        write(new File(this.root, "a.bin"), this.content);
+        write(new File(this.root, "b.bin"), this.content);
+        this.server = newServer(this.root);
+        this.server.setMappedFileCache(new MappedFileCache(100 * 1024, 1024 * 1024, 1));
+        this.server.start();
+        this.httpclient = HttpClients.createDefault();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.httpclient.close();
+        this.server.stop();
+        this.server.setMappedFileCache(null);
+        delete(this.root);
+    }
+
+    @Test
+    public void testFullFileIsServedFromMapping() throws Exception {
+        Assert.assertArrayEquals(this.content, get("http://localhost:9091/a.bin", null, 200));
+        Assert.assertArrayEquals(this.content, get("http://localhost:9091/a.bin", null, 200));
+        MappedFileCache cache = this.server.getMappedFileCache();
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(LENGTH, cache.getSize());
+    }
+
+    @Test
+    public void testRangesAreSlicedFromMapping() throws Exception {
+        Assert.assertArrayEquals(Arrays.copyOfRange(this.content, 1000, 2001), get("http://localhost:9091/a.bin", "bytes=1000-2000", 206));
+        Assert.assertArrayEquals(Arrays.copyOfRange(this.content, 200000, LENGTH), get("http://localhost:9091/a.bin", "bytes=200000-", 206));
+        Assert.assertEquals(1, this.server.getMappedFileCache().getHitCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedFileIsUnmapped() throws Exception {
+        get("http://localhost:9091/a.bin", null, 200);
+        Assert.assertArrayEquals(this.content, get("http://localhost:9091/b.bin", null, 200));
+        MappedFileCache cache = this.server.getMappedFileCache();
+        Assert.assertEquals(1, cache.getEntryCount());
+        Assert.assertEquals(1, cache.getEvictionCount());
+        Assert.assertArrayEquals(this.content, get("http://localhost:9091/a.bin", null, 200));
+    }
+
+    @Test
+    public void testSmallFilesAreNotMapped() throws Exception {
+        write(new File(this.root, "small.bin"), new byte[1024]);
+        Assert.assertEquals(1024, get("http://localhost:9091/small.bin", null, 200).length);
+        Assert.assertEquals(0, this.server.getMappedFileCache().getEntryCount());
+    }
+
+    private byte[] get(String url, String range, int status) throws IOException {
+        HttpGet get = new HttpGet(url);
+        if (range != null) {
+            get.addHeader("range", range);
+        }
+        CloseableHttpResponse response = this.httpclient.execute(get);
+        try {
+            Assert.assertEquals(status, response.getStatusLine().getStatusCode());
+            return readContents(response.getEntity());
+        } finally {
+            response.close();
+        }
+    }
+}
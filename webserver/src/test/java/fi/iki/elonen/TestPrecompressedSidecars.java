@@ -0,0 +1,185 @@
+package fi.iki.elonen;
+
+/*
+ * #%L
+ * NanoHttpd-Webserver
+ * %%
+ * Copyright (C) 2012 - 2015 nanohttpd
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the nanohttpd nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestPrecompressedSidecars extends AbstractTestHttpServer {
+
+    private File root;
+
+    private String script;
+
+    private SimpleWebServer server;
+
+    private CloseableHttpClient httpclient;
+
+    @Before
+    public void setUp() throws Exception {
+        this.root = createTempDir("sidecars");
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            text.append("var a").append(i).append(" = ").append(i).append(";\n");
+        }
+        this.script = text.toString();
+        write(new File(this.root, "app.js"), this.script.getBytes("UTF-8"));
+        this.server = newServer(this.root);
+        this.server.setMetadataCache(new FileMetadataCache(0, 0));
+        this.server.setServePrecompressed(true);
+        this.server.setCompressedVariantCache(null);
+        this.server.start();
+        this.httpclient = HttpClients.custom().disableContentCompression().build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.httpclient.close();
+        this.server.stop();
+        delete(this.root);
+    }
+
+    @Test
+    public void testGenerate() throws Exception {
+        write(new File(this.root, "image.png"), new byte[1024]);
+        write(new File(this.root, "small.css"), "p {}".getBytes("UTF-8"));
+        Assert.assertEquals(1, PrecompressedSidecars.generate(this.root, 2));
+        Assert.assertTrue(new File(this.root, "app.js.gz").isFile());
+        Assert.assertFalse(new File(this.root, "image.png.gz").exists());
+        Assert.assertFalse(new File(this.root, "small.css.gz").exists());
+        Assert.assertEquals(0, PrecompressedSidecars.generate(this.root, 2));
+
+        byte[] plain = readContents(new GZIPInputStream(new FileInputStream(new File(this.root, "app.js.gz"))));
+        Assert.assertEquals(this.script, new String(plain, "UTF-8"));
+    }
+
+    @Test
+    public void testGzipSidecarIsServed() throws Exception {
+        PrecompressedSidecars.generate(this.root, 1);
+        byte[] sidecar = readContents(new FileInputStream(new File(this.root, "app.js.gz")));
+
+        HttpGet get = new HttpGet("http://localhost:9091/app.js");
+        get.addHeader("Accept-Encoding", "gzip, deflate");
+        CloseableHttpResponse response = this.httpclient.execute(get);
+        try {
+            Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+            Assert.assertEquals("gzip", response.getFirstHeader("Content-Encoding").getValue());
+            Assert.assertEquals("application/javascript", response.getFirstHeader("Content-Type").getValue());
+            Assert.assertEquals("Accept-Encoding", response.getFirstHeader("Vary").getValue());
+            Assert.assertTrue(response.getFirstHeader("ETag").getValue().endsWith("-gzip\""));
+            Assert.assertEquals(String.valueOf(sidecar.length), response.getFirstHeader("Content-Length").getValue());
+            byte[] body = readContents(response.getEntity());
+            Assert.assertArrayEquals(sidecar, body);
+            Assert.assertEquals(this.script, new String(readContents(new GZIPInputStream(new ByteArrayInputStream(body))), "UTF-8"));
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testIdentityWhenNotAccepted() throws Exception {
+        PrecompressedSidecars.generate(this.root, 1);
+        HttpGet get = new HttpGet("http://localhost:9091/app.js");
+        get.addHeader("Accept-Encoding", "gzip;q=0");
+        CloseableHttpResponse response = this.httpclient.execute(get);
+        try {
+            Assert.assertNull(response.getFirstHeader("Content-Encoding"));
+            Assert.assertEquals("Accept-Encoding", response.getFirstHeader("Vary").getValue());
+            Assert.assertEquals(this.script, new String(readContents(response.getEntity()), "UTF-8"));
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testBrotliIsPreferredAndStaleSidecarsIgnored() throws Exception {
+        File br = new File(this.root, "app.js.br");
+        write(br, "brotli".getBytes("UTF-8"));
+        Assert.assertEquals("br", encodingOf("gzip, br"));
+
+        br.setLastModified(new File(this.root, "app.js").lastModified() - 10000);
+        Assert.assertNull(encodingOf("gzip, br"));
+    }
+
+    @Test
+    public void testRangeRequestsGetTheIdentity() throws Exception {
+        PrecompressedSidecars.generate(this.root, 1);
+        HttpGet get = new HttpGet("http://localhost:9091/app.js");
+        get.addHeader("Accept-Encoding", "gzip");
+        get.addHeader("Range", "bytes=0-9");
+        CloseableHttpResponse response = this.httpclient.execute(get);
+        try {
+            Assert.assertEquals(206, response.getStatusLine().getStatusCode());
+            Assert.assertNull(response.getFirstHeader("Content-Encoding"));
+            Assert.assertEquals(this.script.substring(0, 10), new String(readContents(response.getEntity()), "UTF-8"));
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testAcceptsEncoding() {
+        Assert.assertTrue(SimpleWebServer.acceptsEncoding("gzip, deflate", "gzip"));
+        Assert.assertTrue(SimpleWebServer.acceptsEncoding("x-gzip", "gzip"));
+        Assert.assertTrue(SimpleWebServer.acceptsEncoding("*", "br"));
+        Assert.assertFalse(SimpleWebServer.acceptsEncoding("*, br;q=0", "br"));
+        Assert.assertFalse(SimpleWebServer.acceptsEncoding("gzip;q=0", "gzip"));
+        Assert.assertFalse(SimpleWebServer.acceptsEncoding("deflate", "gzip"));
+        Assert.assertFalse(SimpleWebServer.acceptsEncoding(null, "gzip"));
+    }
+
+    private String encodingOf(String acceptEncoding) throws IOException {
+        HttpGet get = new HttpGet("http://localhost:9091/app.js");
+        get.addHeader("Accept-Encoding", acceptEncoding);
+        CloseableHttpResponse response = this.httpclient.execute(get);
+        try {
+            readContents(response.getEntity());
+            return response.getFirstHeader("Content-Encoding") != null ? response.getFirstHeader("Content-Encoding").getValue() : null;
+        } finally {
+            response.close();
+        }
+    }
+}